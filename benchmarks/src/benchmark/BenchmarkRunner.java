@@ -0,0 +1,409 @@
+package benchmark;
+
+import Model.Transaction;
+import Model.TransactionStore;
+import manager.FingerprintIndex;
+import manager.ProgressListener;
+import manager.RowFilter;
+import manager.RowSorter;
+import manager.SortKey;
+import manager.StreamingTaxCalculator;
+import manager.TransactionField;
+import manager.TransactionManager;
+import manager.ValidationFailure;
+import manager.ValidationResult;
+import manager.ValidationRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+// Benchmarks the import -> validate -> tax pipeline of TransactionManager on
+// generated files of several sizes. Every operation is warmed up and then
+// timed for a number of samples. The report shows throughput, latency
+// percentiles over the samples and the bytes allocated per sample by all
+// threads (work done on a thread that exits mid-sample is not counted).
+// After the timings of each size, the one-pass StreamingTaxCalculator is
+// checked against the materialized pipeline on the same file. Loading is
+// also timed from a gzip copy and a zip of several parts of the file,
+// written next to it on the first run.
+//
+// A quick look at the whole pipeline in one process; the jmh project has the
+// same operations as JMH benchmarks, forked, with GC profiler allocation
+// rates (gradle :jmh:jmh). Lines the importer cannot parse are reported on
+// standard output, so it is discarded while this runs.
+//
+// usage: BenchmarkRunner [--sizes 10000,1000000,10000000] [--warmup 2]
+//                        [--samples 5] [--seed 42] [--dir <data directory>]
+// The 10M row filing needs about 4 GB of heap (-Xmx4g).
+public final class BenchmarkRunner {
+    // Per-row operations that are not batched by the manager are run over at
+    // most this many rows per sample
+    private static final int ROWS_PER_CALL_SAMPLE = 1_000_000;
+    private static final int TAX_CALLS_PER_SAMPLE = 100_000;
+    private static final double TAX_RATE = 15;
+
+    private final int warmup;
+    private final int samples;
+    private final PrintStream report;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so the JIT cannot drop the work
+    private static volatile long sink;
+
+    private BenchmarkRunner(int warmup, int samples, PrintStream report) {
+        this.warmup = warmup;
+        this.samples = samples;
+        this.report = report;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {10_000, 1_000_000, 10_000_000};
+        int warmup = 2;
+        int samples = 5;
+        long seed = 42;
+        File dir = Workloads.defaultDirectory();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--samples":
+                    samples = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "--dir":
+                    dir = new File(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, samples, Workloads.silenceStandardOutput());
+        runner.report.println(Result.HEADER);
+        for (int rows : sizes) {
+            runner.runAll(Workloads.filing(dir, rows, seed), rows);
+        }
+    }
+
+    private void runAll(File csv, int rows) throws IOException {
+        String path = csv.getPath();
+        // A load replays the edit journal of the file, so none may be left
+        // over from an earlier run or from the destructive samples below
+        File journal = TransactionManager.journalFileOf(path);
+        Files.deleteIfExists(journal.toPath());
+
+        measure(rows, "loadTransactionsFromCSV", "rows", () -> {
+            TransactionManager manager = new TransactionManager();
+            return () -> {
+                manager.loadTransactionsFromCSV(path);
+                return manager.getStore().size();
+            };
+        });
+
+        TransactionManager loaded = new TransactionManager();
+        loaded.loadTransactionsFromCSV(path);
+        TransactionStore store = loaded.getStore();
+
+        // The same filing compressed, inflated while it is parsed
+        File gzip = Workloads.gzipOf(csv);
+        File zip = Workloads.zipOf(csv);
+        for (File compressed : new File[]{gzip, zip}) {
+            String compressedPath = compressed.getPath();
+            Files.deleteIfExists(TransactionManager.journalFileOf(compressedPath).toPath());
+            measure(rows, "loadTransactionsFromCSV " + (compressed == gzip ? "gz" : "zip"), "rows", () -> {
+                TransactionManager manager = new TransactionManager();
+                return () -> {
+                    manager.loadTransactionsFromCSV(compressedPath);
+                    if (manager.getStore().size() != store.size()) {
+                        throw new IllegalStateException(compressed + " has " + manager.getStore().size()
+                                + " rows, " + csv + " has " + store.size());
+                    }
+                    return manager.getStore().size();
+                };
+            });
+        }
+        int callRows = Math.min(store.size(), ROWS_PER_CALL_SAMPLE);
+
+        measure(rows, "validateTransactions", "rows", () -> () -> {
+            sink += loaded.validateTransactions().getValid();
+            return store.liveSize();
+        });
+        // The same pass with ten registered rules, which should cost far
+        // less than ten more passes
+        List<ValidationRule> rules = Workloads.sampleRules();
+        rules.forEach(loaded::addValidationRule);
+        measure(rows, "validateTransactions, 10 rules", "rows", () -> () -> {
+            sink += loaded.validateTransactions().getValid();
+            return store.liveSize();
+        });
+        rules.forEach(loaded::removeValidationRule);
+        loaded.validateTransactions();
+
+        // The duplicate check of a load, in an index of its own per sample:
+        // a filing whose lines are all new, then one replaying an earlier one
+        File indexDirectory = new File(csv.getParentFile(), "fingerprint-index");
+        FingerprintIndex[] index = {null};
+        for (boolean replay : new boolean[]{false, true}) {
+            measure(rows, "fingerprint check, " + (replay ? "replay" : "new lines"), "rows", () -> {
+                closeIndex(index[0], indexDirectory);
+                index[0] = FingerprintIndex.open(indexDirectory);
+                if (replay) {
+                    index[0].checkAndRecord(store, "earlier");
+                }
+                return () -> {
+                    try {
+                        sink += index[0].checkAndRecord(store, "filing").cardinality();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return store.liveSize();
+                };
+            });
+        }
+        closeIndex(index[0], indexDirectory);
+        measure(rows, "calculateProfits", "rows", () -> () -> {
+            loaded.calculateProfits();
+            return store.liveSize();
+        });
+        measure(rows, "calculateCurrentChecksum", "rows", () -> () -> {
+            long sum = 0;
+            for (int row = 0; row < callRows; row++) {
+                sum += loaded.calculateCurrentChecksum(new Transaction(store, row));
+            }
+            sink += sum;
+            return callRows;
+        });
+        measure(rows, "validateSingleTransaction", "rows", () -> () -> {
+            for (int row = 0; row < callRows; row++) {
+                loaded.validateSingleTransaction(new Transaction(store, row));
+            }
+            return callRows;
+        });
+        measure(rows, "calculateFinalTax", "calls", () -> () -> {
+            long sum = 0;
+            for (int i = 0; i < TAX_CALLS_PER_SAMPLE; i++) {
+                sum += loaded.calculateFinalTaxCents(15 + (i & 7));
+            }
+            sink += sum;
+            return TAX_CALLS_PER_SAMPLE;
+        });
+        for (TransactionField groupBy : new TransactionField[]{TransactionField.BILL_NUMBER, TransactionField.ITEM_CODE}) {
+            measure(rows, "aggregate by " + groupBy.name().toLowerCase(), "rows", () -> () -> {
+                sink += loaded.aggregate(groupBy, false).size();
+                return store.liveSize();
+            });
+        }
+
+        // What the table does when a filter is applied or a column header clicked
+        RowFilter lossOrInvalid = RowFilter.invalid().or(RowFilter.below(TransactionField.PROFIT, 0));
+        measure(rows, "RowFilter.select", "rows", () -> () -> {
+            sink += lossOrInvalid.select(store, 0, store.size()).length;
+            return store.size();
+        });
+        RowSorter sorter = new RowSorter();
+        List<SortKey> byItemAndProfit = List.of(SortKey.ascending(TransactionField.ITEM_CODE),
+                SortKey.descending(TransactionField.PROFIT));
+        measure(rows, "RowSorter.sort", "rows", () -> {
+            int[] shown = RowFilter.valid().or(RowFilter.invalid()).select(store, 0, store.size());
+            return () -> {
+                sorter.sort(store, shown, byItemAndProfit);
+                sink += shown.length > 0 ? shown[0] : 0;
+                return shown.length;
+            };
+        });
+
+        // Destructive, so every sample starts from a freshly loaded filing
+        TransactionManager[] previous = {null};
+        measure(rows, "deleteZeroProfitTransactions", "rows", () -> {
+            discardJournal(previous[0], journal);
+            TransactionManager manager = new TransactionManager();
+            previous[0] = manager;
+            manager.loadTransactionsFromCSV(path);
+            manager.calculateProfits();
+            return () -> {
+                int before = manager.getStore().liveSize();
+                manager.deleteZeroProfitTransactions();
+                sink += manager.getStore().liveSize();
+                return before;
+            };
+        });
+        discardJournal(previous[0], journal);
+
+        measure(rows, "StreamingTaxCalculator", "rows", () -> () -> {
+            try {
+                StreamingTaxCalculator.Result result = new StreamingTaxCalculator().calculate(csv, TAX_RATE);
+                sink += result.getTaxCents();
+                return result.getValidation().getTotal();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        checkStreamingMatches(csv, loaded);
+    }
+
+    private static void closeIndex(FingerprintIndex index, File directory) throws IOException {
+        if (index != null) {
+            index.close();
+        }
+        Workloads.clear(directory);
+    }
+
+    private static void discardJournal(TransactionManager manager, File journal) throws IOException {
+        if (manager != null) {
+            manager.closeJournal();
+        }
+        Files.deleteIfExists(journal.toPath());
+    }
+
+    // The streaming pass must give the same counts, tax and rejected rows as
+    // loading, validating and exporting the filing
+    private void checkStreamingMatches(File csv, TransactionManager loaded) throws IOException {
+        ValidationResult expected = loaded.validateTransactions();
+        TransactionStore store = loaded.getStore();
+        int zeroProfit = 0;
+        for (int row = 0; row < store.size(); row++) {
+            if (!store.isDeleted(row) && store.getProfitCents(row) == 0) {
+                zeroProfit++;
+            }
+        }
+        File valid = new File(csv.getPath() + ".valid.tmp");
+        File rejected = new File(csv.getPath() + ".rejected.tmp");
+        File streamedRejected = new File(csv.getPath() + ".streamed-rejected.tmp");
+        try {
+            loaded.exportTransactions(valid, rejected, false, ProgressListener.NONE);
+            StreamingTaxCalculator.Result streamed = new StreamingTaxCalculator(loaded.getRoundingMode())
+                    .calculate(csv, TAX_RATE, streamedRejected, false, ProgressListener.NONE);
+
+            StringBuilder differences = new StringBuilder();
+            ValidationResult actual = streamed.getValidation();
+            compare(differences, "rows", expected.getTotal(), actual.getTotal());
+            compare(differences, "valid", expected.getValid(), actual.getValid());
+            for (ValidationFailure reason : ValidationFailure.values()) {
+                compare(differences, reason.name(), expected.getFailureCount(reason), actual.getFailureCount(reason));
+            }
+            compare(differences, "zero profit", zeroProfit, streamed.getZeroProfit());
+            compare(differences, "tax cents", loaded.calculateFinalTaxCents(TAX_RATE), streamed.getTaxCents());
+            if (Files.mismatch(rejected.toPath(), streamedRejected.toPath()) != -1) {
+                differences.append(" rejected rows differ");
+            }
+            if (differences.length() > 0) {
+                throw new IllegalStateException("Streaming tax of " + csv + " differs:" + differences);
+            }
+            report.println(String.format("%10d  %s", store.liveSize(), "streaming tax matches"));
+        } finally {
+            Files.deleteIfExists(valid.toPath());
+            Files.deleteIfExists(rejected.toPath());
+            Files.deleteIfExists(streamedRejected.toPath());
+        }
+    }
+
+    private static void compare(StringBuilder differences, String what, long expected, long actual) {
+        if (expected != actual) {
+            differences.append(' ').append(what).append(' ').append(actual).append(" instead of ").append(expected);
+        }
+    }
+
+    private void measure(int rows, String operation, String unit, Setup setup) {
+        long[] nanos = new long[samples];
+        long allocated = 0;
+        long units = 0;
+        for (int i = -warmup; i < samples; i++) {
+            Sample sample;
+            try {
+                sample = setup.prepare();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            System.gc();
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long done = sample.run();
+            long elapsed = System.nanoTime() - start;
+            long bytes = allocatedBytes() - bytesBefore;
+            if (i >= 0) {
+                nanos[i] = elapsed;
+                allocated += bytes;
+                units += done;
+            }
+        }
+        report.println(new Result(rows, operation, unit, nanos, units, allocated));
+    }
+
+    private long allocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    // Builds one sample; anything done here is not timed
+    private interface Setup {
+        Sample prepare() throws IOException;
+    }
+
+    // Timed work, returning how many units (rows, calls) it processed
+    private interface Sample {
+        long run();
+    }
+
+    private static final class Result {
+        static final String HEADER = String.format("%10s  %-30s %7s %10s %10s %10s %10s %10s %14s %12s",
+                "rows", "operation", "samples", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "throughput/s", "alloc MB/op");
+
+        private final int rows;
+        private final String operation;
+        private final String unit;
+        private final long[] nanos;
+        private final long units;
+        private final long allocated;
+
+        Result(int rows, String operation, String unit, long[] nanos, long units, long allocated) {
+            this.rows = rows;
+            this.operation = operation;
+            this.unit = unit;
+            this.nanos = nanos.clone();
+            this.units = units;
+            this.allocated = allocated;
+            Arrays.sort(this.nanos);
+        }
+
+        // Nearest-rank percentile of the sorted samples
+        private double percentileMillis(double p) {
+            int rank = (int) Math.ceil(p / 100 * nanos.length);
+            return nanos[Math.max(0, Math.min(nanos.length - 1, rank - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            long total = 0;
+            for (long n : nanos) {
+                total += n;
+            }
+            double mean = total / 1e6 / nanos.length;
+            double throughput = units / (total / 1e9);
+            return String.format("%10d  %-30s %7d %10.2f %10.2f %10.2f %10.2f %10.2f %,10.0f %-3s %12.2f",
+                    rows, operation, nanos.length, mean, percentileMillis(50), percentileMillis(90),
+                    percentileMillis(99), nanos[nanos.length - 1] / 1e6, throughput, unit,
+                    allocated / 1e6 / nanos.length);
+        }
+    }
+}
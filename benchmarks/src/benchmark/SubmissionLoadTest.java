@@ -0,0 +1,231 @@
+package benchmark;
+
+import manager.SubmissionServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives a SubmissionServer with many concurrent uploads and reports the
+// latency percentiles of the accepted ones and the filings completed per
+// second. Every client is a thread that uploads generated filings back to
+// back until the requests run out. Without --url a server is started in
+// this process on a free loopback port.
+//
+// The clients are platform threads on purpose: the JDK server reads a body
+// inside a synchronized block, which pins the virtual thread to its carrier
+// on JDKs before 24, and the uploads must not wait for a carrier the server
+// is holding.
+//
+// usage: SubmissionLoadTest [--url http://host:port] [--rows 10000,100000]
+//                           [--clients 32] [--requests 500] [--warmup 50]
+//                           [--chunked] [--seed 42] [--dir <data directory>]
+//                           [--memory-mb <mb>] [--max-upload-mb <mb>]
+// --chunked sends the bodies without a Content-Length, so the server must
+// reserve the upload limit for each of them. The files of the given sizes
+// are uploaded in turn.
+public final class SubmissionLoadTest {
+    private static final double TAX_RATE = 15;
+
+    private SubmissionLoadTest() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String url = null;
+        int[] sizes = {10_000};
+        int clients = 32;
+        int requests = 500;
+        int warmup = 50;
+        boolean chunked = false;
+        long seed = 42;
+        File dir = new File(System.getProperty("java.io.tmpdir"), "tax-benchmarks");
+        long memoryMb = Runtime.getRuntime().maxMemory() / 4 * 3 >> 20;
+        long maxUploadMb = 64;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url":
+                    url = args[++i];
+                    break;
+                case "--rows":
+                    sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--chunked":
+                    chunked = true;
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--dir":
+                    dir = new File(args[++i]);
+                    break;
+                case "--memory-mb":
+                    memoryMb = Long.parseLong(args[++i]);
+                    break;
+                case "--max-upload-mb":
+                    maxUploadMb = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        List<File> filings = new ArrayList<>();
+        for (int rows : sizes) {
+            File csv = new File(dir, "transactions-" + rows + "-" + seed + ".csv");
+            if (!csv.exists()) {
+                new SyntheticCsvGenerator(seed, 0.05).write(csv, rows);
+            }
+            filings.add(csv);
+        }
+
+        PrintStream report = System.out;
+        SubmissionServer server = null;
+        if (url == null) {
+            // The server logs every line it cannot parse, which would drown the report
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            server = new SubmissionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    TAX_RATE, maxUploadMb << 20, memoryMb << 20, 2000);
+            server.start();
+            url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        }
+        try (HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build()) {
+            URI target = URI.create(url + "/filings?taxRate=" + TAX_RATE);
+            if (warmup > 0) {
+                run(client, target, filings, clients, warmup, chunked);
+            }
+            Run run = run(client, target, filings, clients, requests, chunked);
+            report.println(run.report(clients, chunked));
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private static Run run(HttpClient client, URI target, List<File> filings, int clients, int requests,
+                           boolean chunked) throws InterruptedException {
+        Run run = new Run(requests);
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        try (ExecutorService threads = Executors.newFixedThreadPool(clients)) {
+            for (int c = 0; c < clients; c++) {
+                threads.submit(() -> {
+                    for (int n = next.getAndIncrement(); n < requests; n = next.getAndIncrement()) {
+                        File filing = filings.get(n % filings.size());
+                        run.record(upload(client, target, filing, chunked), filing.length());
+                    }
+                    return null;
+                });
+            }
+        }
+        run.nanos = System.nanoTime() - start;
+        return run;
+    }
+
+    // The status and latency of one upload, status 0 when it did not get a reply
+    private static long[] upload(HttpClient client, URI target, File filing, boolean chunked) {
+        long start = System.nanoTime();
+        try {
+            HttpRequest.BodyPublisher body = chunked
+                    ? HttpRequest.BodyPublishers.ofInputStream(() -> {
+                        try {
+                            return Files.newInputStream(filing.toPath());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    : HttpRequest.BodyPublishers.ofFile(filing.toPath());
+            HttpRequest request = HttpRequest.newBuilder(target)
+                    .header("Content-Type", "text/csv")
+                    .POST(body)
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            return new long[]{response.statusCode(), System.nanoTime() - start};
+        } catch (IOException | RuntimeException e) {
+            return new long[]{0, System.nanoTime() - start};
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new long[]{0, System.nanoTime() - start};
+        }
+    }
+
+    // Outcomes of the requests of one run
+    private static final class Run {
+        private final long[] okNanos;
+        private final AtomicInteger ok = new AtomicInteger();
+        private final AtomicInteger rejected = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        // The server may reject an upload before reading it and close the
+        // connection while the body is still being sent
+        private final AtomicInteger noReply = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private long nanos;
+
+        Run(int requests) {
+            okNanos = new long[requests];
+        }
+
+        void record(long[] outcome, long length) {
+            if (outcome[0] == 200) {
+                okNanos[ok.getAndIncrement()] = outcome[1];
+                bytes.addAndGet(length);
+            } else if (outcome[0] == 503) {
+                rejected.incrementAndGet();
+            } else if (outcome[0] == 0) {
+                noReply.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        }
+
+        String report(int clients, boolean chunked) {
+            long[] sorted = Arrays.copyOf(okNanos, ok.get());
+            Arrays.sort(sorted);
+            double seconds = nanos / 1e9;
+            return String.format(Locale.ROOT, "clients %d%s, requests %d: ok %d, rejected %d, failed %d, no reply %d%n"
+                            + "latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n"
+                            + "%.1f filings/s, %.1f MB/s over %.2f s",
+                    clients, chunked ? " (chunked)" : "", okNanos.length, sorted.length, rejected.get(),
+                    failed.get(), noReply.get(), percentileMillis(sorted, 50), percentileMillis(sorted, 90),
+                    percentileMillis(sorted, 99), percentileMillis(sorted, 100), sorted.length / seconds,
+                    bytes.get() / 1e6 / seconds, seconds);
+        }
+
+        // Nearest-rank percentile of the sorted latencies
+        private static double percentileMillis(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(p / 100 * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1e6;
+        }
+    }
+}
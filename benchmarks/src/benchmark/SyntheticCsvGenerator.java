@@ -0,0 +1,115 @@
+package benchmark;
+
+import Model.Money;
+import manager.ChecksumCalculator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.SplittableRandom;
+
+// Writes a transaction CSV in the import format with a fixed seed, so the same
+// arguments always produce the same file. Bills have a few lines each, item
+// codes are skewed towards popular items, and most rows carry a correct
+// checksum. About 1% of rows are sold at cost, and a configurable share is
+// invalid in one of the ways the validator checks for or does not parse.
+public final class SyntheticCsvGenerator {
+    private static final String HEADER = "BillID,ItemCode,InternalPrice,Discount,SalePrice,Quantity,LineTotal,Checksum";
+    private static final int ITEM_CODES = 5000;
+
+    private final SplittableRandom random;
+    private final double invalidShare;
+
+    public SyntheticCsvGenerator(long seed, double invalidShare) {
+        this.random = new SplittableRandom(seed);
+        this.invalidShare = invalidShare;
+    }
+
+    // usage: SyntheticCsvGenerator <file> <rows> [seed] [invalid share]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: SyntheticCsvGenerator <file> <rows> [seed] [invalid share]");
+            System.exit(2);
+        }
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        double invalidShare = args.length > 3 ? Double.parseDouble(args[3]) : 0.05;
+        new SyntheticCsvGenerator(seed, invalidShare).write(new File(args[0]), Integer.parseInt(args[1]));
+    }
+
+    public void write(File file, int rows) throws IOException {
+        // The importer reads with the platform charset
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), Charset.defaultCharset()), 1 << 16)) {
+            out.write(HEADER);
+            out.write('\n');
+            int written = 0;
+            int bill = 100000;
+            while (written < rows) {
+                int lines = Math.min(rows - written, 1 + random.nextInt(8));
+                for (int i = 0; i < lines; i++) {
+                    out.write(line("B" + bill));
+                    out.write('\n');
+                }
+                written += lines;
+                bill++;
+            }
+        }
+    }
+
+    private String line(String billNumber) {
+        // Squaring the uniform draw favours low item numbers, like best sellers
+        double u = random.nextDouble();
+        String itemCode = "ITEM_" + (int) (u * u * ITEM_CODES);
+        long internalCents = 100 + random.nextLong(99_900);
+        long saleCents = internalCents + internalCents * (5 + random.nextInt(60)) / 100;
+        long discountBasisPoints = random.nextInt(4) == 0 ? 0 : random.nextInt(3000);
+        int quantity = 1 + random.nextInt(100);
+
+        if (random.nextInt(100) == 0) {
+            // Sold at cost: a valid row with zero profit
+            saleCents = internalCents;
+            discountBasisPoints = 0;
+        } else if (random.nextDouble() < invalidShare) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    itemCode = itemCode.replace('_', '-');
+                    break;
+                case 1:
+                    // Sold below cost, so profit is negative
+                    saleCents = internalCents / 2;
+                    discountBasisPoints = 0;
+                    break;
+                case 2:
+                    int checksumError = 1 + random.nextInt(3);
+                    return row(billNumber, itemCode, internalCents, discountBasisPoints, saleCents,
+                            quantity, checksumError);
+                default:
+                    return billNumber + "," + itemCode + "," + cents(internalCents) + ",n/a," + cents(saleCents)
+                            + "," + quantity + ",0.00,0";
+            }
+        }
+        return row(billNumber, itemCode, internalCents, discountBasisPoints, saleCents, quantity, 0);
+    }
+
+    private static String row(String billNumber, String itemCode, long internalCents, long discountBasisPoints,
+                              long saleCents, int quantity, int checksumError) {
+        double internalPrice = internalCents / 100.0;
+        double discount = discountBasisPoints / 100.0;
+        double salePrice = saleCents / 100.0;
+        long rawTotalCents = Money.rawTotalCents(salePrice, discount, quantity, Money.DEFAULT_ROUNDING);
+        int checksum = ChecksumCalculator.checksum(itemCode, internalPrice, discount, salePrice,
+                quantity, rawTotalCents / 100.0);
+        return billNumber + "," + itemCode + "," + cents(internalCents) + "," + cents(discountBasisPoints) + ","
+                + cents(saleCents) + "," + quantity + "," + cents(rawTotalCents) + "," + (checksum + checksumError);
+    }
+
+    // "12.05" for 1205; every generated amount is positive
+    private static String cents(long cents) {
+        long fraction = cents % 100;
+        return (cents / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+}
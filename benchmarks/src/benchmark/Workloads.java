@@ -0,0 +1,124 @@
+package benchmark;
+
+import manager.TransactionField;
+import manager.ValidationRule;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Inputs shared by BenchmarkRunner and the JMH benchmarks: generated filings,
+// cached on disk between runs, their compressed copies and a set of rules
+public final class Workloads {
+    public static final int ZIP_ENTRIES = 4;
+    public static final double INVALID_SHARE = 0.05;
+
+    private Workloads() {
+    }
+
+    // The generated filing of the given size and seed, written on first use
+    public static File filing(File dir, int rows, long seed) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File csv = new File(dir, "transactions-" + rows + "-" + seed + ".csv");
+        if (!csv.exists()) {
+            new SyntheticCsvGenerator(seed, INVALID_SHARE).write(csv, rows);
+        }
+        return csv;
+    }
+
+    public static File defaultDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "tax-benchmarks");
+    }
+
+    // A gzip copy of the filing, written next to it on first use
+    public static File gzipOf(File csv) throws IOException {
+        File gzip = new File(csv.getPath() + ".gz");
+        if (!gzip.exists()) {
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip), 1 << 16)) {
+                Files.copy(csv.toPath(), out);
+            }
+        }
+        return gzip;
+    }
+
+    // A zip of the filing split into ZIP_ENTRIES parts of about equal size,
+    // each with the header, written next to it on first use
+    public static File zipOf(File csv) throws IOException {
+        String path = csv.getPath();
+        File zip = new File(path.substring(0, path.length() - ".csv".length()) + "-parts.zip");
+        if (zip.exists()) {
+            return zip;
+        }
+        long rows;
+        try (Stream<String> lines = Files.lines(csv.toPath())) {
+            rows = lines.count() - 1;
+        }
+        try (BufferedReader in = Files.newBufferedReader(csv.toPath());
+             ZipOutputStream zipped = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zip)));
+             Writer out = new OutputStreamWriter(zipped, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            for (int part = 0; part < ZIP_ENTRIES; part++) {
+                zipped.putNextEntry(new ZipEntry("part-" + (part + 1) + ".csv"));
+                out.write(header + "\n");
+                for (long row = rows * part / ZIP_ENTRIES; row < rows * (part + 1) / ZIP_ENTRIES; row++) {
+                    out.write(in.readLine() + "\n");
+                }
+                out.flush();
+                zipped.closeEntry();
+            }
+        }
+        return zip;
+    }
+
+    // Bounds, formats and per-item limits of the kinds a regulation asks for
+    public static List<ValidationRule> sampleRules() {
+        return List.of(
+                ValidationRule.range("Discount above 40%", TransactionField.DISCOUNT, 0, 40),
+                ValidationRule.range("Sale price out of range", TransactionField.SALE_PRICE, 0.01, 100_000),
+                ValidationRule.range("Internal price out of range", TransactionField.INTERNAL_PRICE, 0, 100_000),
+                ValidationRule.range("Quantity out of range", TransactionField.QUANTITY, 1, 10_000),
+                ValidationRule.range("Line total out of range", TransactionField.RAW_TOTAL, 0, 10_000_000),
+                ValidationRule.range("Profit above 1,000,000", TransactionField.PROFIT, -1e12, 1_000_000),
+                ValidationRule.matches("Bill number format", TransactionField.BILL_NUMBER, "B[0-9]+"),
+                ValidationRule.matches("Item code format", TransactionField.ITEM_CODE, "ITEM_[0-9]+"),
+                ValidationRule.perItemLimit("Quantity above item limit", TransactionField.QUANTITY,
+                        Map.of("ITEM_1", 50.0, "ITEM_2", 50.0, "ITEM_3", 50.0)),
+                ValidationRule.perItemLimit("Discount above item cap", TransactionField.DISCOUNT,
+                        Map.of("ITEM_10", 5.0, "ITEM_20", 5.0)));
+    }
+
+    // The importer reports every line it cannot parse on standard output,
+    // and the generated filings have such lines on purpose. Returns the
+    // stream that was standard output, for the report.
+    public static PrintStream silenceStandardOutput() {
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return report;
+    }
+
+    // Deletes the files of a directory, e.g. a FingerprintIndex
+    public static void clear(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package benchmark.jmh;
+
+import manager.TransactionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Deleting the zero-profit rows of a freshly loaded filing. Destructive, so
+// every invocation gets its own load, which is not timed; one invocation is
+// long enough for the per-invocation setup not to skew it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class DeleteBenchmark {
+    private TransactionManager manager;
+
+    @Setup(Level.Invocation)
+    public void load(Filing filing) throws IOException {
+        discardJournal(filing);
+        manager = new TransactionManager();
+        manager.loadTransactionsFromCSV(filing.csv.getPath());
+        manager.calculateProfits();
+    }
+
+    // The deletes are journaled, and the next load would replay them
+    @TearDown(Level.Invocation)
+    public void discardJournal(Filing filing) throws IOException {
+        if (manager != null) {
+            manager.closeJournal();
+        }
+        Files.deleteIfExists(TransactionManager.journalFileOf(filing.csv.getPath()).toPath());
+    }
+
+    @Benchmark
+    public int deleteZeroProfitTransactions() {
+        manager.deleteZeroProfitTransactions();
+        return manager.getStore().liveSize();
+    }
+}
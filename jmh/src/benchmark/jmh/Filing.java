@@ -0,0 +1,41 @@
+package benchmark.jmh;
+
+import Model.TransactionStore;
+import benchmark.Workloads;
+import manager.TransactionManager;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// A generated filing of each size, loaded and validated once per trial. The
+// files are kept in the temporary directory between runs.
+@State(Scope.Benchmark)
+public class Filing {
+    static final long SEED = 42;
+    static final double TAX_RATE = 15;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int rows;
+
+    File csv;
+    TransactionManager loaded;
+    TransactionStore store;
+
+    @Setup
+    public void load() throws IOException {
+        Workloads.silenceStandardOutput();
+        csv = Workloads.filing(Workloads.defaultDirectory(), rows, SEED);
+        // A load replays the edit journal of the file, so none may be left
+        // over from an earlier run
+        Files.deleteIfExists(TransactionManager.journalFileOf(csv.getPath()).toPath());
+        loaded = new TransactionManager();
+        loaded.loadTransactionsFromCSV(csv.getPath());
+        loaded.validateTransactions();
+        store = loaded.getStore();
+    }
+}
@@ -0,0 +1,56 @@
+package benchmark.jmh;
+
+import benchmark.Workloads;
+import manager.FingerprintIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// The duplicate check of a load, in an index of its own per invocation: a
+// filing whose lines are all new, or one replaying an earlier filing
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class FingerprintBenchmark {
+    @Param({"false", "true"})
+    public boolean replay;
+
+    private final File directory = new File(Workloads.defaultDirectory(), "fingerprint-index");
+    private FingerprintIndex index;
+
+    @Setup(Level.Invocation)
+    public void open(Filing filing) throws IOException {
+        Workloads.clear(directory);
+        index = FingerprintIndex.open(directory);
+        if (replay) {
+            index.checkAndRecord(filing.store, "earlier");
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public int checkAndRecord(Filing filing) throws IOException {
+        return index.checkAndRecord(filing.store, "filing").cardinality();
+    }
+}
@@ -0,0 +1,70 @@
+package benchmark.jmh;
+
+import benchmark.Workloads;
+import manager.StreamingTaxCalculator;
+import manager.TransactionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Loading a filing from its CSV, a gzip copy and a zip of its parts, and the
+// one-pass StreamingTaxCalculator over the CSV
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ImportBenchmark {
+    private String csv;
+    private String gzip;
+    private String zip;
+
+    @Setup
+    public void compress(Filing filing) throws IOException {
+        csv = filing.csv.getPath();
+        gzip = Workloads.gzipOf(filing.csv).getPath();
+        zip = Workloads.zipOf(filing.csv).getPath();
+        for (String path : new String[]{gzip, zip}) {
+            Files.deleteIfExists(TransactionManager.journalFileOf(path).toPath());
+        }
+    }
+
+    @Benchmark
+    public int loadCsv() {
+        return load(csv);
+    }
+
+    @Benchmark
+    public int loadGzip() {
+        return load(gzip);
+    }
+
+    @Benchmark
+    public int loadZip() {
+        return load(zip);
+    }
+
+    private static int load(String path) {
+        TransactionManager manager = new TransactionManager();
+        manager.loadTransactionsFromCSV(path);
+        return manager.getStore().size();
+    }
+
+    @Benchmark
+    public long streamingTax() throws IOException {
+        return new StreamingTaxCalculator().calculate(new File(csv), Filing.TAX_RATE).getTaxCents();
+    }
+}
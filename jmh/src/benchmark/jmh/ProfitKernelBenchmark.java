@@ -0,0 +1,56 @@
+package benchmark.jmh;
+
+import Model.Money;
+import Model.TransactionStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// The profit of every row as it was computed in double before Money
+// existed, against the fixed-point Money.profitCents that replaced it. Both
+// run over the columns directly, without the manager around them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ProfitKernelBenchmark {
+
+    @Benchmark
+    public double doubleProfits(Filing filing) {
+        TransactionStore store = filing.store;
+        double sum = 0;
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            for (int i = 0; i < chunk.size; i++) {
+                double discountAmount = chunk.salePrice[i] * (chunk.discount[i] / 100.0);
+                double discountedSalePrice = chunk.salePrice[i] - discountAmount;
+                sum += (discountedSalePrice - chunk.internalPrice[i]) * chunk.quantity[i];
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long fixedPointProfits(Filing filing) {
+        TransactionStore store = filing.store;
+        long sum = 0;
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            for (int i = 0; i < chunk.size; i++) {
+                sum += Money.profitCents(chunk.salePrice[i], chunk.discount[i], chunk.internalPrice[i],
+                        chunk.quantity[i], Money.DEFAULT_ROUNDING);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,71 @@
+package benchmark.jmh;
+
+import manager.RowFilter;
+import manager.RowSorter;
+import manager.SortKey;
+import manager.TransactionField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// What the UI asks of a loaded filing: the tax, group totals, and the rows a
+// filter or a click on a column header shows. Times are in microseconds, as
+// the tax is answered from running totals.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class QueryBenchmark {
+    private final RowFilter lossOrInvalid = RowFilter.invalid().or(RowFilter.below(TransactionField.PROFIT, 0));
+    private final RowSorter sorter = new RowSorter();
+    private final List<SortKey> byItemAndProfit = List.of(SortKey.ascending(TransactionField.ITEM_CODE),
+            SortKey.descending(TransactionField.PROFIT));
+    private int[] shown;
+    private int taxRate;
+
+    @Setup
+    public void select(Filing filing) {
+        shown = RowFilter.valid().or(RowFilter.invalid()).select(filing.store, 0, filing.store.size());
+    }
+
+    @Benchmark
+    public long calculateFinalTax(Filing filing) {
+        // A different rate each call, so nothing can be cached
+        return filing.loaded.calculateFinalTaxCents(15 + (taxRate++ & 7));
+    }
+
+    @Benchmark
+    public int aggregateByBillNumber(Filing filing) {
+        return filing.loaded.aggregate(TransactionField.BILL_NUMBER, false).size();
+    }
+
+    @Benchmark
+    public int aggregateByItemCode(Filing filing) {
+        return filing.loaded.aggregate(TransactionField.ITEM_CODE, false).size();
+    }
+
+    @Benchmark
+    public int rowFilterSelect(Filing filing) {
+        return lossOrInvalid.select(filing.store, 0, filing.store.size()).length;
+    }
+
+    // Sorts the already sorted rows after the first invocation, as the table
+    // does when the same header is clicked again
+    @Benchmark
+    public int[] rowSorterSort(Filing filing) {
+        sorter.sort(filing.store, shown, byItemAndProfit);
+        return shown;
+    }
+}
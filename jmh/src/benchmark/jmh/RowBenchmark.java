@@ -0,0 +1,54 @@
+package benchmark.jmh;
+
+import Model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Profits of every row, and the per-row calls the table makes. The per-row
+// calls run over at most ROWS_PER_CALL rows per invocation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class RowBenchmark {
+    private static final int ROWS_PER_CALL = 1_000_000;
+
+    private int callRows;
+
+    @Setup
+    public void limit(Filing filing) {
+        callRows = Math.min(filing.store.size(), ROWS_PER_CALL);
+    }
+
+    @Benchmark
+    public void calculateProfits(Filing filing) {
+        filing.loaded.calculateProfits();
+    }
+
+    @Benchmark
+    public void validateSingleTransaction(Filing filing) {
+        for (int row = 0; row < callRows; row++) {
+            filing.loaded.validateSingleTransaction(new Transaction(filing.store, row));
+        }
+    }
+
+    @Benchmark
+    public void calculateCurrentChecksum(Filing filing, Blackhole blackhole) {
+        for (int row = 0; row < callRows; row++) {
+            blackhole.consume(filing.loaded.calculateCurrentChecksum(new Transaction(filing.store, row)));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package benchmark.jmh;
+
+import benchmark.Workloads;
+import manager.ValidationRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// The validation pass over every row, with and without registered rules
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ValidationBenchmark {
+    // Registered rules, which should cost far less than as many more passes
+    @Param({"0", "10"})
+    public int rules;
+
+    @Setup
+    public void register(Filing filing) {
+        for (ValidationRule rule : Workloads.sampleRules().subList(0, rules)) {
+            filing.loaded.addValidationRule(rule);
+        }
+    }
+
+    @Benchmark
+    public int validateTransactions(Filing filing) {
+        return filing.loaded.validateTransactions().getValid();
+    }
+}
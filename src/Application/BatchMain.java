@@ -0,0 +1,132 @@
+package Application;
+
+import manager.BatchProcessor;
+import manager.FingerprintIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Headless entry point: processes every CSV file of a directory with the
+// same pipeline as the UI, without loading JavaFX. Filings compressed as
+// .csv.gz or .zip are read as well.
+//
+// usage: BatchMain <directory> --tax-rate <percent> [--workers <n>]
+//                  [--job-memory-mb <mb>] [--snapshots] [--streaming] [--out <file>]
+//                  [--fingerprints <directory>]
+// Summary lines go to standard output unless --out is given; notices and
+// parse errors from the pipeline go to standard error. The exit code
+// is 1 when any filing failed. --streaming computes the tax of each filing
+// in one pass without loading it, for filings larger than the heap.
+// --fingerprints checks the lines of every filing against those filed
+// before, as recorded in the index kept in that directory, and adds them;
+// it needs the filings loaded, so it cannot be used with --streaming.
+public class BatchMain {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            usage("Missing directory");
+        }
+        File directory = new File(args[0]);
+        Double taxRate = null;
+        int workers = Runtime.getRuntime().availableProcessors();
+        Long jobMemoryMb = null;
+        boolean snapshots = false;
+        boolean streaming = false;
+        String outPath = null;
+        File fingerprintDirectory = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--tax-rate":
+                    taxRate = Double.parseDouble(value(args, ++i));
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--job-memory-mb":
+                    jobMemoryMb = Long.parseLong(value(args, ++i));
+                    break;
+                case "--snapshots":
+                    snapshots = true;
+                    break;
+                case "--streaming":
+                    streaming = true;
+                    break;
+                case "--out":
+                    outPath = value(args, ++i);
+                    break;
+                case "--fingerprints":
+                    fingerprintDirectory = new File(value(args, ++i));
+                    break;
+                default:
+                    usage("Unknown option " + args[i]);
+            }
+        }
+        if (taxRate == null) {
+            usage("Missing --tax-rate");
+        }
+        if (streaming && fingerprintDirectory != null) {
+            usage("--fingerprints cannot be used with --streaming");
+        }
+        File[] files = directory.listFiles((dir, name) -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            return lower.endsWith(".csv") || lower.endsWith(".csv.gz") || lower.endsWith(".zip");
+        });
+        if (files == null) {
+            usage("Not a directory: " + directory);
+        }
+        Arrays.sort(files);
+
+        // By default the workers share three quarters of the heap evenly
+        long jobMemory = jobMemoryMb != null ? jobMemoryMb << 20
+                : Runtime.getRuntime().maxMemory() / 4 * 3 / workers;
+        if (!streaming && jobMemory * workers > Runtime.getRuntime().maxMemory()) {
+            System.err.println("Warning: " + workers + " jobs of " + (jobMemory >> 20)
+                    + " MB may not fit in the heap; raise -Xmx or lower --workers");
+        }
+
+        // The manager prints its notices on standard output, which would mix
+        // them into the JSON lines
+        PrintStream summaries = System.out;
+        System.setOut(System.err);
+
+        List<File> filings = Arrays.asList(files);
+        BatchProcessor.Summary summary;
+        try (FingerprintIndex fingerprints = fingerprintDirectory == null ? null
+                : FingerprintIndex.open(fingerprintDirectory)) {
+            if (outPath == null) {
+                BatchProcessor processor = new BatchProcessor(workers, jobMemory, taxRate, snapshots, streaming,
+                        summaries);
+                processor.setFingerprintIndex(fingerprints);
+                summary = processor.run(filings);
+            } else {
+                try (PrintStream out = new PrintStream(new FileOutputStream(outPath), true, "UTF-8")) {
+                    BatchProcessor processor = new BatchProcessor(workers, jobMemory, taxRate, snapshots, streaming,
+                            out);
+                    processor.setFingerprintIndex(fingerprints);
+                    summary = processor.run(filings);
+                }
+            }
+        }
+        System.exit(summary.getFailed() > 0 ? 1 : 0);
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            usage("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("usage: BatchMain <directory> --tax-rate <percent> [--workers <n>]"
+                + " [--job-memory-mb <mb>] [--snapshots] [--streaming] [--out <file>]"
+                + " [--fingerprints <directory>]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,79 @@
+package Application;
+
+import manager.SubmissionServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+// Headless entry point: serves filing uploads on the loopback interface,
+// see SubmissionServer, until the process is stopped.
+//
+// usage: SubmissionMain --tax-rate <percent> [--port <n>] [--max-upload-mb <mb>]
+//                       [--memory-mb <mb>] [--admission-wait-ms <ms>]
+// The tax rate is the default for uploads that do not give one. By default
+// the uploads share three quarters of the heap and may each be a quarter
+// of that.
+public class SubmissionMain {
+
+    public static void main(String[] args) throws IOException {
+        Double taxRate = null;
+        int port = 8080;
+        Long maxUploadMb = null;
+        Long memoryMb = null;
+        long admissionWaitMs = 2000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--tax-rate":
+                    taxRate = Double.parseDouble(value(args, ++i));
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--max-upload-mb":
+                    maxUploadMb = Long.parseLong(value(args, ++i));
+                    break;
+                case "--memory-mb":
+                    memoryMb = Long.parseLong(value(args, ++i));
+                    break;
+                case "--admission-wait-ms":
+                    admissionWaitMs = Long.parseLong(value(args, ++i));
+                    break;
+                default:
+                    usage("Unknown option " + args[i]);
+            }
+        }
+        if (taxRate == null) {
+            usage("Missing --tax-rate");
+        }
+
+        long memory = memoryMb != null ? memoryMb << 20 : Runtime.getRuntime().maxMemory() / 4 * 3;
+        long maxUpload = maxUploadMb != null ? maxUploadMb << 20 : memory / 4 / 3;
+        SubmissionServer server;
+        try {
+            server = new SubmissionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    taxRate, maxUpload, memory, admissionWaitMs);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage() + "; raise -Xmx or --memory-mb, or lower --max-upload-mb");
+            return;
+        }
+        server.start();
+        System.err.println("Listening on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/filings, uploads up to " + (maxUpload >> 20)
+                + " MB, " + (memory >> 20) + " MB budget");
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            usage("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("usage: SubmissionMain --tax-rate <percent> [--port <n>] [--max-upload-mb <mb>]"
+                + " [--memory-mb <mb>] [--admission-wait-ms <ms>]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,167 @@
+package Model;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+// Fixed-point money arithmetic. Amounts are longs in cents and rates
+// (discounts, tax) are longs in basis points, i.e. hundredths of a percent.
+// Every calculation works on exact integers and rounds once at the end with
+// an explicit RoundingMode, so results do not depend on evaluation order and
+// are reproducible to the cent. Values that do not fit, and NaN or infinite
+// inputs, become NOT_REPRESENTABLE.
+public final class Money {
+    public static final long NOT_REPRESENTABLE = Long.MIN_VALUE;
+    public static final long BASIS_POINTS = 10_000;
+    public static final RoundingMode DEFAULT_ROUNDING = RoundingMode.HALF_UP;
+
+    private static final BigDecimal BIG_BASIS_POINTS = BigDecimal.valueOf(BASIS_POINTS);
+    // Below this many cents every whole number of cents is an exact double
+    private static final double FAST_PATH_LIMIT = 1e15;
+    // Relative distance from a whole cent covered by rounding of the parse
+    // and the multiplication by 100
+    private static final double CENT_TOLERANCE = 0x1p-50;
+
+    private Money() {
+    }
+
+    // Amount in cents of a decimal value such as a parsed "12.50"
+    public static long toCents(double value, RoundingMode mode) {
+        double scaled = value * 100;
+        if (Math.abs(scaled) < FAST_PATH_LIMIT) {
+            long cents = (long) Math.rint(scaled);
+            if (isHalfMode(mode)) {
+                // A value written with at most two decimals lands within a few ulps
+                // of a whole number of cents. Anything else that close is so near
+                // that cent that every half-* mode rounds it there as well.
+                if (Math.abs(scaled - cents) <= Math.abs(scaled) * CENT_TOLERANCE) {
+                    return cents;
+                }
+            } else if (cents / 100.0 == value) {
+                // Directed modes need the exact test: the double nearest to
+                // cents / 100 is precisely the one written with two decimals
+                return cents;
+            }
+        }
+        return scale(value, 2, mode);
+    }
+
+    private static boolean isHalfMode(RoundingMode mode) {
+        return mode == RoundingMode.HALF_UP || mode == RoundingMode.HALF_EVEN || mode == RoundingMode.HALF_DOWN;
+    }
+
+    // Rate in basis points of a percentage such as a parsed "12.5"
+    public static long toBasisPoints(double percent, RoundingMode mode) {
+        return toCents(percent, mode);
+    }
+
+    public static double toDouble(long cents) {
+        return cents == NOT_REPRESENTABLE ? Double.NaN : cents / 100.0;
+    }
+
+    // The value's shortest decimal form, rounded to the given decimals
+    private static long scale(double value, int decimals, RoundingMode mode) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return NOT_REPRESENTABLE;
+        }
+        return toLong(BigDecimal.valueOf(value).setScale(decimals, mode).unscaledValue());
+    }
+
+    // (salePrice - salePrice * discount% - internalPrice) * quantity in cents
+    public static long profitCents(double salePrice, double discount, double internalPrice,
+                                   int quantity, RoundingMode mode) {
+        long sale = toCents(salePrice, mode);
+        long rate = toBasisPoints(discount, mode);
+        long cost = toCents(internalPrice, mode);
+        if (sale == NOT_REPRESENTABLE || rate == NOT_REPRESENTABLE || cost == NOT_REPRESENTABLE) {
+            return NOT_REPRESENTABLE;
+        }
+        try {
+            // In units of 1/10000 cent, so nothing is rounded before the end
+            long unitProfit = Math.subtractExact(
+                    Math.multiplyExact(sale, BASIS_POINTS - rate),
+                    Math.multiplyExact(cost, BASIS_POINTS));
+            return productInBasisPoints(unitProfit, quantity, mode);
+        } catch (ArithmeticException e) {
+            BigInteger basisPoints = BigInteger.valueOf(BASIS_POINTS);
+            BigInteger unitProfit = BigInteger.valueOf(sale).multiply(basisPoints.subtract(BigInteger.valueOf(rate)))
+                    .subtract(BigInteger.valueOf(cost).multiply(basisPoints));
+            return divide(unitProfit.multiply(BigInteger.valueOf(quantity)), mode);
+        }
+    }
+
+    // (salePrice - salePrice * discount%) * quantity in cents
+    public static long rawTotalCents(double salePrice, double discount, int quantity, RoundingMode mode) {
+        return profitCents(salePrice, discount, 0, quantity, mode);
+    }
+
+    // amount * rate in cents, with the rate in basis points
+    public static long applyRate(long cents, long basisPoints, RoundingMode mode) {
+        if (cents == NOT_REPRESENTABLE || basisPoints == NOT_REPRESENTABLE) {
+            return NOT_REPRESENTABLE;
+        }
+        return productInBasisPoints(cents, basisPoints, mode);
+    }
+
+    // Same for an amount that may not fit in a long, such as a filing total
+    public static long applyRate(BigInteger cents, long basisPoints, RoundingMode mode) {
+        if (cents.bitLength() < Long.SIZE) {
+            return applyRate(cents.longValue(), basisPoints, mode);
+        }
+        if (basisPoints == NOT_REPRESENTABLE) {
+            return NOT_REPRESENTABLE;
+        }
+        return divide(cents.multiply(BigInteger.valueOf(basisPoints)), mode);
+    }
+
+    // a * b / 10000 rounded once
+    private static long productInBasisPoints(long a, long b, RoundingMode mode) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        if (high != (low >> 63)) {
+            return divide(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)), mode);
+        }
+        long quotient = low / BASIS_POINTS;
+        long remainder = low % BASIS_POINTS;
+        if (remainder == 0) {
+            return quotient;
+        }
+        return quotient + roundingStep(quotient, remainder, BASIS_POINTS, mode);
+    }
+
+    // 0 or the sign of the exact quotient, whichever the rounding mode picks;
+    // quotient is truncated toward zero and remainder has the dividend's sign
+    private static long roundingStep(long quotient, long remainder, long divisor, RoundingMode mode) {
+        int sign = remainder < 0 ? -1 : 1;
+        long twice = 2 * Math.abs(remainder);
+        switch (mode) {
+            case UP:
+                return sign;
+            case DOWN:
+                return 0;
+            case CEILING:
+                return sign > 0 ? 1 : 0;
+            case FLOOR:
+                return sign < 0 ? -1 : 0;
+            case HALF_UP:
+                return twice >= divisor ? sign : 0;
+            case HALF_DOWN:
+                return twice > divisor ? sign : 0;
+            case HALF_EVEN:
+                return twice > divisor || (twice == divisor && (quotient & 1) != 0) ? sign : 0;
+            default:
+                throw new ArithmeticException("Rounding necessary");
+        }
+    }
+
+    // Units of 1/10000 cent to cents, for results that overflow a long on the way
+    private static long divide(BigInteger units, RoundingMode mode) {
+        return toLong(new BigDecimal(units).divide(BIG_BASIS_POINTS, 0, mode).unscaledValue());
+    }
+
+    private static long toLong(BigInteger value) {
+        // NOT_REPRESENTABLE itself is Long.MIN_VALUE, so that is excluded too
+        return value.bitLength() < Long.SIZE && value.longValue() != NOT_REPRESENTABLE
+                ? value.longValue() : NOT_REPRESENTABLE;
+    }
+}
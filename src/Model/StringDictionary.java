@@ -0,0 +1,68 @@
+package Model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Maps repeated strings (bill numbers, item codes) to small int ids so a
+// column only has to store one int per row
+public class StringDictionary {
+    // Built on first use after restore(), which only sets the values
+    private Map<String, Integer> ids = new HashMap<>();
+    // Volatile so another thread decoding an id it was handed sees the value
+    private volatile String[] values = new String[16];
+    private int size;
+
+    public int encode(String value) {
+        Integer id = ids().get(value);
+        if (id != null) {
+            return id;
+        }
+        String[] current = values;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = value;
+        values = current;
+        ids.put(value, size);
+        return size++;
+    }
+
+    public String decode(int id) {
+        return values[id];
+    }
+
+    // Returns -1 when the value has never been encoded
+    public int lookup(String value) {
+        Integer id = ids().get(value);
+        return id == null ? -1 : id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Replaces the contents with values whose ids are their indexes, as
+    // written out by values(). The reverse map is rebuilt on first lookup.
+    void restore(String[] restored, int count) {
+        values = restored;
+        size = count;
+        ids = null;
+    }
+
+    // The first size() values, indexed by id
+    String[] values() {
+        return values;
+    }
+
+    private Map<String, Integer> ids() {
+        if (ids == null) {
+            Map<String, Integer> map = new HashMap<>(Math.max(16, size * 4 / 3 + 1));
+            for (int id = 0; id < size; id++) {
+                map.put(values[id], id);
+            }
+            ids = map;
+        }
+        return ids;
+    }
+}
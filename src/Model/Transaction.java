@@ -1,176 +1,227 @@
 package Model;
 
+// Lightweight view of one row in a TransactionStore. It holds no data of its
+// own; every getter and setter reads or writes the store's column arrays.
+// The view follows its row by id, so it stays on the same row when a
+// compaction renumbers the rows.
 public class Transaction {
-    private String billNumber;
-    private String itemCode;
-    private double internalPrice;
-    private double discount;
-    private double salePrice;
-    private int quantity;
-    private int importedChecksum;
-    private int currentChecksum;
-    private boolean valid;
-    private double profit;
-    private double rawTotal;
-
-    // Original values from CSV for comparison
-    private String originalInternalPrice;
-    private String originalDiscount;
-    private String originalSalePrice;
-    private String originalQuantity;
-    private String originalRawTotal;
+    private final TransactionStore store;
+    private final int id;
+    private int row;
+    // Store layout the row index was found in
+    private int layoutVersion;
 
+    public Transaction(TransactionStore store, int row) {
+        this.store = store;
+        this.id = store.getId(row);
+        this.row = row;
+        this.layoutVersion = store.layoutVersion();
+    }
+
+    // Creates a standalone transaction backed by its own single-row store
     public Transaction(String billNumber, String itemCode,
                        double internalPrice, double discount, double salePrice,
                        int quantity, int checksum,
                        String originalInternalPrice, String originalDiscount,
                        String originalSalePrice, String originalQuantity) {
-        this.billNumber = billNumber;
-        this.itemCode = itemCode;
-        this.internalPrice = internalPrice;
-        this.discount = discount;
-        this.salePrice = salePrice;
-        this.quantity = quantity;
-        this.importedChecksum = checksum;
-        this.currentChecksum = checksum; // Initially same as imported
-        this.valid = true; // Default to valid
+        this.store = new TransactionStore();
+        this.row = store.addRow(billNumber, itemCode, internalPrice, discount, salePrice,
+                quantity, checksum, 0);
+        this.id = store.getId(row);
+        this.layoutVersion = store.layoutVersion();
 
         // Store original string values
-        this.originalInternalPrice = originalInternalPrice;
-        this.originalDiscount = originalDiscount;
-        this.originalSalePrice = originalSalePrice;
-        this.originalQuantity = originalQuantity;
+        store.setOriginals(row, originalInternalPrice, originalDiscount,
+                originalSalePrice, originalQuantity, null);
+    }
+
+    public TransactionStore getStore() {
+        return store;
+    }
+
+    // Current index of the row, or -1 once a compaction has dropped it
+    public int getRow() {
+        return row();
+    }
+
+    private int row() {
+        if (layoutVersion != store.layoutVersion()) {
+            row = store.rowOfId(id);
+            layoutVersion = store.layoutVersion();
+        }
+        return row;
+    }
+
+    // Stable id of the row; unlike the row index it survives compaction
+    public int getId() {
+        return id;
+    }
+
+    public boolean isDeleted() {
+        int row = row();
+        return row < 0 || store.isDeleted(row);
     }
 
     // Getters and setters
     public String getBillNumber() {
-        return billNumber;
+        return store.getBillNumber(row());
     }
 
     public void setBillNumber(String billNumber) {
-        this.billNumber = billNumber;
+        store.setBillNumber(row(), billNumber);
     }
 
     public String getItemCode() {
-        return itemCode;
+        return store.getItemCode(row());
     }
 
     public void setItemCode(String itemCode) {
-        this.itemCode = itemCode;
+        store.setItemCode(row(), itemCode);
     }
 
     public double getInternalPrice() {
-        return internalPrice;
+        return store.getInternalPrice(row());
     }
 
     public void setInternalPrice(double internalPrice) {
-        this.internalPrice = internalPrice;
+        store.setInternalPrice(row(), internalPrice);
     }
 
     public double getDiscount() {
-        return discount;
+        return store.getDiscount(row());
     }
 
     public void setDiscount(double discount) {
-        this.discount = discount;
+        store.setDiscount(row(), discount);
     }
 
     public double getSalePrice() {
-        return salePrice;
+        return store.getSalePrice(row());
     }
 
     public void setSalePrice(double salePrice) {
-        this.salePrice = salePrice;
+        store.setSalePrice(row(), salePrice);
     }
 
     public int getQuantity() {
-        return quantity;
+        return store.getQuantity(row());
     }
 
     public void setQuantity(int quantity) {
-        this.quantity = quantity;
+        store.setQuantity(row(), quantity);
     }
 
     public int getImportedChecksum() {
-        return importedChecksum;
+        return store.getImportedChecksum(row());
     }
 
     public void setImportedChecksum(int importedChecksum) {
-        this.importedChecksum = importedChecksum;
+        store.setImportedChecksum(row(), importedChecksum);
     }
 
     public int getCurrentChecksum() {
-        return currentChecksum;
+        return store.getCurrentChecksum(row());
     }
 
     public void setCurrentChecksum(int currentChecksum) {
-        this.currentChecksum = currentChecksum;
+        store.setCurrentChecksum(row(), currentChecksum);
     }
 
     // For backward compatibility with existing code
     public int getChecksum() {
-        return currentChecksum;
+        return store.getCurrentChecksum(row());
     }
 
     public boolean isValid() {
-        return valid;
+        return store.isValid(row());
     }
 
     public void setValid(boolean valid) {
-        this.valid = valid;
+        store.setValid(row(), valid);
+    }
+
+    // Bit set of the validation checks this transaction failed
+    public int getValidationFailures() {
+        return store.getFailures(row());
+    }
+
+    public void setValidationFailures(int failures) {
+        store.setFailures(row(), failures);
     }
 
     public double getProfit() {
-        return profit;
+        return store.getProfit(row());
     }
 
     public void setProfit(double profit) {
-        this.profit = profit;
+        store.setProfit(row(), profit);
+    }
+
+    public long getProfitCents() {
+        return store.getProfitCents(row());
+    }
+
+    public void setProfitCents(long profitCents) {
+        store.setProfitCents(row(), profitCents);
     }
 
     public double getRawTotal() {
-        return rawTotal;
+        return store.getRawTotal(row());
     }
 
     public void setRawTotal(double rawTotal) {
-        this.rawTotal = rawTotal;
+        store.setRawTotal(row(), rawTotal);
     }
 
     public String getOriginalInternalPrice() {
-        return originalInternalPrice;
+        return store.getOriginal(row(), TransactionStore.ORIGINAL_INTERNAL_PRICE);
     }
 
     public String getOriginalDiscount() {
-        return originalDiscount;
+        return store.getOriginal(row(), TransactionStore.ORIGINAL_DISCOUNT);
     }
 
     public String getOriginalSalePrice() {
-        return originalSalePrice;
+        return store.getOriginal(row(), TransactionStore.ORIGINAL_SALE_PRICE);
     }
 
     public String getOriginalQuantity() {
-        return originalQuantity;
+        return store.getOriginal(row(), TransactionStore.ORIGINAL_QUANTITY);
     }
 
     public String getOriginalRawTotal() {
-        return originalRawTotal;
+        return store.getOriginal(row(), TransactionStore.ORIGINAL_RAW_TOTAL);
     }
 
     public void setOriginalRawTotal(String originalRawTotal) {
-        this.originalRawTotal = originalRawTotal;
+        store.setOriginalRawTotal(row(), originalRawTotal);
+    }
+
+    // Two views are equal when they point at the same row of the same store
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Transaction)) return false;
+        Transaction other = (Transaction) o;
+        return store == other.store && id == other.id;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(store) + id;
     }
 
     @Override
     public String toString() {
         return "Transaction{" +
-                "billNumber='" + billNumber + '\'' +
-                ", itemCode='" + itemCode + '\'' +
-                ", internalPrice=" + internalPrice +
-                ", discount=" + discount +
-                ", salePrice=" + salePrice +
-                ", quantity=" + quantity +
-                ", valid=" + valid +
-                ", profit=" + profit +
+                "billNumber='" + getBillNumber() + '\'' +
+                ", itemCode='" + getItemCode() + '\'' +
+                ", internalPrice=" + getInternalPrice() +
+                ", discount=" + getDiscount() +
+                ", salePrice=" + getSalePrice() +
+                ", quantity=" + getQuantity() +
+                ", valid=" + isValid() +
+                ", profit=" + getProfit() +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,461 @@
+package Model;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Binary snapshot of a TransactionStore, so a filing that was imported (and
+// validated) once can be reopened without parsing the CSV file again.
+//
+// Layout, little-endian, every section starting on an 8-byte boundary:
+//   header        magic, version, rounding mode, size, modification time and
+//                 content hash of the source CSV, row counts, offsets
+//   directory     offset, row count and literal text size of every chunk
+//   dictionaries  bill numbers, then item codes: the end offset of every
+//                 value, then the values as UTF-8
+//   chunks        every column of a chunk as a fixed-width primitive array,
+//                 one chunk after another
+// A snapshot is written to a temporary file and renamed into place, so a
+// reader never sees a partial one. It is read by memory-mapping the file and
+// bulk-copying every column into the chunk arrays, chunks in parallel.
+public final class TransactionSnapshot {
+    // "TXSNAP" in the first bytes of the file
+    private static final long MAGIC = 0x0000_5041_4E53_5854L;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 80;
+    private static final int DIRECTORY_ENTRY_SIZE = 16;
+    private static final int NO_TEXT = -1;
+    private static final int HASH_WINDOW = 64 << 20;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private TransactionSnapshot() {
+    }
+
+    // Identity of a source file: its size, modification time and a 64-bit
+    // hash of its bytes. The hash detects changes, it is not cryptographic.
+    public static final class Source {
+        private final long length;
+        private final long lastModified;
+        private final long contentHash;
+
+        private Source(long length, long lastModified, long contentHash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+
+        // Size and modification time only, without reading the file
+        public static Source stat(File file) throws IOException {
+            return new Source(Files.size(file.toPath()),
+                    Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS), 0);
+        }
+
+        public static Source of(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                Source stat = stat(file);
+                return new Source(stat.length, stat.lastModified, contentHash(channel, stat.length));
+            }
+        }
+
+        // Same size and modification time
+        public boolean sameStat(Source other) {
+            return length == other.length && lastModified == other.lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        // In nanoseconds since the epoch
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    public static void write(TransactionStore store, Source source, RoundingMode rounding,
+                             File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        int chunkCount = store.chunkCount();
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output out = new Output(channel, HEADER_SIZE + (long) DIRECTORY_ENTRY_SIZE * chunkCount);
+            long dictionaries = out.position();
+            writeDictionary(out, store.getBillNumbers());
+            writeDictionary(out, store.getItemCodes());
+            long[] offsets = new long[chunkCount];
+            for (int c = 0; c < chunkCount; c++) {
+                offsets[c] = out.position();
+                writeChunk(out, store.chunk(c));
+            }
+            out.flush();
+
+            // The header goes last, once every offset is known
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + DIRECTORY_ENTRY_SIZE * chunkCount).order(ORDER);
+            head.putLong(MAGIC).putInt(VERSION).putInt(rounding.ordinal())
+                    .putLong(source.length).putLong(source.lastModified).putLong(source.contentHash)
+                    .putInt(store.size()).putInt(store.deletedCount()).putInt(store.idLimit()).putInt(chunkCount)
+                    .putInt(store.getBillNumbers().size()).putInt(store.getItemCodes().size())
+                    .putLong(dictionaries).putLong(out.position());
+            for (int c = 0; c < chunkCount; c++) {
+                TransactionStore.Chunk chunk = store.chunk(c);
+                head.putLong(offsets[c]).putInt(chunk.size).putInt(chunk.text == null ? NO_TEXT : chunk.textSize);
+            }
+            head.flip();
+            for (long pos = 0; head.hasRemaining(); ) {
+                pos += channel.write(head, pos);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeDictionary(Output out, StringDictionary dictionary) throws IOException {
+        String[] values = dictionary.values();
+        int count = dictionary.size();
+        byte[][] encoded = new byte[count][];
+        int[] ends = new int[count];
+        int end = 0;
+        for (int id = 0; id < count; id++) {
+            encoded[id] = values[id].getBytes(StandardCharsets.UTF_8);
+            end += encoded[id].length;
+            ends[id] = end;
+        }
+        out.ints(ends, count);
+        out.align();
+        for (byte[] value : encoded) {
+            out.bytes(value, value.length);
+        }
+        out.align();
+    }
+
+    private static void writeChunk(Output out, TransactionStore.Chunk chunk) throws IOException {
+        int n = chunk.size;
+        int words = (n + 63) >>> 6;
+        out.doubles(chunk.internalPrice, n);
+        out.doubles(chunk.discount, n);
+        out.doubles(chunk.salePrice, n);
+        out.longs(chunk.profitCents, n);
+        out.doubles(chunk.rawTotal, n);
+        out.longs(chunk.fingerprint, n);
+        out.longs(chunk.valid, words);
+        out.longs(chunk.deleted, words);
+        out.longs(chunk.literal, words);
+        out.ints(chunk.billNumber, n);
+        out.ints(chunk.itemCode, n);
+        out.ints(chunk.quantity, n);
+        out.ints(chunk.importedChecksum, n);
+        out.ints(chunk.currentChecksum, n);
+        out.ints(chunk.failures, n);
+        out.ints(chunk.id, n);
+        if (chunk.text != null) {
+            out.ints(chunk.textStart, n);
+            out.ints(chunk.textEnd, n);
+            out.bytes(chunk.text, chunk.textSize);
+        }
+        out.align();
+    }
+
+    // Returns null when the file is missing, is not a snapshot of this
+    // version, or was written for another source file or rounding mode.
+    // Throws IOException when it is a snapshot but damaged.
+    public static TransactionStore read(File file, File sourceFile, RoundingMode rounding) throws IOException {
+        if (!file.isFile() || !sourceFile.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileLength = channel.size();
+            if (fileLength < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ORDER);
+            if (head.getLong() != MAGIC || head.getInt() != VERSION || head.getInt() != rounding.ordinal()) {
+                return null;
+            }
+            long length = head.getLong();
+            long lastModified = head.getLong();
+            long contentHash = head.getLong();
+            // Size and time first; the file is only hashed when they still match
+            Source current = Source.stat(sourceFile);
+            if (!current.sameStat(new Source(length, lastModified, contentHash))
+                    || Source.of(sourceFile).contentHash != contentHash) {
+                return null;
+            }
+
+            int size = head.getInt();
+            int deletedCount = head.getInt();
+            int nextId = head.getInt();
+            int chunkCount = head.getInt();
+            int billCount = head.getInt();
+            int itemCount = head.getInt();
+            long dictionaries = head.getLong();
+            long end = head.getLong();
+            check(end == fileLength && size >= 0 && chunkCount == (size + TransactionStore.CHUNK_MASK)
+                    >>> TransactionStore.CHUNK_SHIFT && deletedCount >= 0 && deletedCount <= size);
+
+            long directoryEnd = HEADER_SIZE + (long) DIRECTORY_ENTRY_SIZE * chunkCount;
+            check(directoryEnd <= dictionaries && dictionaries <= fileLength);
+            ByteBuffer directory = map(channel, HEADER_SIZE, directoryEnd - HEADER_SIZE);
+            long[] offsets = new long[chunkCount];
+            int[] rows = new int[chunkCount];
+            int[] textSizes = new int[chunkCount];
+            for (int c = 0; c < chunkCount; c++) {
+                offsets[c] = directory.getLong();
+                rows[c] = directory.getInt();
+                textSizes[c] = directory.getInt();
+                int expected = c < chunkCount - 1 ? TransactionStore.CHUNK_SIZE
+                        : size - (c << TransactionStore.CHUNK_SHIFT);
+                check(rows[c] == expected && textSizes[c] >= NO_TEXT);
+            }
+
+            TransactionStore store = new TransactionStore();
+            ByteBuffer names = map(channel, dictionaries, (chunkCount > 0 ? offsets[0] : end) - dictionaries);
+            readDictionary(names, billCount, store.getBillNumbers());
+            readDictionary(names, itemCount, store.getItemCodes());
+
+            List<Callable<TransactionStore.Chunk>> tasks = new ArrayList<>(chunkCount);
+            for (int c = 0; c < chunkCount; c++) {
+                long chunkEnd = c + 1 < chunkCount ? offsets[c + 1] : end;
+                check(offsets[c] >= dictionaries && chunkEnd <= end
+                        && chunkEnd - offsets[c] >= chunkLength(rows[c], textSizes[c]));
+                ByteBuffer columns = map(channel, offsets[c], chunkEnd - offsets[c]);
+                int n = rows[c];
+                int textSize = textSizes[c];
+                tasks.add(() -> readChunk(columns, n, textSize, billCount, itemCount, nextId));
+            }
+            TransactionStore.Chunk[] chunks = new TransactionStore.Chunk[chunkCount];
+            List<Future<TransactionStore.Chunk>> done = ForkJoinPool.commonPool().invokeAll(tasks);
+            for (int c = 0; c < chunkCount; c++) {
+                chunks[c] = join(done.get(c));
+            }
+            store.restore(chunks, size, deletedCount, nextId);
+            return store;
+        }
+    }
+
+    private static void readDictionary(ByteBuffer in, int count, StringDictionary dictionary) throws IOException {
+        check(count >= 0 && (long) count * Integer.BYTES <= in.remaining());
+        int[] ends = new int[count];
+        in.asIntBuffer().get(ends);
+        skip(in, (long) count * Integer.BYTES);
+        align(in);
+        int total = count == 0 ? 0 : ends[count - 1];
+        check(total >= 0 && total <= in.remaining());
+        byte[] bytes = new byte[total];
+        in.get(bytes);
+        align(in);
+
+        String[] values = new String[Math.max(16, count)];
+        int start = 0;
+        for (int id = 0; id < count; id++) {
+            check(ends[id] >= start && ends[id] <= total);
+            values[id] = new String(bytes, start, ends[id] - start, StandardCharsets.UTF_8);
+            start = ends[id];
+        }
+        dictionary.restore(values, count);
+    }
+
+    private static TransactionStore.Chunk readChunk(ByteBuffer in, int n, int textSize,
+                                                    int billCount, int itemCount, int idLimit) throws IOException {
+        TransactionStore.Chunk chunk = new TransactionStore.Chunk(Math.max(16, n));
+        int words = (n + 63) >>> 6;
+        doubles(in, chunk.internalPrice, n);
+        doubles(in, chunk.discount, n);
+        doubles(in, chunk.salePrice, n);
+        longs(in, chunk.profitCents, n);
+        doubles(in, chunk.rawTotal, n);
+        longs(in, chunk.fingerprint, n);
+        longs(in, chunk.valid, words);
+        longs(in, chunk.deleted, words);
+        longs(in, chunk.literal, words);
+        ints(in, chunk.billNumber, n);
+        ints(in, chunk.itemCode, n);
+        ints(in, chunk.quantity, n);
+        ints(in, chunk.importedChecksum, n);
+        ints(in, chunk.currentChecksum, n);
+        ints(in, chunk.failures, n);
+        ints(in, chunk.id, n);
+        if (textSize != NO_TEXT) {
+            chunk.textStart = new int[chunk.capacity()];
+            chunk.textEnd = new int[chunk.capacity()];
+            chunk.text = new byte[textSize];
+            ints(in, chunk.textStart, n);
+            ints(in, chunk.textEnd, n);
+            in.get(chunk.text);
+            chunk.textSize = textSize;
+        }
+        // Dictionary ids and row ids index straight into arrays later on
+        for (int i = 0; i < n; i++) {
+            check(chunk.billNumber[i] >= 0 && chunk.billNumber[i] < billCount
+                    && chunk.itemCode[i] >= 0 && chunk.itemCode[i] < itemCount
+                    && chunk.id[i] >= 0 && chunk.id[i] < idLimit);
+        }
+        chunk.size = n;
+        return chunk;
+    }
+
+    private static long chunkLength(int n, int textSize) {
+        long words = (n + 63) >>> 6;
+        long length = 6L * Long.BYTES * n + 3 * Long.BYTES * words + 7L * Integer.BYTES * n;
+        if (textSize != NO_TEXT) {
+            length += 2L * Integer.BYTES * n + textSize;
+        }
+        return length;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        check(length >= 0 && length <= Integer.MAX_VALUE);
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ORDER);
+    }
+
+    private static void ints(ByteBuffer in, int[] column, int n) {
+        in.asIntBuffer().get(column, 0, n);
+        skip(in, (long) n * Integer.BYTES);
+    }
+
+    private static void longs(ByteBuffer in, long[] column, int n) {
+        in.asLongBuffer().get(column, 0, n);
+        skip(in, (long) n * Long.BYTES);
+    }
+
+    private static void doubles(ByteBuffer in, double[] column, int n) {
+        in.asDoubleBuffer().get(column, 0, n);
+        skip(in, (long) n * Double.BYTES);
+    }
+
+    private static void skip(ByteBuffer in, long bytes) {
+        in.position(in.position() + (int) bytes);
+    }
+
+    private static void align(ByteBuffer in) {
+        in.position(Math.min(in.limit(), (in.position() + 7) & ~7));
+    }
+
+    private static void check(boolean condition) throws IOException {
+        if (!condition) {
+            throw new IOException("Damaged transaction snapshot");
+        }
+    }
+
+    private static TransactionStore.Chunk join(Future<TransactionStore.Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading snapshot", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Damaged transaction snapshot", e.getCause());
+        }
+    }
+
+    // Word-at-a-time multiply/rotate hash over the mapped file
+    private static long contentHash(FileChannel channel, long size) throws IOException {
+        long hash = 0x9E3779B97F4A7C15L ^ size;
+        for (long position = 0; position < size; position += HASH_WINDOW) {
+            int length = (int) Math.min(HASH_WINDOW, size - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            window.order(ORDER);
+            int words = length >>> 3;
+            for (int i = 0; i < words; i++) {
+                hash = Long.rotateLeft(hash ^ window.getLong(i << 3) * 0xC2B2AE3D27D4EB4FL, 31)
+                        * 0x9E3779B185EBCA87L;
+            }
+            for (int i = words << 3; i < length; i++) {
+                hash = (hash ^ (window.get(i) & 0xFF)) * 0x9E3779B185EBCA87L;
+            }
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+    // Buffered positional writer that copies whole primitive arrays at a time
+    private static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ORDER);
+        private long flushed;
+
+        Output(FileChannel channel, long start) {
+            this.channel = channel;
+            this.flushed = start;
+        }
+
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        void ints(int[] values, int n) throws IOException {
+            for (int i = 0; i < n; ) {
+                int k = Math.min(n - i, room(Integer.BYTES));
+                buffer.asIntBuffer().put(values, i, k);
+                buffer.position(buffer.position() + k * Integer.BYTES);
+                i += k;
+            }
+        }
+
+        void longs(long[] values, int n) throws IOException {
+            for (int i = 0; i < n; ) {
+                int k = Math.min(n - i, room(Long.BYTES));
+                buffer.asLongBuffer().put(values, i, k);
+                buffer.position(buffer.position() + k * Long.BYTES);
+                i += k;
+            }
+        }
+
+        void doubles(double[] values, int n) throws IOException {
+            for (int i = 0; i < n; ) {
+                int k = Math.min(n - i, room(Double.BYTES));
+                buffer.asDoubleBuffer().put(values, i, k);
+                buffer.position(buffer.position() + k * Double.BYTES);
+                i += k;
+            }
+        }
+
+        void bytes(byte[] values, int n) throws IOException {
+            for (int i = 0; i < n; ) {
+                int k = Math.min(n - i, room(1));
+                buffer.put(values, i, k);
+                i += k;
+            }
+        }
+
+        void align() throws IOException {
+            while ((position() & 7) != 0) {
+                room(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        // Free space in whole values of the given width, flushing if there is none
+        private int room(int width) throws IOException {
+            if (buffer.remaining() < width) {
+                flush();
+            }
+            return buffer.remaining() / width;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer, flushed);
+            }
+            buffer.clear();
+        }
+    }
+}
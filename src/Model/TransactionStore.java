@@ -0,0 +1,712 @@
+package Model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+
+// Column-oriented storage for transactions. Every field lives in a primitive
+// array, split into fixed-size chunks so that growing the store never copies
+// rows that were already added. Bill numbers and item codes are dictionary
+// encoded, and validity is a packed bitset.
+//
+// A deleted row is only marked with a tombstone, so rows never move on a
+// single delete; compact() drops the tombstones in one pass. Every row also
+// has a stable id, its insertion number, that survives compaction. Ids
+// only grow with the row index, so a row can be found by its id.
+public class TransactionStore {
+    public static final int CHUNK_SHIFT = 16;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    public static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Index of each original CSV field inside the stored original text
+    public static final int ORIGINAL_INTERNAL_PRICE = 0;
+    public static final int ORIGINAL_DISCOUNT = 1;
+    public static final int ORIGINAL_SALE_PRICE = 2;
+    public static final int ORIGINAL_QUANTITY = 3;
+    public static final int ORIGINAL_RAW_TOTAL = 4;
+
+    private final Charset charset = Charset.defaultCharset();
+    private final StringDictionary billNumbers = new StringDictionary();
+    private final StringDictionary itemCodes = new StringDictionary();
+    // Volatile so a reader on another thread that was handed a row count always
+    // sees a directory with every chunk those rows were written to
+    private volatile Chunk[] chunks = new Chunk[0];
+    private int size;
+    private int deletedCount;
+    private int nextId;
+    // Bumped whenever rows are renumbered
+    private int layoutVersion;
+
+    // Column arrays for up to CHUNK_SIZE consecutive rows. Only the first chunk
+    // starts small; it is grown by replacing it with a larger copy, so an array
+    // handed out by a chunk is never resized underneath a reader.
+    public static final class Chunk {
+        public final int[] billNumber;
+        public final int[] itemCode;
+        public final double[] internalPrice;
+        public final double[] discount;
+        public final double[] salePrice;
+        public final int[] quantity;
+        public final int[] importedChecksum;
+        public final int[] currentChecksum;
+        // Profit in cents, see Money
+        public final long[] profitCents;
+        public final double[] rawTotal;
+        public final long[] valid;
+        // Bit set of the validation checks each row failed, 0 when it passed
+        public final int[] failures;
+        public final int[] id;
+        public final long[] deleted;
+        // Hash of the CSV line the row was imported from, see CsvLineParser;
+        // 0 for rows that did not come from a file
+        public final long[] fingerprint;
+
+        // Most CSV values are written as "12.50" / "3", which can be rebuilt from
+        // the parsed numbers. Only rows whose text differs keep a literal copy.
+        final long[] literal;
+        int[] textStart;
+        int[] textEnd;
+        byte[] text;
+        int textSize;
+
+        public int size;
+
+        Chunk(int capacity) {
+            billNumber = new int[capacity];
+            itemCode = new int[capacity];
+            internalPrice = new double[capacity];
+            discount = new double[capacity];
+            salePrice = new double[capacity];
+            quantity = new int[capacity];
+            importedChecksum = new int[capacity];
+            currentChecksum = new int[capacity];
+            profitCents = new long[capacity];
+            rawTotal = new double[capacity];
+            valid = new long[(capacity + 63) >>> 6];
+            failures = new int[capacity];
+            id = new int[capacity];
+            deleted = new long[(capacity + 63) >>> 6];
+            fingerprint = new long[capacity];
+            literal = new long[(capacity + 63) >>> 6];
+        }
+
+        Chunk(Chunk from, int capacity) {
+            billNumber = Arrays.copyOf(from.billNumber, capacity);
+            itemCode = Arrays.copyOf(from.itemCode, capacity);
+            internalPrice = Arrays.copyOf(from.internalPrice, capacity);
+            discount = Arrays.copyOf(from.discount, capacity);
+            salePrice = Arrays.copyOf(from.salePrice, capacity);
+            quantity = Arrays.copyOf(from.quantity, capacity);
+            importedChecksum = Arrays.copyOf(from.importedChecksum, capacity);
+            currentChecksum = Arrays.copyOf(from.currentChecksum, capacity);
+            profitCents = Arrays.copyOf(from.profitCents, capacity);
+            rawTotal = Arrays.copyOf(from.rawTotal, capacity);
+            valid = Arrays.copyOf(from.valid, (capacity + 63) >>> 6);
+            failures = Arrays.copyOf(from.failures, capacity);
+            id = Arrays.copyOf(from.id, capacity);
+            deleted = Arrays.copyOf(from.deleted, (capacity + 63) >>> 6);
+            fingerprint = Arrays.copyOf(from.fingerprint, capacity);
+            literal = Arrays.copyOf(from.literal, (capacity + 63) >>> 6);
+            if (from.text != null) {
+                textStart = Arrays.copyOf(from.textStart, capacity);
+                textEnd = Arrays.copyOf(from.textEnd, capacity);
+                text = from.text;
+                textSize = from.textSize;
+            }
+            size = from.size;
+        }
+
+        public int capacity() {
+            return billNumber.length;
+        }
+
+        public boolean isValid(int i) {
+            return (valid[i >>> 6] & (1L << i)) != 0;
+        }
+
+        public void setValid(int i, boolean value) {
+            if (value) {
+                valid[i >>> 6] |= 1L << i;
+            } else {
+                valid[i >>> 6] &= ~(1L << i);
+            }
+        }
+
+        public boolean isDeleted(int i) {
+            return (deleted[i >>> 6] & (1L << i)) != 0;
+        }
+
+        boolean hasLiteral(int i) {
+            return (literal[i >>> 6] & (1L << i)) != 0;
+        }
+
+        void setLiteral(int i, byte[] src, int from, int to) {
+            if (text == null) {
+                textStart = new int[capacity()];
+                textEnd = new int[capacity()];
+                text = new byte[1024];
+            }
+            int length = to - from;
+            if (textSize + length > text.length) {
+                text = Arrays.copyOf(text, Math.max(textSize + length, text.length * 2));
+            }
+            System.arraycopy(src, from, text, textSize, length);
+            textStart[i] = textSize;
+            textEnd[i] = textSize + length;
+            textSize += length;
+            literal[i >>> 6] |= 1L << i;
+        }
+
+        void clearLiteral(int i) {
+            literal[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    // Number of rows including deleted ones; row indexes run up to this
+    public int size() {
+        return size;
+    }
+
+    public int liveSize() {
+        return size - deletedCount;
+    }
+
+    public int deletedCount() {
+        return deletedCount;
+    }
+
+    // Ids handed out so far; every id is below this
+    public int idLimit() {
+        return nextId;
+    }
+
+    public int chunkCount() {
+        return (size + CHUNK_MASK) >>> CHUNK_SHIFT;
+    }
+
+    public Chunk chunk(int index) {
+        return chunks[index];
+    }
+
+    public StringDictionary getBillNumbers() {
+        return billNumbers;
+    }
+
+    public StringDictionary getItemCodes() {
+        return itemCodes;
+    }
+
+    // Adds a row exactly as the CSV import sees it: the imported checksum is
+    // also the current one, profit is not calculated yet and the row is valid
+    public int addRow(String billNumber, String itemCode, double internalPrice, double discount,
+                      double salePrice, int quantity, int checksum, double rawTotal) {
+        return addEncodedRow(billNumbers.encode(billNumber), itemCodes.encode(itemCode),
+                internalPrice, discount, salePrice, quantity, checksum, rawTotal);
+    }
+
+    private int addEncodedRow(int billNumber, int itemCode, double internalPrice, double discount,
+                              double salePrice, int quantity, int checksum, double rawTotal) {
+        int row = size;
+        Chunk c = chunkForAppend(row);
+        int i = row & CHUNK_MASK;
+        c.billNumber[i] = billNumber;
+        c.itemCode[i] = itemCode;
+        c.internalPrice[i] = internalPrice;
+        c.discount[i] = discount;
+        c.salePrice[i] = salePrice;
+        c.quantity[i] = quantity;
+        c.importedChecksum[i] = checksum;
+        c.currentChecksum[i] = checksum;
+        c.rawTotal[i] = rawTotal;
+        c.profitCents[i] = 0;
+        c.setValid(i, true);
+        c.failures[i] = 0;
+        c.id[i] = nextId++;
+        c.deleted[i >>> 6] &= ~(1L << i);
+        c.fingerprint[i] = 0;
+        c.clearLiteral(i);
+        c.size = i + 1;
+        size = row + 1;
+        return row;
+    }
+
+    private Chunk chunkForAppend(int row) {
+        int index = row >>> CHUNK_SHIFT;
+        Chunk[] directory = chunks;
+        Chunk c = index < directory.length ? directory[index] : null;
+        if (c != null && (row & CHUNK_MASK) < c.capacity()) {
+            return c;
+        }
+        // New or replaced chunks go into a fresh copy of the directory
+        directory = Arrays.copyOf(directory, Math.max(directory.length, Math.max(4, index * 2)));
+        c = c == null ? new Chunk(index == 0 ? 16 : CHUNK_SIZE)
+                : new Chunk(c, Math.min(CHUNK_SIZE, c.capacity() * 2));
+        directory[index] = c;
+        chunks = directory;
+        return c;
+    }
+
+    // Installs rows read back by TransactionSnapshot into an empty store
+    void restore(Chunk[] restored, int rows, int deleted, int ids) {
+        chunks = restored;
+        size = rows;
+        deletedCount = deleted;
+        nextId = ids;
+        layoutVersion++;
+    }
+
+    // Appends every live row of another store, re-encoding its dictionary ids.
+    // The appended rows get new ids in this store.
+    public void appendAll(TransactionStore other) {
+        int[] billMap = remap(other.billNumbers, billNumbers);
+        int[] itemMap = remap(other.itemCodes, itemCodes);
+        for (int row = 0; row < other.size; row++) {
+            Chunk src = other.chunks[row >>> CHUNK_SHIFT];
+            int i = row & CHUNK_MASK;
+            if (src.isDeleted(i)) {
+                continue;
+            }
+            int dst = addEncodedRow(billMap[src.billNumber[i]], itemMap[src.itemCode[i]],
+                    src.internalPrice[i], src.discount[i], src.salePrice[i], src.quantity[i],
+                    src.importedChecksum[i], src.rawTotal[i]);
+            copyState(src, i, dst);
+        }
+    }
+
+    private static int[] remap(StringDictionary from, StringDictionary to) {
+        int[] map = new int[from.size()];
+        for (int id = 0; id < map.length; id++) {
+            map[id] = to.encode(from.decode(id));
+        }
+        return map;
+    }
+
+    // Copies the fields addEncodedRow resets to their import defaults
+    private void copyState(Chunk src, int i, int row) {
+        Chunk c = chunks[row >>> CHUNK_SHIFT];
+        int j = row & CHUNK_MASK;
+        c.currentChecksum[j] = src.currentChecksum[i];
+        c.profitCents[j] = src.profitCents[i];
+        c.setValid(j, src.isValid(i));
+        c.failures[j] = src.failures[i];
+        c.fingerprint[j] = src.fingerprint[i];
+        if (src.hasLiteral(i)) {
+            c.setLiteral(j, src.text, src.textStart[i], src.textEnd[i]);
+        }
+    }
+
+    // An empty store whose dictionaries start out as copies of this one's, so
+    // rows can be moved into it with appendCopies without re-encoding them
+    public TransactionStore withSameDictionaries() {
+        TransactionStore copy = new TransactionStore();
+        copy.billNumbers.restore(Arrays.copyOf(billNumbers.values(), Math.max(16, billNumbers.size())),
+                billNumbers.size());
+        copy.itemCodes.restore(Arrays.copyOf(itemCodes.values(), Math.max(16, itemCodes.size())),
+                itemCodes.size());
+        return copy;
+    }
+
+    // Appends copies of rows [row, row + count) of the store this one was
+    // made from by withSameDictionaries, with their state and tombstones but
+    // new ids. Columns are copied a run at a time.
+    public void appendCopies(TransactionStore from, int row, int count) {
+        while (count > 0) {
+            int dst = size;
+            Chunk c = chunkForAppend(dst);
+            int j = dst & CHUNK_MASK;
+            Chunk src = from.chunks[row >>> CHUNK_SHIFT];
+            int i = row & CHUNK_MASK;
+            int n = Math.min(count, Math.min(c.capacity() - j, src.size - i));
+            System.arraycopy(src.billNumber, i, c.billNumber, j, n);
+            System.arraycopy(src.itemCode, i, c.itemCode, j, n);
+            System.arraycopy(src.internalPrice, i, c.internalPrice, j, n);
+            System.arraycopy(src.discount, i, c.discount, j, n);
+            System.arraycopy(src.salePrice, i, c.salePrice, j, n);
+            System.arraycopy(src.quantity, i, c.quantity, j, n);
+            System.arraycopy(src.importedChecksum, i, c.importedChecksum, j, n);
+            System.arraycopy(src.currentChecksum, i, c.currentChecksum, j, n);
+            System.arraycopy(src.profitCents, i, c.profitCents, j, n);
+            System.arraycopy(src.rawTotal, i, c.rawTotal, j, n);
+            System.arraycopy(src.failures, i, c.failures, j, n);
+            System.arraycopy(src.fingerprint, i, c.fingerprint, j, n);
+            for (int k = 0; k < n; k++) {
+                c.id[j + k] = nextId++;
+                c.setValid(j + k, src.isValid(i + k));
+                if (src.isDeleted(i + k)) {
+                    c.deleted[(j + k) >>> 6] |= 1L << (j + k);
+                    deletedCount++;
+                } else {
+                    c.deleted[(j + k) >>> 6] &= ~(1L << (j + k));
+                }
+                c.clearLiteral(j + k);
+                if (src.hasLiteral(i + k)) {
+                    c.setLiteral(j + k, src.text, src.textStart[i + k], src.textEnd[i + k]);
+                }
+            }
+            c.size = j + n;
+            size = dst + n;
+            row += n;
+            count -= n;
+        }
+    }
+
+    // Removes every live row matching the filter, keeping the others in order,
+    // and drops all tombstones. Returns the number of live rows removed.
+    // Row indexes taken before the call are invalidated; ids are kept, and
+    // Transaction views find their row again by id.
+    public int removeIf(IntPredicate rowFilter) {
+        TransactionStore kept = new TransactionStore();
+        int live = liveSize();
+        for (int row = 0; row < size; row++) {
+            Chunk src = chunks[row >>> CHUNK_SHIFT];
+            int i = row & CHUNK_MASK;
+            if (!src.isDeleted(i) && !rowFilter.test(row)) {
+                int dst = kept.addEncodedRow(src.billNumber[i], src.itemCode[i],
+                        src.internalPrice[i], src.discount[i], src.salePrice[i], src.quantity[i],
+                        src.importedChecksum[i], src.rawTotal[i]);
+                kept.copyState(src, i, dst);
+                kept.chunks[dst >>> CHUNK_SHIFT].id[dst & CHUNK_MASK] = src.id[i];
+            }
+        }
+        chunks = kept.chunks;
+        size = kept.size;
+        deletedCount = 0;
+        layoutVersion++;
+        return live - size;
+    }
+
+    // Drops the tombstones of deleted rows
+    public void compact() {
+        if (deletedCount > 0) {
+            removeIf(row -> false);
+        }
+    }
+
+    public void remove(int row) {
+        checkRow(row);
+        removeIf(r -> r == row);
+    }
+
+    // Marks a row deleted without moving any other row. Returns false if it
+    // already was.
+    public boolean delete(int row) {
+        checkRow(row);
+        Chunk c = chunkOf(row);
+        int i = row & CHUNK_MASK;
+        if (c.isDeleted(i)) {
+            return false;
+        }
+        c.deleted[i >>> 6] |= 1L << i;
+        deletedCount++;
+        return true;
+    }
+
+    public boolean isDeleted(int row) {
+        return chunkOf(row).isDeleted(row & CHUNK_MASK);
+    }
+
+    public int getId(int row) {
+        return chunkOf(row).id[row & CHUNK_MASK];
+    }
+
+    // Changes whenever row indexes taken before may point at other rows
+    public int layoutVersion() {
+        return layoutVersion;
+    }
+
+    // The row with the given id, or -1 if it was removed or never added here
+    public int rowOfId(int id) {
+        int low = 0;
+        int high = chunkCount() - 1;
+        // The last chunk starting at or before the id
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chunks[mid].id[0] <= id) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0) {
+            return -1;
+        }
+        Chunk c = chunks[low];
+        int i = Arrays.binarySearch(c.id, 0, c.size, id);
+        return i < 0 ? -1 : (low << CHUNK_SHIFT) + i;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of bounds for size " + size);
+        }
+    }
+
+    private Chunk chunkOf(int row) {
+        return chunks[row >>> CHUNK_SHIFT];
+    }
+
+    public String getBillNumber(int row) {
+        return billNumbers.decode(chunkOf(row).billNumber[row & CHUNK_MASK]);
+    }
+
+    public void setBillNumber(int row, String billNumber) {
+        chunkOf(row).billNumber[row & CHUNK_MASK] = billNumbers.encode(billNumber);
+    }
+
+    public String getItemCode(int row) {
+        return itemCodes.decode(chunkOf(row).itemCode[row & CHUNK_MASK]);
+    }
+
+    // Dictionary id of the row's item code, see getItemCodes()
+    public int getItemCodeId(int row) {
+        return chunkOf(row).itemCode[row & CHUNK_MASK];
+    }
+
+    public void setItemCode(int row, String itemCode) {
+        chunkOf(row).itemCode[row & CHUNK_MASK] = itemCodes.encode(itemCode);
+    }
+
+    public double getInternalPrice(int row) {
+        return chunkOf(row).internalPrice[row & CHUNK_MASK];
+    }
+
+    public void setInternalPrice(int row, double internalPrice) {
+        pinOriginals(row);
+        chunkOf(row).internalPrice[row & CHUNK_MASK] = internalPrice;
+    }
+
+    public double getDiscount(int row) {
+        return chunkOf(row).discount[row & CHUNK_MASK];
+    }
+
+    public void setDiscount(int row, double discount) {
+        pinOriginals(row);
+        chunkOf(row).discount[row & CHUNK_MASK] = discount;
+    }
+
+    public double getSalePrice(int row) {
+        return chunkOf(row).salePrice[row & CHUNK_MASK];
+    }
+
+    public void setSalePrice(int row, double salePrice) {
+        pinOriginals(row);
+        chunkOf(row).salePrice[row & CHUNK_MASK] = salePrice;
+    }
+
+    public int getQuantity(int row) {
+        return chunkOf(row).quantity[row & CHUNK_MASK];
+    }
+
+    public void setQuantity(int row, int quantity) {
+        pinOriginals(row);
+        chunkOf(row).quantity[row & CHUNK_MASK] = quantity;
+    }
+
+    public int getImportedChecksum(int row) {
+        return chunkOf(row).importedChecksum[row & CHUNK_MASK];
+    }
+
+    public void setImportedChecksum(int row, int checksum) {
+        chunkOf(row).importedChecksum[row & CHUNK_MASK] = checksum;
+    }
+
+    public int getCurrentChecksum(int row) {
+        return chunkOf(row).currentChecksum[row & CHUNK_MASK];
+    }
+
+    public void setCurrentChecksum(int row, int checksum) {
+        chunkOf(row).currentChecksum[row & CHUNK_MASK] = checksum;
+    }
+
+    public long getFingerprint(int row) {
+        return chunkOf(row).fingerprint[row & CHUNK_MASK];
+    }
+
+    public void setFingerprint(int row, long fingerprint) {
+        chunkOf(row).fingerprint[row & CHUNK_MASK] = fingerprint;
+    }
+
+    public boolean isValid(int row) {
+        return chunkOf(row).isValid(row & CHUNK_MASK);
+    }
+
+    public void setValid(int row, boolean valid) {
+        chunkOf(row).setValid(row & CHUNK_MASK, valid);
+    }
+
+    public int getFailures(int row) {
+        return chunkOf(row).failures[row & CHUNK_MASK];
+    }
+
+    public void setFailures(int row, int failures) {
+        chunkOf(row).failures[row & CHUNK_MASK] = failures;
+    }
+
+    public double getProfit(int row) {
+        return Money.toDouble(getProfitCents(row));
+    }
+
+    // Rounded to whole cents
+    public void setProfit(int row, double profit) {
+        setProfitCents(row, Money.toCents(profit, Money.DEFAULT_ROUNDING));
+    }
+
+    public long getProfitCents(int row) {
+        return chunkOf(row).profitCents[row & CHUNK_MASK];
+    }
+
+    public void setProfitCents(int row, long profitCents) {
+        chunkOf(row).profitCents[row & CHUNK_MASK] = profitCents;
+    }
+
+    public double getRawTotal(int row) {
+        return chunkOf(row).rawTotal[row & CHUNK_MASK];
+    }
+
+    public void setRawTotal(int row, double rawTotal) {
+        pinOriginals(row);
+        chunkOf(row).rawTotal[row & CHUNK_MASK] = rawTotal;
+    }
+
+    // Stores the original CSV text of the five numeric fields as one
+    // comma-separated slice: "internalPrice,discount,salePrice,quantity,rawTotal"
+    public void setOriginalText(int row, byte[] src, int from, int to) {
+        chunkOf(row).setLiteral(row & CHUNK_MASK, src, from, to);
+    }
+
+    public void setOriginals(int row, String internalPrice, String discount, String salePrice,
+                             String quantity, String rawTotal) {
+        StringBuilder sb = new StringBuilder()
+                .append(nullToEmpty(internalPrice)).append(',')
+                .append(nullToEmpty(discount)).append(',')
+                .append(nullToEmpty(salePrice)).append(',')
+                .append(nullToEmpty(quantity));
+        if (rawTotal != null) {
+            sb.append(',').append(rawTotal);
+        }
+        byte[] bytes = sb.toString().getBytes(charset);
+        setOriginalText(row, bytes, 0, bytes.length);
+    }
+
+    public void setOriginalRawTotal(int row, String rawTotal) {
+        setOriginals(row, getOriginal(row, ORIGINAL_INTERNAL_PRICE), getOriginal(row, ORIGINAL_DISCOUNT),
+                getOriginal(row, ORIGINAL_SALE_PRICE), getOriginal(row, ORIGINAL_QUANTITY), rawTotal);
+    }
+
+    // Returns the text the field had in the CSV file, or null if it was never set
+    public String getOriginal(int row, int field) {
+        Chunk c = chunkOf(row);
+        int i = row & CHUNK_MASK;
+        if (!c.hasLiteral(i)) {
+            switch (field) {
+                case ORIGINAL_INTERNAL_PRICE: return formatCents(c.internalPrice[i]);
+                case ORIGINAL_DISCOUNT: return formatCents(c.discount[i]);
+                case ORIGINAL_SALE_PRICE: return formatCents(c.salePrice[i]);
+                case ORIGINAL_QUANTITY: return Integer.toString(c.quantity[i]);
+                default: return formatCents(c.rawTotal[i]);
+            }
+        }
+        int start = c.textStart[i];
+        int end = c.textEnd[i];
+        for (int f = 0; f < field; f++) {
+            while (start < end && c.text[start] != ',') {
+                start++;
+            }
+            if (start == end) {
+                return null;
+            }
+            start++;
+        }
+        int stop = start;
+        while (stop < end && c.text[stop] != ',') {
+            stop++;
+        }
+        return new String(c.text, start, stop - start, charset);
+    }
+
+    // Length of the literal original text of a row, or -1 when it keeps none
+    // because its originals are the canonical form of its values
+    public int originalTextLength(int row) {
+        Chunk c = chunkOf(row);
+        int i = row & CHUNK_MASK;
+        return c.hasLiteral(i) ? c.textEnd[i] - c.textStart[i] : -1;
+    }
+
+    // Copies the literal original text, "internalPrice,...,rawTotal" as set by
+    // setOriginalText, into out. Returns false, copying nothing, when the row
+    // keeps none.
+    public boolean copyOriginalText(int row, ByteBuffer out) {
+        Chunk c = chunkOf(row);
+        int i = row & CHUNK_MASK;
+        if (!c.hasLiteral(i)) {
+            return false;
+        }
+        out.put(c.text, c.textStart[i], c.textEnd[i] - c.textStart[i]);
+        return true;
+    }
+
+    // Before a numeric field is edited, a row whose originals are rebuilt from
+    // the numbers has to keep a literal copy of them
+    private void pinOriginals(int row) {
+        Chunk c = chunkOf(row);
+        int i = row & CHUNK_MASK;
+        if (!c.hasLiteral(i)) {
+            setOriginals(row, formatCents(c.internalPrice[i]), formatCents(c.discount[i]),
+                    formatCents(c.salePrice[i]), Integer.toString(c.quantity[i]), formatCents(c.rawTotal[i]));
+        }
+    }
+
+    // Inverse of parsing a canonical "[-]digits.dd" field
+    private static String formatCents(double value) {
+        long cents = Math.round(Math.abs(value) * 100);
+        long fraction = cents % 100;
+        return (Double.doubleToRawLongBits(value) < 0 ? "-" : "")
+                + (cents / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    // Lightweight List view that hands out Transaction views over the live
+    // rows. With tombstones present the live rows are listed once, up front.
+    public List<Transaction> asList() {
+        if (deletedCount == 0) {
+            return new RowList(null);
+        }
+        int[] live = new int[liveSize()];
+        int n = 0;
+        for (int row = 0; row < size; row++) {
+            if (!isDeleted(row)) {
+                live[n++] = row;
+            }
+        }
+        return new RowList(live);
+    }
+
+    private final class RowList extends AbstractList<Transaction> implements RandomAccess {
+        private final int[] rows;
+
+        RowList(int[] rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public Transaction get(int index) {
+            if (rows == null) {
+                checkRow(index);
+                return new Transaction(TransactionStore.this, index);
+            }
+            return new Transaction(TransactionStore.this, rows[index]);
+        }
+
+        @Override
+        public int size() {
+            return rows == null ? size : rows.length;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package controller;
+
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import manager.GroupTotals;
+import manager.TransactionField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+// Window listing totals per bill number or item code. The table rows are
+// group numbers of a GroupTotals, and cells read their values from it.
+final class GroupTotalsView {
+    private GroupTotalsView() {
+    }
+
+    // Shows the given groups, in that order, or every group when null
+    static void show(Window owner, GroupTotals totals, int[] groups, String title) {
+        List<Integer> shown = new ArrayList<>();
+        if (groups == null) {
+            for (int group = 0; group < totals.size(); group++) {
+                shown.add(group);
+            }
+        } else {
+            for (int group : groups) {
+                shown.add(group);
+            }
+        }
+        ObservableList<Integer> rows = FXCollections.observableArrayList(shown);
+
+        TableView<Integer> table = new TableView<>();
+        String keyName = totals.getGroupBy() == TransactionField.BILL_NUMBER ? "Bill Number" : "Item Code";
+        table.getColumns().add(column(keyName, totals::getKey));
+        table.getColumns().add(column("Rows", totals::getCount));
+        table.getColumns().add(column("Profit", group -> totals.getSum(group, TransactionField.PROFIT)));
+        table.getColumns().add(column("Avg Profit", group -> round(totals.getAverage(group, TransactionField.PROFIT))));
+        table.getColumns().add(column("Min Profit", group -> totals.getMin(group, TransactionField.PROFIT)));
+        table.getColumns().add(column("Max Profit", group -> totals.getMax(group, TransactionField.PROFIT)));
+        table.getColumns().add(column("Margin (%)", group -> round(totals.getMargin(group) * 100)));
+        table.getColumns().add(column("Line Total", group -> totals.getSum(group, TransactionField.RAW_TOTAL)));
+        table.getColumns().add(column("Avg Line Total",
+                group -> round(totals.getAverage(group, TransactionField.RAW_TOTAL))));
+        table.getColumns().add(column("Quantity", group -> (long) totals.getSum(group, TransactionField.QUANTITY)));
+        table.getColumns().add(column("Avg Quantity",
+                group -> round(totals.getAverage(group, TransactionField.QUANTITY))));
+        table.setItems(rows);
+        VBox.setVgrow(table, Priority.ALWAYS);
+
+        String scope = totals.isValidOnly() ? "valid rows" : "all rows";
+        Label summary = new Label(String.format("%,d of %,d groups, %s", rows.size(), totals.size(), scope));
+        VBox content = new VBox(10, summary, table);
+        content.setPadding(new Insets(10));
+
+        Stage stage = new Stage();
+        stage.initOwner(owner);
+        stage.setTitle(title);
+        stage.setScene(new Scene(content, 1000, 600));
+        stage.show();
+    }
+
+    private static <T> TableColumn<Integer, T> column(String title, IntFunction<T> value) {
+        TableColumn<Integer, T> column = new TableColumn<>(title);
+        column.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(value.apply(cellData.getValue())));
+        return column;
+    }
+
+    // Averages and percentages are shown to the cent
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -0,0 +1,33 @@
+package controller;
+
+import javafx.concurrent.Task;
+import manager.ProgressListener;
+
+// Background task that turns TransactionManager progress into the task's
+// progress and message, and lets Task.cancel() stop the running operation
+abstract class ProgressTask<T> extends Task<T> implements ProgressListener {
+    private final String verb;
+    private final boolean reportsBytes;
+    private final long startNanos = System.nanoTime();
+
+    // verb describes what happens to rows, e.g. "parsed"; byte progress is
+    // shown for operations that read a file
+    ProgressTask(String verb, boolean reportsBytes) {
+        this.verb = verb;
+        this.reportsBytes = reportsBytes;
+    }
+
+    @Override
+    public void progress(long rows, long done, long total) {
+        updateProgress(done, total);
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        String message = String.format("%,d rows %s", rows, verb);
+        if (reportsBytes && total >= 0) {
+            message += String.format(", %.1f of %.1f MB read", done / 1e6, total / 1e6);
+        } else if (reportsBytes) {
+            // Inflated bytes of a compressed file, whose size is not known
+            message += String.format(", %.1f MB read", done / 1e6);
+        }
+        updateMessage(message + String.format(" (%,.0f rows/s)", rows / seconds));
+    }
+}
@@ -1,27 +1,58 @@
 package controller;
 
+import manager.FilingWorkspace;
+import manager.FingerprintIndex;
+import manager.GroupTotals;
+import manager.ReimportDiff;
+import manager.RowFilter;
+import manager.SortKey;
+import manager.TransactionEdit;
+import manager.TransactionExporter;
+import manager.TransactionField;
 import manager.TransactionManager;
+import manager.ValidationFailure;
 import Model.Transaction;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import Model.TransactionStore;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.SimpleDoubleProperty;
-import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
 import javafx.geometry.Insets;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class TransactionController {
+    // Choices of the filter bar
+    private static final String SHOW_ALL = "All";
+    private static final String SHOW_VALID = "Valid only";
+    private static final String SHOW_INVALID = "Invalid only";
+    private static final String SHOW_DUPLICATES = "Filed before";
+    // Choices of the group totals dialog
+    private static final String GROUP_BY_BILL = "Bill Number";
+    private static final String GROUP_BY_ITEM = "Item Code";
 
     @FXML
     private TextField filePathField;
 
+    @FXML
+    private ComboBox<String> filingChoice;
+
     @FXML
     private TableView<Transaction> transactionTable;
 
@@ -64,39 +95,148 @@ public class TransactionController {
     @FXML
     private Label finalTaxLabel;
 
+    @FXML
+    private ProgressBar progressBar;
+
+    @FXML
+    private Label progressLabel;
+
+    @FXML
+    private Button cancelButton;
+
+    @FXML
+    private HBox importBar;
+
+    @FXML
+    private HBox actionBar;
+
+    @FXML
+    private HBox taxBar;
+
+    @FXML
+    private HBox filterBar;
+
+    @FXML
+    private ComboBox<String> showFilter;
+
+    @FXML
+    private TextField profitBelowField;
+
+    // The filing shown, one of the workspace's once a file is opened
     private TransactionManager transactionManager = new TransactionManager();
 
+    // Filings opened before stay loaded up to half the heap and are spilled
+    // to a temporary directory of this process beyond that, so switching back
+    // to one does not parse it again
+    private final FilingWorkspace workspace = new FilingWorkspace(Runtime.getRuntime().maxMemory() / 2,
+            new File(System.getProperty("java.io.tmpdir"), "filing-workspace-" + ProcessHandle.current().pid()));
+    // Lines filed before, shared by the filings of the workspace; null when
+    // it could not be opened
+    private FingerprintIndex fingerprints;
+    // Set while the filing list is filled in, which is not a switch
+    private boolean updatingFilingChoice;
+
+    // The table shows the manager's store through this list, without copying rows
+    private final TransactionTableModel tableModel = new TransactionTableModel();
+
+    // The field each sortable column shows
+    private final Map<TableColumn<Transaction, ?>, TransactionField> columnFields = new HashMap<>();
+
+    // Imports and validations run here so the FX Application Thread stays free
+    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transaction-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Task<?> runningTask;
+
     @FXML
     private void initialize() {
-        billNumberColumn.setCellValueFactory(cellData -> new SimpleStringProperty(cellData.getValue().getBillNumber()));
-        itemCodeColumn.setCellValueFactory(cellData -> new SimpleStringProperty(cellData.getValue().getItemCode()));
-        internalPriceColumn.setCellValueFactory(cellData -> new SimpleDoubleProperty(cellData.getValue().getInternalPrice()).asObject());
-        discountColumn.setCellValueFactory(cellData -> new SimpleDoubleProperty(cellData.getValue().getDiscount()).asObject());
-        salePriceColumn.setCellValueFactory(cellData -> new SimpleDoubleProperty(cellData.getValue().getSalePrice()).asObject());
-        quantityColumn.setCellValueFactory(cellData -> new SimpleIntegerProperty(cellData.getValue().getQuantity()).asObject());
-        checksumColumn.setCellValueFactory(cellData -> new SimpleIntegerProperty(cellData.getValue().getCurrentChecksum()).asObject());
-        profitColumn.setCellValueFactory(cellData -> new SimpleDoubleProperty(cellData.getValue().getProfit()).asObject());
+        // Cells share the cached per-row properties of the table model
+        billNumberColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).billNumber);
+        itemCodeColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).itemCode);
+        internalPriceColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).internalPrice);
+        discountColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).discount);
+        salePriceColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).salePrice);
+        quantityColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).quantity);
+        checksumColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).checksum);
+        profitColumn.setCellValueFactory(cellData -> tableModel.cellsOf(cellData.getValue()).profit);
 
         transactionTable.setRowFactory(tv -> new TableRow<Transaction>() {
+            // The row colour follows the row's cached validity, so an edit
+            // that changes it recolours the row without a table refresh
+            private ObservableValue<Boolean> watched;
+            private final ChangeListener<Boolean> validityListener = (observable, wasValid, valid) -> showValidity(valid);
+
             @Override
             protected void updateItem(Transaction item, boolean empty) {
                 super.updateItem(item, empty);
+                if (watched != null) {
+                    watched.removeListener(validityListener);
+                    watched = null;
+                }
                 if (item == null || empty) {
                     setStyle("");
-                } else if (!item.isValid()) {
+                } else {
+                    watched = tableModel.cellsOf(item).valid;
+                    watched.addListener(validityListener);
+                    showValidity(watched.getValue());
+                }
+            }
+
+            private void showValidity(Boolean valid) {
+                if (Boolean.FALSE.equals(valid)) {
                     setStyle("-fx-background-color: #ffcccc;");
                 } else {
                     setStyle("");
                 }
             }
         });
+
+        // The model is read-only, so sorting reorders its row index instead of
+        // the list, by the column values straight from the store
+        columnFields.put(billNumberColumn, TransactionField.BILL_NUMBER);
+        columnFields.put(itemCodeColumn, TransactionField.ITEM_CODE);
+        columnFields.put(internalPriceColumn, TransactionField.INTERNAL_PRICE);
+        columnFields.put(discountColumn, TransactionField.DISCOUNT);
+        columnFields.put(salePriceColumn, TransactionField.SALE_PRICE);
+        columnFields.put(quantityColumn, TransactionField.QUANTITY);
+        columnFields.put(checksumColumn, TransactionField.CHECKSUM);
+        columnFields.put(profitColumn, TransactionField.PROFIT);
+        transactionTable.setSortPolicy(table -> {
+            List<SortKey> keys = new ArrayList<>();
+            for (TableColumn<Transaction, ?> column : table.getSortOrder()) {
+                TransactionField field = columnFields.get(column);
+                if (field != null) {
+                    keys.add(new SortKey(field, column.getSortType() == TableColumn.SortType.DESCENDING));
+                }
+            }
+            tableModel.sortRows(keys);
+            return true;
+        });
+        showFilter.getItems().addAll(SHOW_ALL, SHOW_VALID, SHOW_INVALID);
+        showFilter.setValue(SHOW_ALL);
+        transactionTable.setItems(tableModel);
+
+        // Lines of every filing opened here are kept to catch them being
+        // filed again; without the index filings are just not checked
+        try {
+            fingerprints = FingerprintIndex.open(
+                    new File(System.getProperty("user.home"), ".transaction-fingerprints"));
+            workspace.setFingerprintIndex(fingerprints);
+            showFilter.getItems().add(SHOW_DUPLICATES);
+        } catch (IOException e) {
+            System.out.println("Not checking for lines filed before: " + e.getMessage());
+        }
     }
 
     @FXML
     private void handleBrowse() {
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Select Transaction CSV File");
-        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV Files", "*.csv"));
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("CSV Files", "*.csv", "*.csv.gz", "*.zip"),
+                new FileChooser.ExtensionFilter("Compressed CSV Files", "*.csv.gz", "*.zip"));
 
         File file = fileChooser.showOpenDialog(transactionTable.getScene().getWindow());
         if (file != null) {
@@ -111,24 +251,158 @@ public class TransactionController {
             showAlert("Error", "Please enter a file path or use Browse to select a file.");
             return;
         }
+        openFiling(path);
+    }
+
+    // Shows a filing picked from the workspace list
+    @FXML
+    private void handleSwitchFiling() {
+        String path = filingChoice.getValue();
+        if (updatingFilingChoice || path == null) {
+            return;
+        }
+        filePathField.setText(path);
+        openFiling(path);
+    }
 
-        if (transactionManager.loadTransactionsFromCSV(path)) {
+    private void openFiling(String path) {
+        boolean loaded = workspace.isLoaded(path);
+        ProgressTask<TransactionManager> task = new ProgressTask<>("parsed", true) {
+            @Override
+            protected TransactionManager call() {
+                // Reuses the filing while it is loaded, and otherwise reopens
+                // it from its snapshot when the file has not changed
+                return workspace.open(path, this);
+            }
+
+            // Rows are shown batch by batch while the rest of the file is parsed
+            @Override
+            public void rowsAvailable(TransactionStore store, int rows) {
+                Platform.runLater(() -> {
+                    if (tableModel.getStore() != store) {
+                        tableModel.setStore(store, rows);
+                    } else {
+                        tableModel.rowsAdded(rows);
+                    }
+                });
+            }
+        };
+        runInBackground(task, loaded ? "Switching..." : "Importing...", () -> {
+            // A cancelled or failed import keeps the filing shown before
+            if (task.getState() == Worker.State.SUCCEEDED && task.getValue() != null) {
+                transactionManager = task.getValue();
+                if (loaded) {
+                    progressLabel.setText("Switched to " + new File(path).getName());
+                }
+            }
             refreshTable();
-        } else {
-            showAlert("Error", "Could not load the file! Please check the file format and try again.");
+            updateFilingChoice();
+            if (task.getState() == Worker.State.SUCCEEDED && task.getValue() == null) {
+                showAlert("Error", "Could not load the file! Please check the file format and try again.");
+            } else if (task.getState() == Worker.State.FAILED) {
+                showAlert("Error", "Import failed: " + task.getException().getMessage());
+            }
+        });
+    }
+
+    // Lists the workspace's filings, the one shown first
+    private void updateFilingChoice() {
+        updatingFilingChoice = true;
+        List<String> filings = workspace.getFilings();
+        filingChoice.getItems().setAll(filings);
+        filingChoice.setValue(transactionManager.getSource() != null && !filings.isEmpty() ? filings.get(0) : null);
+        updatingFilingChoice = false;
+    }
+
+    // Re-imports the file in the path field as a revised version of the
+    // loaded filing, keeping in-session edits of the lines it did not change
+    @FXML
+    private void handleReimport() {
+        String path = filePathField.getText();
+        if (path.isEmpty()) {
+            showAlert("Error", "Please enter a file path or use Browse to select a file.");
+            return;
         }
+
+        ProgressTask<ReimportDiff> task = new ProgressTask<>("re-imported", true) {
+            @Override
+            protected ReimportDiff call() throws Exception {
+                ReimportDiff diff = transactionManager.reimportTransactionsFromCSV(path, this);
+                transactionManager.saveSnapshot();
+                return diff;
+            }
+        };
+        runInBackground(task, "Re-importing...", () -> {
+            if (task.getState() == Worker.State.SUCCEEDED) {
+                refreshTable();
+                updateFilingChoice();
+                progressLabel.setText("Re-imported: " + task.getValue());
+            } else if (task.getState() == Worker.State.FAILED) {
+                showAlert("Error", "Re-import failed: " + task.getException().getMessage());
+            }
+        });
+    }
+
+    @FXML
+    private void handleCancel() {
+        if (runningTask != null) {
+            runningTask.cancel();
+        }
+    }
+
+    // Runs the task on the background executor. whenDone is called on the FX
+    // thread once the worker has actually returned, even after a cancel, so it
+    // never races with the manager still being changed.
+    private void runInBackground(Task<?> task, String message, Runnable whenDone) {
+        runningTask = task;
+        setBusy(true);
+        progressBar.progressProperty().bind(task.progressProperty());
+        progressLabel.setText(message);
+        ChangeListener<String> messageListener = (observable, oldText, text) -> progressLabel.setText(text);
+        task.messageProperty().addListener(messageListener);
+
+        backgroundExecutor.execute(() -> {
+            task.run();
+            Platform.runLater(() -> {
+                task.messageProperty().removeListener(messageListener);
+                progressBar.progressProperty().unbind();
+                progressBar.setProgress(task.getState() == Worker.State.SUCCEEDED ? 1 : 0);
+                if (task.isCancelled()) {
+                    progressLabel.setText("Cancelled");
+                }
+                runningTask = null;
+                setBusy(false);
+                whenDone.run();
+            });
+        });
+    }
+
+    // Everything that reads or changes the manager waits while a task runs
+    private void setBusy(boolean busy) {
+        importBar.setDisable(busy);
+        actionBar.setDisable(busy);
+        taxBar.setDisable(busy);
+        filterBar.setDisable(busy);
+        cancelButton.setDisable(!busy);
     }
 
     private void refreshTable() {
-        ObservableList<Transaction> list = FXCollections.observableArrayList(transactionManager.getTransactions());
-        transactionTable.setItems(list);
+        TransactionStore store = transactionManager.getStore();
+        tableModel.setStore(store, store.size());
+        transactionTable.sort();
         updateSummary();
     }
 
+    // Rows changed in place: drop the cached cells and redraw the visible rows
+    private void refreshRows() {
+        tableModel.allRowsChanged();
+        transactionTable.refresh();
+    }
+
     private void updateSummary() {
-        int total = transactionManager.getTransactions().size();
-        int valid = (int) transactionManager.getTransactions().stream().filter(Transaction::isValid).count();
-        int invalid = total - valid;
+        int total = transactionManager.getTotalCount();
+        int valid = transactionManager.getValidCount();
+        int invalid = transactionManager.getInvalidCount();
 
         totalRecordsLabel.setText("Total: " + total);
         validRecordsLabel.setText("Valid: " + valid);
@@ -137,15 +411,30 @@ public class TransactionController {
 
     @FXML
     private void handleValidate() {
-        transactionManager.validateTransactions();
-        transactionTable.refresh(); // Only refresh the table, not reload all data
-        updateSummary();
+        ProgressTask<Void> task = new ProgressTask<>("validated", false) {
+            @Override
+            protected Void call() {
+                transactionManager.validateTransactions(this);
+                // Next time the file opens already validated. Writes nothing when
+                // this validation changed no row since the snapshot was saved.
+                transactionManager.saveSnapshot();
+                return null;
+            }
+        };
+        runInBackground(task, "Validating...", () -> {
+            // Whether it finished or was cancelled, show the rows validated so far
+            refreshRows(); // Only refresh the table, not reload all data
+            updateSummary();
+            if (task.getState() == Worker.State.FAILED) {
+                showAlert("Error", "Validation failed: " + task.getException().getMessage());
+            }
+        });
     }
 
     @FXML
     private void handleCalculateProfit() {
         transactionManager.calculateProfits();
-        transactionTable.refresh(); //  Only refresh the table, NOT reload
+        refreshRows(); //  Only refresh the table, NOT reload
     }
 
     @FXML
@@ -165,6 +454,102 @@ public class TransactionController {
         }
     }
 
+    // Totals per bill number or item code in a window of their own, or only
+    // the groups with the largest losses when a count is given
+    @FXML
+    private void handleGroupTotals() {
+        Dialog<Boolean> dialog = new Dialog<>();
+        dialog.setTitle("Group Totals");
+        dialog.setHeaderText("Profit, line total and quantity per group:");
+
+        ButtonType runButtonType = new ButtonType("Run", ButtonBar.ButtonData.OK_DONE);
+        dialog.getDialogPane().getButtonTypes().addAll(runButtonType, ButtonType.CANCEL);
+
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(10);
+        grid.setPadding(new Insets(20, 150, 10, 10));
+
+        ComboBox<String> groupByField = new ComboBox<>();
+        groupByField.getItems().addAll(GROUP_BY_BILL, GROUP_BY_ITEM);
+        groupByField.setValue(GROUP_BY_ITEM);
+        CheckBox validOnlyField = new CheckBox("Valid transactions only");
+        TextField topLossesField = new TextField();
+        topLossesField.setPromptText("All groups");
+
+        grid.add(new Label("Group By:"), 0, 0);
+        grid.add(groupByField, 1, 0);
+        grid.add(validOnlyField, 1, 1);
+        grid.add(new Label("Top Losses:"), 0, 2);
+        grid.add(topLossesField, 1, 2);
+
+        dialog.getDialogPane().setContent(grid);
+        dialog.setResultConverter(dialogButton -> dialogButton == runButtonType);
+
+        Optional<Boolean> result = dialog.showAndWait();
+        if (!result.isPresent() || !result.get()) {
+            return;
+        }
+        int topLosses;
+        try {
+            String text = topLossesField.getText().trim();
+            topLosses = text.isEmpty() ? -1 : Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            showAlert("Error", "Please enter a valid number of groups.");
+            return;
+        }
+        TransactionField groupBy = GROUP_BY_BILL.equals(groupByField.getValue())
+                ? TransactionField.BILL_NUMBER : TransactionField.ITEM_CODE;
+        boolean validOnly = validOnlyField.isSelected();
+
+        ProgressTask<GroupTotals> task = new ProgressTask<>("aggregated", false) {
+            @Override
+            protected GroupTotals call() {
+                return transactionManager.aggregate(groupBy, validOnly, this);
+            }
+        };
+        runInBackground(task, "Aggregating...", () -> {
+            if (task.getState() == Worker.State.SUCCEEDED) {
+                GroupTotals totals = task.getValue();
+                String title = "Totals per " + groupByField.getValue();
+                int[] groups = null;
+                if (topLosses >= 0) {
+                    groups = totals.topLosses(topLosses);
+                    title = "Largest Losses per " + groupByField.getValue();
+                }
+                GroupTotalsView.show(transactionTable.getScene().getWindow(), totals, groups, title);
+                progressLabel.setText(String.format("%,d groups", totals.size()));
+            } else if (task.getState() == Worker.State.FAILED) {
+                showAlert("Error", "Aggregation failed: " + task.getException().getMessage());
+            }
+        });
+    }
+
+    @FXML
+    private void handleFilter() {
+        RowFilter filter = null;
+        if (SHOW_VALID.equals(showFilter.getValue())) {
+            filter = RowFilter.valid();
+        } else if (SHOW_INVALID.equals(showFilter.getValue())) {
+            filter = RowFilter.invalid();
+        } else if (SHOW_DUPLICATES.equals(showFilter.getValue())) {
+            filter = RowFilter.failed(ValidationFailure.DUPLICATE_LINE);
+        }
+        String profitBelow = profitBelowField.getText().trim();
+        if (!profitBelow.isEmpty()) {
+            try {
+                RowFilter below = RowFilter.below(TransactionField.PROFIT, Double.parseDouble(profitBelow));
+                filter = filter == null ? below : filter.and(below);
+            } catch (NumberFormatException e) {
+                showAlert("Error", "Please enter a valid profit amount.");
+                return;
+            }
+        }
+        tableModel.filterRows(filter);
+        progressLabel.setText(filter == null ? "Showing all transactions"
+                : "Showing " + tableModel.size() + " matching transactions");
+    }
+
     @FXML
     private void handleEditTransaction() {
         Transaction selectedTransaction = transactionTable.getSelectionModel().getSelectedItem();
@@ -235,11 +620,67 @@ public class TransactionController {
         Optional<Transaction> result = dialog.showAndWait();
         if (result.isPresent()) {
             // No need to validate or calculate profit here as updateTransaction already does this
-            transactionTable.refresh();
+            int row = selectedTransaction.getRow();
+            tableModel.rowsChanged(row, row + 1);
             updateSummary();
         }
     }
 
+    // Sets a new sale price on every transaction of an item code as one batch
+    // update, then refreshes the table once
+    @FXML
+    private void handleRepriceItem() {
+        Transaction selectedTransaction = transactionTable.getSelectionModel().getSelectedItem();
+
+        Dialog<Integer> dialog = new Dialog<>();
+        dialog.setTitle("Reprice Item");
+        dialog.setHeaderText("New sale price for every transaction of an item code:");
+
+        ButtonType saveButtonType = new ButtonType("Save", ButtonBar.ButtonData.OK_DONE);
+        dialog.getDialogPane().getButtonTypes().addAll(saveButtonType, ButtonType.CANCEL);
+
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(10);
+        grid.setPadding(new Insets(20, 150, 10, 10));
+
+        TextField itemCodeField = new TextField(selectedTransaction == null ? "" : selectedTransaction.getItemCode());
+        TextField salePriceField = new TextField(
+                selectedTransaction == null ? "" : String.valueOf(selectedTransaction.getSalePrice()));
+
+        grid.add(new Label("Item Code:"), 0, 0);
+        grid.add(itemCodeField, 1, 0);
+        grid.add(new Label("Sale Price:"), 0, 1);
+        grid.add(salePriceField, 1, 1);
+
+        dialog.getDialogPane().setContent(grid);
+
+        dialog.setResultConverter(dialogButton -> {
+            if (dialogButton == saveButtonType) {
+                try {
+                    double newSalePrice = Double.parseDouble(salePriceField.getText());
+                    List<TransactionEdit> edits = new ArrayList<>();
+                    for (Transaction t : transactionManager.getTransactionsForItemCode(itemCodeField.getText())) {
+                        edits.add(TransactionEdit.of(t).withSalePrice(newSalePrice));
+                    }
+                    return transactionManager.updateTransactions(edits);
+                } catch (NumberFormatException e) {
+                    showAlert("Error", "Please enter a valid sale price.");
+                    return null;
+                }
+            }
+            return null;
+        });
+
+        Optional<Integer> result = dialog.showAndWait();
+        if (result.isPresent()) {
+            refreshRows();
+            transactionTable.sort();
+            updateSummary();
+            progressLabel.setText(result.get() + " transactions repriced");
+        }
+    }
+
     @FXML
     private void handleDeleteTransaction() {
         Transaction selectedTransaction = transactionTable.getSelectionModel().getSelectedItem();
@@ -256,7 +697,71 @@ public class TransactionController {
         Optional<ButtonType> result = confirmAlert.showAndWait();
         if (result.isPresent() && result.get() == ButtonType.OK) {
             transactionManager.deleteTransaction(selectedTransaction);
-            refreshTable();
+            if (transactionManager.getStore().deletedCount() > 0) {
+                tableModel.rowRemoved(selectedTransaction);
+                updateSummary();
+            } else {
+                // The delete compacted the store, so the rows behind it have moved
+                refreshTable();
+            }
+        }
+    }
+
+    @FXML
+    private void handleExport() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export Valid Transactions");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("CSV Files", "*.csv"),
+                new FileChooser.ExtensionFilter("Compressed CSV Files", "*.csv.gz"));
+        File validFile = fileChooser.showSaveDialog(transactionTable.getScene().getWindow());
+        if (validFile == null) {
+            return;
+        }
+        // Invalid rows go next to it: "filing.csv" and "filing-rejected.csv"
+        String name = validFile.getName();
+        boolean gzip = name.toLowerCase().endsWith(".gz");
+        String suffix = name.toLowerCase().endsWith(".csv.gz") ? ".csv.gz"
+                : name.toLowerCase().endsWith(".csv") ? ".csv" : "";
+        String base = name.substring(0, name.length() - suffix.length());
+        File invalidFile = new File(validFile.getParentFile(), base + "-rejected" + suffix);
+
+        ProgressTask<TransactionExporter.Result> task = new ProgressTask<>("exported", false) {
+            @Override
+            protected TransactionExporter.Result call() throws Exception {
+                return transactionManager.exportTransactions(validFile, invalidFile, gzip, this);
+            }
+        };
+        runInBackground(task, "Exporting...", () -> {
+            if (task.getState() == Worker.State.SUCCEEDED) {
+                progressLabel.setText(task.getValue().getValid() + " valid rows exported to " + validFile.getName()
+                        + ", " + task.getValue().getInvalid() + " invalid rows to " + invalidFile.getName());
+            } else if (task.getState() == Worker.State.FAILED) {
+                showAlert("Error", "Export failed: " + task.getException().getMessage());
+            }
+        });
+    }
+
+    // Called when the application exits. Lets a running task stop, then waits
+    // for the journaled edits to reach the disk.
+    public void shutdown() {
+        if (runningTask != null) {
+            runningTask.cancel();
+        }
+        backgroundExecutor.shutdown();
+        try {
+            backgroundExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        transactionManager.closeJournal();
+        workspace.closeAll();
+        if (fingerprints != null) {
+            try {
+                fingerprints.close();
+            } catch (IOException e) {
+                System.out.println("Could not close the fingerprint index: " + e.getMessage());
+            }
         }
     }
 
@@ -0,0 +1,341 @@
+package controller;
+
+import Model.Transaction;
+import Model.TransactionStore;
+import manager.RowFilter;
+import manager.RowSorter;
+import manager.SortKey;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.collections.ObservableListBase;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Read-only ObservableList over the rows of a TransactionStore. Nothing is
+// copied: Transaction views and cell properties are only built for the rows
+// the table actually asks for, i.e. the visible viewport, and are kept in
+// small direct-mapped caches so scrolling back and forth reuses them.
+// Changes are announced by row range, so an edit refreshes one row instead
+// of the whole table.
+//
+// Sorting and filtering only rearrange an int[] of store rows: RowFilter
+// picks the rows from the columns and RowSorter orders them by primitive
+// keys. Both are kept across setStore, and new rows are filtered as they
+// arrive; an edited row stays shown until the filter is applied again.
+final class TransactionTableModel extends ObservableListBase<Transaction> {
+    // Power of two, far more than the rows a table shows at once
+    private static final int CACHE_SIZE = 1024;
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+
+    // Handed to cells asking for a row this model does not show (any more)
+    private static final RowCells EMPTY = new RowCells(-1);
+
+    private TransactionStore store = new TransactionStore();
+    // Store rows [0, rows) are shown, except deleted ones and the ones the
+    // filter rejects
+    private int rows;
+    // View index -> store row and its inverse (-1 for hidden rows) while the
+    // table is sorted, filtered or rows are deleted; both null when every
+    // row is shown in store order
+    private int[] order;
+    private int[] position;
+    // null shows every row
+    private RowFilter filter;
+    private List<SortKey> sortKeys = Collections.emptyList();
+    private final RowSorter sorter = new RowSorter();
+
+    private final Transaction[] views = new Transaction[CACHE_SIZE];
+    private final RowCells[] cells = new RowCells[CACHE_SIZE];
+
+    // Observable values for every column of one row. Cell value factories
+    // return these instead of allocating a new property per cell per render.
+    static final class RowCells {
+        final int row;
+        final ReadOnlyObjectWrapper<String> billNumber = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<String> itemCode = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<Double> internalPrice = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<Double> discount = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<Double> salePrice = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<Integer> quantity = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<Integer> checksum = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<Double> profit = new ReadOnlyObjectWrapper<>();
+        final ReadOnlyObjectWrapper<Boolean> valid = new ReadOnlyObjectWrapper<>();
+
+        RowCells(int row) {
+            this.row = row;
+        }
+
+        // Copies the current values of the row; cells bound to these
+        // properties update themselves
+        void load(TransactionStore store) {
+            billNumber.set(store.getBillNumber(row));
+            itemCode.set(store.getItemCode(row));
+            internalPrice.set(store.getInternalPrice(row));
+            discount.set(store.getDiscount(row));
+            salePrice.set(store.getSalePrice(row));
+            quantity.set(store.getQuantity(row));
+            checksum.set(store.getCurrentChecksum(row));
+            profit.set(store.getProfit(row));
+            valid.set(store.isValid(row));
+        }
+    }
+
+    TransactionStore getStore() {
+        return store;
+    }
+
+    // Shows the live rows among the first rows of a store that pass the
+    // filter, sorted by the sort keys, replacing everything
+    void setStore(TransactionStore store, int rows) {
+        List<Transaction> removed = new Snapshot(this.store, size(), order);
+        this.store = store;
+        this.rows = rows;
+        order = null;
+        position = null;
+        if (filter != null || store.deletedCount() > 0 || !sortKeys.isEmpty()) {
+            int[] shown = selectRows();
+            sorter.sort(store, shown, sortKeys);
+            setPermutation(shown);
+        }
+        Arrays.fill(views, null);
+        Arrays.fill(cells, null);
+        if (removed.isEmpty() && size() == 0) {
+            return;
+        }
+        beginChange();
+        nextReplace(0, size(), removed);
+        endChange();
+    }
+
+    // Shows only the rows that pass the filter, or every row when it is
+    // null, in the current sort order
+    void filterRows(RowFilter filter) {
+        this.filter = filter;
+        setStore(store, rows);
+    }
+
+    // The store has grown to the given number of rows; new rows that pass
+    // the filter go to the end
+    void rowsAdded(int rows) {
+        if (rows <= this.rows) {
+            return;
+        }
+        int from = size();
+        int[] added = filter == null ? null : filter.select(store, this.rows, rows);
+        if (order == null && added != null && added.length < rows - this.rows) {
+            // Some new rows are hidden, so the rows shown so far need an index
+            int[] shown = new int[from];
+            for (int i = 0; i < from; i++) {
+                shown[i] = i;
+            }
+            setPermutation(shown);
+        }
+        if (order != null) {
+            int count = added == null ? rows - this.rows : added.length;
+            order = Arrays.copyOf(order, from + count);
+            position = Arrays.copyOf(position, rows);
+            Arrays.fill(position, this.rows, rows, -1);
+            for (int k = 0, index = from; k < count; k++, index++) {
+                int row = added == null ? this.rows + k : added[k];
+                order[index] = row;
+                position[row] = index;
+            }
+        }
+        this.rows = rows;
+        if (size() == from) {
+            return;
+        }
+        beginChange();
+        nextAdd(from, size());
+        endChange();
+    }
+
+    // Store rows [fromRow, toRow) were edited in place
+    void rowsChanged(int fromRow, int toRow) {
+        toRow = Math.min(toRow, rows);
+        if (fromRow >= toRow) {
+            return;
+        }
+        beginChange();
+        for (int row = fromRow; row < toRow; row++) {
+            RowCells cached = cells[row & CACHE_MASK];
+            if (cached != null && cached.row == row) {
+                cached.load(store);
+            }
+            int index = indexOfRow(row);
+            if (index >= 0) {
+                nextUpdate(index);
+            }
+        }
+        endChange();
+    }
+
+    // Every row may have changed. Cached cells are dropped, so a following
+    // TableView.refresh() reads fresh values for the visible rows only.
+    void allRowsChanged() {
+        Arrays.fill(cells, null);
+    }
+
+    // Call after the row of the given view was deleted from the store. The
+    // store only marks it with a tombstone, so no other row moves.
+    void rowRemoved(Transaction removed) {
+        int row = removed.getRow();
+        if (row < 0 || removed.getStore() != store || row >= rows || indexOfRow(row) < 0) {
+            return;
+        }
+        int index = indexOfRow(row);
+        int size = size();
+        int[] kept = new int[size - 1];
+        for (int i = 0, j = 0; i < size; i++) {
+            if (i != index) {
+                kept[j++] = rowAt(i);
+            }
+        }
+        setPermutation(kept);
+        beginChange();
+        nextRemove(index, removed);
+        endChange();
+    }
+
+    // Reorders the shown rows by the keys, the first key first, or back to
+    // store order when there are none
+    void sortRows(List<SortKey> keys) {
+        sortKeys = keys;
+        int size = size();
+        int[] sorted = new int[size];
+        for (int row = 0, n = 0; n < size; row++) {
+            if (indexOfRow(row) >= 0) {
+                sorted[n++] = row;
+            }
+        }
+        sorter.sort(store, sorted, keys);
+        setOrder(sorted);
+    }
+
+    // The rows of [0, rows) to show, in store order
+    private int[] selectRows() {
+        if (filter != null) {
+            return filter.select(store, 0, rows);
+        }
+        int[] live = new int[rows];
+        int n = 0;
+        for (int row = 0; row < rows; row++) {
+            if (!store.isDeleted(row)) {
+                live[n++] = row;
+            }
+        }
+        return n == rows ? live : Arrays.copyOf(live, n);
+    }
+
+    private void setOrder(int[] sorted) {
+        int size = size();
+        // perm[old index] = new index, as ListChangeListener expects
+        int[] perm = new int[size];
+        for (int i = 0; i < size; i++) {
+            perm[i] = rowAt(i);
+        }
+        if (size == rows) {
+            // Every row is shown; store order needs no index at all
+            boolean storeOrder = true;
+            for (int i = 0; i < size && storeOrder; i++) {
+                storeOrder = sorted[i] == i;
+            }
+            if (storeOrder) {
+                order = null;
+                position = null;
+            } else {
+                setPermutation(sorted);
+            }
+        } else {
+            setPermutation(sorted);
+        }
+        if (size == 0) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            perm[i] = indexOfRow(perm[i]);
+        }
+        beginChange();
+        nextPermutation(0, size, perm);
+        endChange();
+    }
+
+    private void setPermutation(int[] sorted) {
+        order = sorted;
+        position = new int[rows];
+        Arrays.fill(position, -1);
+        for (int i = 0; i < sorted.length; i++) {
+            position[sorted[i]] = i;
+        }
+    }
+
+    private int indexOfRow(int row) {
+        return position == null ? row : position[row];
+    }
+
+    private int rowAt(int index) {
+        return order == null ? index : order[index];
+    }
+
+    // Cell values of the row a view points at, built on first use
+    RowCells cellsOf(Transaction transaction) {
+        int row = transaction == null ? -1 : transaction.getRow();
+        if (row < 0 || transaction.getStore() != store || row >= rows) {
+            return EMPTY;
+        }
+        RowCells cached = cells[row & CACHE_MASK];
+        if (cached == null || cached.row != row) {
+            cached = new RowCells(row);
+            cached.load(store);
+            cells[row & CACHE_MASK] = cached;
+        }
+        return cached;
+    }
+
+    @Override
+    public Transaction get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size());
+        }
+        return view(rowAt(index));
+    }
+
+    private Transaction view(int row) {
+        Transaction view = views[row & CACHE_MASK];
+        if (view == null || view.getRow() != row) {
+            view = new Transaction(store, row);
+            views[row & CACHE_MASK] = view;
+        }
+        return view;
+    }
+
+    @Override
+    public int size() {
+        return order == null ? rows : order.length;
+    }
+
+    // The rows that were shown before a replace, for the change event
+    private static final class Snapshot extends AbstractList<Transaction> {
+        private final TransactionStore store;
+        private final int size;
+        private final int[] order;
+
+        Snapshot(TransactionStore store, int size, int[] order) {
+            this.store = store;
+            this.size = size;
+            this.order = order;
+        }
+
+        @Override
+        public Transaction get(int index) {
+            return new Transaction(store, order == null ? index : order[index]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
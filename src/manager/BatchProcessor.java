@@ -0,0 +1,368 @@
+package manager;
+
+import Model.Money;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Runs the full TransactionManager pipeline (load, profit, validate, delete
+// zero-profit rows, tax) over many filings without a UI. Filings are
+// processed concurrently by a fixed number of workers, each with its own
+// manager. A filing whose estimated heap need is above the per-job budget is
+// not loaded at all, so workers * budget bounds the heap the batch can use.
+//
+// In streaming mode every filing goes through StreamingTaxCalculator
+// instead: one pass over the file with constant memory, so there is no
+// budget to stay within, giving the same counts and tax.
+//
+// With a FingerprintIndex, rows whose line an earlier filing had fail
+// validation as duplicates. Filings of one batch are recorded as they are
+// loaded, so of two concurrent filings sharing a line the one loaded first
+// owns it. Streaming mode cannot check for duplicates, so it takes no index.
+//
+// One JSON line is written per filing as soon as it is done, in completion
+// order, followed by one line with the totals of the batch.
+public class BatchProcessor {
+    // Heap a loaded filing needs per byte of CSV, with the rows, dictionaries,
+    // index and the segments held while parsing; measured at about 2 and
+    // rounded up
+    private static final long HEAP_BYTES_PER_CSV_BYTE = 3;
+
+    private final int workers;
+    private final long jobMemoryBytes;
+    private final double taxRate;
+    private final boolean useSnapshots;
+    private final boolean streaming;
+    private final PrintStream out;
+    private FingerprintIndex fingerprints;
+
+    public BatchProcessor(int workers, long jobMemoryBytes, double taxRate, boolean useSnapshots, PrintStream out) {
+        this(workers, jobMemoryBytes, taxRate, useSnapshots, false, out);
+    }
+
+    public BatchProcessor(int workers, long jobMemoryBytes, double taxRate, boolean useSnapshots,
+                          boolean streaming, PrintStream out) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        this.workers = workers;
+        this.jobMemoryBytes = jobMemoryBytes;
+        this.taxRate = taxRate;
+        this.useSnapshots = useSnapshots;
+        this.streaming = streaming;
+        this.out = out;
+    }
+
+    // Checks every loaded filing against the index and records it there;
+    // null, the default, checks nothing. Set before run.
+    public void setFingerprintIndex(FingerprintIndex fingerprints) {
+        if (streaming && fingerprints != null) {
+            throw new IllegalStateException("Streaming mode does not check for duplicates");
+        }
+        this.fingerprints = fingerprints;
+    }
+
+    public static long estimatedHeapBytes(File file) {
+        return estimatedHeapBytes(csvBytesOf(file));
+    }
+
+    public static long estimatedHeapBytes(long csvBytes) {
+        return csvBytes * HEAP_BYTES_PER_CSV_BYTE;
+    }
+
+    // Size of the CSV text of a filing, inflated when it is compressed. A
+    // gzip file records it modulo 4 GB in its last four bytes, so it is
+    // taken as at least the compressed size.
+    static long csvBytesOf(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        try {
+            if (name.endsWith(".gz") && file.length() >= 4) {
+                try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                    in.seek(file.length() - 4);
+                    long inflated = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+                    while (inflated < file.length()) {
+                        inflated += 1L << 32;
+                    }
+                    return inflated;
+                }
+            }
+            if (name.endsWith(".zip")) {
+                long inflated = 0;
+                try (ZipFile zip = new ZipFile(file)) {
+                    for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                        inflated += Math.max(0, e.nextElement().getSize());
+                    }
+                }
+                return Math.max(inflated, file.length());
+            }
+        } catch (IOException e) {
+            // Not readable as compressed; the load will say why
+        }
+        return file.length();
+    }
+
+    public Summary run(List<File> files) throws InterruptedException {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "filing-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        Summary summary = new Summary();
+        try {
+            List<Future<FilingResult>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(pool.submit(() -> {
+                    FilingResult result = process(file);
+                    // Lines of concurrent jobs must not interleave
+                    synchronized (out) {
+                        out.println(result.toJson());
+                    }
+                    return result;
+                }));
+            }
+            for (Future<FilingResult> future : futures) {
+                try {
+                    summary.add(future.get());
+                } catch (ExecutionException e) {
+                    // process() reports its own failures, so this is a bug
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        summary.nanos = System.nanoTime() - start;
+        synchronized (out) {
+            out.println(summary.toJson());
+        }
+        return summary;
+    }
+
+    private FilingResult process(File file) {
+        if (streaming) {
+            return stream(file);
+        }
+        FilingResult result = new FilingResult(file);
+        long estimate = estimatedHeapBytes(file);
+        if (estimate > jobMemoryBytes) {
+            result.status = "over-budget";
+            result.error = "needs about " + (estimate >> 20) + " MB, budget is " + (jobMemoryBytes >> 20) + " MB";
+            return result;
+        }
+
+        TransactionManager manager = new TransactionManager();
+        manager.setFingerprintIndex(fingerprints);
+        long start = System.nanoTime();
+        try {
+            boolean loaded = useSnapshots
+                    ? manager.openTransactions(file.getPath(), ProgressListener.NONE)
+                    : manager.loadTransactionsFromCSV(file.getPath());
+            long loadDone = System.nanoTime();
+            result.loadNanos = loadDone - start;
+            if (!loaded) {
+                result.status = "failed";
+                result.error = "could not load the file";
+                return result;
+            }
+
+            manager.calculateProfits();
+            long profitDone = System.nanoTime();
+            result.profitNanos = profitDone - loadDone;
+
+            ValidationResult validation = manager.validateTransactions();
+            if (useSnapshots) {
+                manager.saveSnapshot();
+            }
+            long validateDone = System.nanoTime();
+            result.validateNanos = validateDone - profitDone;
+            result.rows = validation.getTotal();
+            result.valid = validation.getValid();
+            result.invalid = validation.getInvalid();
+            if (fingerprints != null) {
+                result.duplicates = validation.getFailureCount(ValidationFailure.DUPLICATE_LINE);
+            }
+
+            manager.deleteZeroProfitTransactions();
+            long deleteDone = System.nanoTime();
+            result.deleteNanos = deleteDone - validateDone;
+            result.zeroProfitDeleted = result.rows - manager.getTotalCount();
+
+            result.taxCents = manager.calculateFinalTaxCents(taxRate);
+            result.taxNanos = System.nanoTime() - deleteDone;
+            result.status = "ok";
+        } catch (RuntimeException | OutOfMemoryError e) {
+            result.status = "failed";
+            result.error = e.toString();
+        } finally {
+            result.totalNanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    private FilingResult stream(File file) {
+        FilingResult result = new FilingResult(file);
+        result.streamed = true;
+        long start = System.nanoTime();
+        try {
+            if (!file.exists()) {
+                result.status = "failed";
+                result.error = "could not load the file";
+                return result;
+            }
+            StreamingTaxCalculator.Result pass = new StreamingTaxCalculator().calculate(file, taxRate);
+            ValidationResult validation = pass.getValidation();
+            if (validation.getTotal() == 0) {
+                // loadTransactionsFromCSV treats a file without rows as not loaded
+                result.status = "failed";
+                result.error = "could not load the file";
+                return result;
+            }
+            result.rows = validation.getTotal();
+            result.valid = validation.getValid();
+            result.invalid = validation.getInvalid();
+            result.zeroProfitDeleted = pass.getZeroProfit();
+            result.taxCents = pass.getTaxCents();
+            result.status = "ok";
+        } catch (IOException | RuntimeException e) {
+            result.status = "failed";
+            result.error = e.toString();
+        } finally {
+            result.totalNanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    private static final class FilingResult {
+        private final File file;
+        private final long bytes;
+        private String status;
+        private String error;
+        private int rows;
+        private int valid;
+        private int invalid;
+        // Rows filed before in other filings, -1 when not checked
+        private int duplicates = -1;
+        private int zeroProfitDeleted;
+        private long taxCents;
+        private long loadNanos;
+        private long profitNanos;
+        private long validateNanos;
+        private long deleteNanos;
+        private long taxNanos;
+        private long totalNanos;
+        // Done in one streaming pass, so there are no per-step times
+        private boolean streamed;
+
+        FilingResult(File file) {
+            this.file = file;
+            this.bytes = file.length();
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder("{\"file\":").append(quote(file.getPath()))
+                    .append(",\"status\":").append(quote(status))
+                    .append(",\"bytes\":").append(bytes);
+            if (error != null) {
+                return json.append(",\"error\":").append(quote(error)).append('}').toString();
+            }
+            json.append(",\"rows\":").append(rows)
+                    .append(",\"valid\":").append(valid)
+                    .append(",\"invalid\":").append(invalid);
+            if (duplicates >= 0) {
+                json.append(",\"duplicates\":").append(duplicates);
+            }
+            json.append(",\"zeroProfitDeleted\":").append(zeroProfitDeleted)
+                    .append(",\"taxCents\":").append(taxCents == Money.NOT_REPRESENTABLE ? "null" : taxCents);
+            if (streamed) {
+                return json.append(",\"totalMs\":").append(millis(totalNanos)).append('}').toString();
+            }
+            return json.append(",\"loadMs\":").append(millis(loadNanos))
+                    .append(",\"profitMs\":").append(millis(profitNanos))
+                    .append(",\"validateMs\":").append(millis(validateNanos))
+                    .append(",\"deleteMs\":").append(millis(deleteNanos))
+                    .append(",\"taxMs\":").append(millis(taxNanos))
+                    .append(",\"totalMs\":").append(millis(totalNanos))
+                    .append('}').toString();
+        }
+    }
+
+    // Totals of a batch run
+    public static final class Summary {
+        private int filings;
+        private int failed;
+        private long rows;
+        private long bytes;
+        private long nanos;
+
+        private void add(FilingResult result) {
+            filings++;
+            bytes += result.bytes;
+            if ("ok".equals(result.status)) {
+                rows += result.rows;
+            } else {
+                failed++;
+            }
+        }
+
+        public int getFilings() {
+            return filings;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        String toJson() {
+            double seconds = nanos / 1e9;
+            return "{\"summary\":true"
+                    + ",\"filings\":" + filings
+                    + ",\"ok\":" + (filings - failed)
+                    + ",\"failed\":" + failed
+                    + ",\"rows\":" + rows
+                    + ",\"bytes\":" + bytes
+                    + ",\"seconds\":" + String.format(Locale.ROOT, "%.3f", seconds)
+                    + ",\"filingsPerSecond\":" + String.format(Locale.ROOT, "%.2f", filings / seconds)
+                    + ",\"rowsPerSecond\":" + String.format(Locale.ROOT, "%.0f", rows / seconds)
+                    + ",\"megabytesPerSecond\":" + String.format(Locale.ROOT, "%.1f", bytes / 1e6 / seconds)
+                    + "}";
+        }
+    }
+
+    static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,67 @@
+package manager;
+
+import Model.Money;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+// Exact running sum of amounts in cents, kept as a 128-bit integer so even a
+// filing of billions of rows cannot overflow it. Adding and subtracting are
+// exact, so a total maintained by deltas always equals one recomputed from
+// scratch.
+final class CentsSum {
+    // Below this many cents the division by 100 is the only rounding step
+    private static final long EXACT_DOUBLE_LIMIT = 1L << 53;
+
+    private long high;
+    private long low;
+
+    void add(long cents) {
+        long sum = low + cents;
+        // Sign extension of cents, plus the carry out of the unsigned low word
+        high += (cents >> 63) + (Long.compareUnsigned(sum, low) < 0 ? 1 : 0);
+        low = sum;
+    }
+
+    void subtract(long cents) {
+        long difference = low - cents;
+        high -= (cents >> 63) + (Long.compareUnsigned(low, cents) < 0 ? 1 : 0);
+        low = difference;
+    }
+
+    void add(CentsSum other) {
+        long sum = low + other.low;
+        high += other.high + (Long.compareUnsigned(sum, low) < 0 ? 1 : 0);
+        low = sum;
+    }
+
+    void reset() {
+        high = 0;
+        low = 0;
+    }
+
+    // sum * rate in cents, with the rate in basis points. Only a sum past
+    // 64 bits goes through BigInteger
+    long applyRate(long basisPoints, RoundingMode mode) {
+        if (high == (low >> 63)) {
+            return Money.applyRate(low, basisPoints, mode);
+        }
+        return Money.applyRate(bigValue(), basisPoints, mode);
+    }
+
+    BigInteger bigValue() {
+        if (high == (low >> 63)) {
+            return BigInteger.valueOf(low);
+        }
+        return BigInteger.valueOf(high).shiftLeft(64).add(new BigInteger(Long.toUnsignedString(low)));
+    }
+
+    // The sum in currency units, rounded to the nearest double
+    double doubleValue() {
+        if (high == (low >> 63) && low > -EXACT_DOUBLE_LIMIT && low < EXACT_DOUBLE_LIMIT) {
+            return Money.toDouble(low);
+        }
+        return new BigDecimal(bigValue(), 2).doubleValue();
+    }
+}
@@ -0,0 +1,121 @@
+package manager;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+// Computes the transaction checksum without building any strings.
+// The checksum is the number of upper case letters, lower case letters,
+// digits and '.' characters in
+//   itemCode + "%.2f"(internalPrice) + "%.2f"(discount) + "%.2f"(salePrice)
+//            + quantity + "%.2f"(rawTotal)
+// A "%.2f" value always contributes its integer digits, two decimals and the
+// decimal separator (when the locale uses '.'); the sign is never counted.
+// Only the digit count of the integer part has to be worked out.
+public final class ChecksumCalculator {
+    // Exact doubles, used to count integer digits below 1e15
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+            1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+    private static final double FAST_PATH_LIMIT = 1e15;
+
+    private static volatile SeparatorCache separatorCache;
+
+    private ChecksumCalculator() {
+    }
+
+    public static int checksum(String itemCode, double internalPrice, double discount,
+                               double salePrice, int quantity, double rawTotal) {
+        return checksum(countCharacters(itemCode), internalPrice, discount, salePrice, quantity, rawTotal);
+    }
+
+    // Same as above when countCharacters(itemCode) is already known, e.g. cached per dictionary entry
+    public static int checksum(int itemCodeCharacters, double internalPrice, double discount,
+                               double salePrice, int quantity, double rawTotal) {
+        int decimalPoint = decimalPointIsDot() ? 1 : 0;
+        return itemCodeCharacters
+                + formattedCount(internalPrice, decimalPoint)
+                + formattedCount(discount, decimalPoint)
+                + formattedCount(salePrice, decimalPoint)
+                + integerDigits(quantity)
+                + formattedCount(rawTotal, decimalPoint);
+    }
+
+    // Upper case, lower case, digit and '.' characters of a string
+    public static int countCharacters(CharSequence s) {
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 128) {
+                if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.') {
+                    count++;
+                }
+            } else if (Character.isUpperCase(c) || Character.isLowerCase(c) || Character.isDigit(c) || c == '.') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Counted characters of String.format("%.2f", value)
+    static int formattedCount(double value, int decimalPoint) {
+        if (Double.isNaN(value)) {
+            return 3; // "NaN"
+        }
+        if (Double.isInfinite(value)) {
+            return 8; // "Infinity" or "-Infinity"
+        }
+        double magnitude = Math.abs(value);
+        if (magnitude < 1) {
+            // "0.xx" and even a round-up to "1.00" keep a single integer digit
+            return 1 + 2 + decimalPoint;
+        }
+        if (magnitude >= FAST_PATH_LIMIT) {
+            return countCharacters(String.format("%.2f", value));
+        }
+        int digits = 1;
+        while (magnitude >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        // Rounding to two decimals can carry into a new digit (9.995 -> "10.00").
+        // The subtraction is exact this close to the power of ten, and the rare
+        // values in that band are left to the formatter itself.
+        if (POWERS_OF_TEN[digits] - magnitude < 0.01 + 2 * Math.ulp(magnitude)) {
+            return countCharacters(String.format("%.2f", value));
+        }
+        return digits + 2 + decimalPoint;
+    }
+
+    // Digits of String.valueOf(value); the minus sign is not counted
+    static int integerDigits(int value) {
+        long magnitude = Math.abs((long) value);
+        int digits = 1;
+        while (magnitude >= 10) {
+            magnitude /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    // String.format uses the default FORMAT locale, whose separator may be ','
+    private static boolean decimalPointIsDot() {
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        SeparatorCache cache = separatorCache;
+        if (cache == null || !cache.locale.equals(locale)) {
+            char separator = DecimalFormatSymbols.getInstance(locale).getDecimalSeparator();
+            cache = new SeparatorCache(locale, separator == '.');
+            separatorCache = cache;
+        }
+        return cache.dot;
+    }
+
+    private static final class SeparatorCache {
+        final Locale locale;
+        final boolean dot;
+
+        SeparatorCache(Locale locale, boolean dot) {
+            this.locale = locale;
+            this.dot = dot;
+        }
+    }
+}
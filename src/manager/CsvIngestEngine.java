@@ -0,0 +1,381 @@
+package manager;
+
+import Model.TransactionStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Parallel CSV reader used by TransactionManager.loadTransactionsFromCSV.
+// The file is memory-mapped, cut into segments on line boundaries and every
+// segment is tokenized on its own core. Segments are stitched back together
+// in file order so the result is identical to reading the file line by line.
+// Streams that cannot be mapped, e.g. uploads and compressed files, are
+// parsed line by line as their bytes arrive instead.
+public class CsvIngestEngine {
+    private static final int MIN_SEGMENT_SIZE = 1 << 20;   // 1 MB
+    private static final int MAX_SEGMENT_SIZE = 64 << 20;  // 64 MB, well below the 2 GB map limit
+    private static final int CANCEL_CHECK_INTERVAL = (1 << 14) - 1;
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+    // FileReader decodes with the platform charset, so we do the same
+    private final Charset charset = Charset.defaultCharset();
+    private final ForkJoinPool pool;
+    private volatile int lastParseErrors;
+    private volatile long lastBytesRead;
+
+    public CsvIngestEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public CsvIngestEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public TransactionStore ingest(File file) throws IOException {
+        return ingest(file, ProgressListener.NONE);
+    }
+
+    // Segments are merged into the result in file order as soon as they are
+    // parsed, so the listener sees rows arrive while later segments are still
+    // being tokenized. Files named .gz or .zip are decompressed as they are
+    // read, see ingestGzip and ingestZip. Throws CancellationException when
+    // the listener cancels.
+    public TransactionStore ingest(File file, ProgressListener listener) throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".gz")) {
+            return ingestGzip(file, listener);
+        }
+        if (name.endsWith(".zip")) {
+            return ingestZip(file, listener);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> bounds = splitOnLineBoundaries(channel, size);
+            AtomicLong rowsParsed = new AtomicLong();
+            AtomicLong bytesParsed = new AtomicLong();
+
+            List<Callable<Segment>> tasks = new ArrayList<>(bounds.size());
+            for (long[] b : bounds) {
+                tasks.add(() -> {
+                    Segment segment = parseSegment(channel, b[0], b[1], listener);
+                    listener.progress(rowsParsed.addAndGet(segment.rows.size()),
+                            bytesParsed.addAndGet(b[1] - b[0]), size);
+                    return segment;
+                });
+            }
+            TransactionStore rows = merge(submit(tasks), listener);
+            lastBytesRead = size;
+            return rows;
+        }
+    }
+
+    // Reads rows from a stream front to back on the calling thread, parsing
+    // every line as soon as it has arrived, so the input is never held in
+    // full. size is the expected number of bytes, for progress only, or -1
+    // when it is not known. Throws CancellationException when the listener
+    // cancels.
+    public TransactionStore ingest(ReadableByteChannel channel, long size, ProgressListener listener)
+            throws IOException {
+        long[] bytesRead = {0};
+        Segment segment = parseStream(channel, listener, (rows, read) -> {
+            bytesRead[0] = read;
+            listener.progress(rows, read, size);
+        });
+        TransactionStore rows = merge(List.of(CompletableFuture.completedFuture(segment)), listener);
+        lastBytesRead = bytesRead[0];
+        return rows;
+    }
+
+    // A gzip file is inflated on its own thread while this one parses, see
+    // InflatingChannel. Inflating cannot be split, so this is one stream;
+    // progress is the share of the compressed file inflated.
+    private TransactionStore ingestGzip(File file, ProgressListener listener) throws IOException {
+        try (FileChannel compressed = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             InflatingChannel channel = new InflatingChannel(
+                     new GZIPInputStream(Channels.newInputStream(compressed), GZIP_BUFFER_SIZE))) {
+            long size = compressed.size();
+            Segment segment = parseStream(channel, listener,
+                    (rows, read) -> listener.progress(rows, compressed.position(), size));
+            TransactionStore rows = merge(List.of(CompletableFuture.completedFuture(segment)), listener);
+            lastBytesRead = size;
+            return rows;
+        }
+    }
+
+    // Every .csv entry of a zip file is a part of one filing. The entries are
+    // inflated and parsed in parallel, each by a pool task fed by its own
+    // inflater thread, and their rows follow each other in archive order.
+    // Every entry may start with a header line.
+    private TransactionStore ingestZip(File file, ProgressListener listener) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            long total = 0;
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory() && entry.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                    entries.add(entry);
+                    total = total < 0 || entry.getSize() < 0 ? -1 : total + entry.getSize();
+                }
+            }
+            if (entries.isEmpty()) {
+                throw new IOException("No .csv entries in " + file);
+            }
+            long size = total;
+            AtomicLong rowsParsed = new AtomicLong();
+            AtomicLong bytesParsed = new AtomicLong();
+
+            List<Callable<Segment>> tasks = new ArrayList<>(entries.size());
+            for (ZipEntry entry : entries) {
+                tasks.add(() -> {
+                    // Rows and bytes of this entry already counted in the totals
+                    long[] counted = {0, 0};
+                    try (InflatingChannel channel = new InflatingChannel(zip.getInputStream(entry))) {
+                        return parseStream(channel, listener, (rows, read) -> {
+                            listener.progress(rowsParsed.addAndGet(rows - counted[0]),
+                                    bytesParsed.addAndGet(read - counted[1]), size);
+                            counted[0] = rows;
+                            counted[1] = read;
+                        });
+                    }
+                });
+            }
+            TransactionStore rows = merge(submit(tasks), listener);
+            lastBytesRead = file.length();
+            return rows;
+        }
+    }
+
+    // Runs the tasks on the pool, or a single one right here
+    private List<Future<Segment>> submit(List<Callable<Segment>> tasks) {
+        List<Future<Segment>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Segment> task : tasks) {
+            if (tasks.size() == 1) {
+                // Not worth a hand-off to the pool
+                FutureTask<Segment> inline = new FutureTask<>(task);
+                inline.run();
+                futures.add(inline);
+            } else {
+                futures.add(pool.submit(task));
+            }
+        }
+        return futures;
+    }
+
+    // Appends the segments in order as each one is done
+    private TransactionStore merge(List<Future<Segment>> futures, ProgressListener listener) throws IOException {
+        TransactionStore rows = new TransactionStore();
+        int parseErrors = 0;
+        try {
+            for (Future<Segment> f : futures) {
+                Segment s = join(f);
+                // Report bad lines in file order, exactly as the line-by-line reader did
+                for (String line : s.errors) {
+                    System.out.println("Error parsing line: " + line);
+                }
+                parseErrors += s.errors.size();
+                if (futures.size() == 1) {
+                    rows = s.rows;
+                } else {
+                    rows.appendAll(s.rows);
+                }
+                listener.rowsAvailable(rows, rows.size());
+            }
+        } finally {
+            // After a failure or a cancel, segments that have not started are dropped
+            for (Future<Segment> f : futures) {
+                f.cancel(false);
+            }
+        }
+        lastParseErrors = parseErrors;
+        return rows;
+    }
+
+    // Lines the last completed ingest could not parse
+    public int getLastParseErrors() {
+        return lastParseErrors;
+    }
+
+    // Bytes the last completed ingest read
+    public long getLastBytesRead() {
+        return lastBytesRead;
+    }
+
+    // Picks segment end points and moves each one forward past the next line terminator
+    private List<long[]> splitOnLineBoundaries(FileChannel channel, long size) throws IOException {
+        int cores = Math.max(1, pool.getParallelism());
+        long target = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, size / (cores * 4L)));
+
+        List<long[]> bounds = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + target);
+            if (end < size) {
+                end = nextLineStart(channel, end, size, probe);
+            }
+            bounds.add(new long[]{start, end});
+            start = end;
+        }
+        if (bounds.isEmpty()) {
+            bounds.add(new long[]{0, 0});
+        }
+        return bounds;
+    }
+
+    private long nextLineStart(FileChannel channel, long from, long size, ByteBuffer probe) throws IOException {
+        long pos = from;
+        while (pos < size) {
+            probe.clear();
+            int n = channel.read(probe, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                byte b = probe.get(i);
+                if (b == '\n') {
+                    return pos + i + 1;
+                }
+                if (b == '\r') {
+                    // Keep a CRLF pair together in one segment
+                    long next = pos + i + 1;
+                    if (i + 1 < n) {
+                        return probe.get(i + 1) == '\n' ? next + 1 : next;
+                    }
+                    ByteBuffer one = ByteBuffer.allocate(1);
+                    if (next < size && channel.read(one, next) == 1 && one.get(0) == '\n') {
+                        return next + 1;
+                    }
+                    return next;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private Segment parseSegment(FileChannel channel, long start, long end,
+                                 ProgressListener listener) throws IOException {
+        Segment segment = new Segment();
+        int length = (int) (end - start);
+        checkCancelled(listener);
+        if (length == 0) {
+            return segment;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+
+        CsvLineParser parser = new CsvLineParser(charset);
+        int lineStart = 0;
+        boolean firstLineOfFile = start == 0;
+        int pos = 0;
+        int lines = 0;
+        while (pos < length) {
+            byte b = buffer.get(pos);
+            if (b == '\n' || b == '\r') {
+                addLine(segment, parser, parser.parse(buffer, lineStart, pos, firstLineOfFile));
+                firstLineOfFile = false;
+                if ((++lines & CANCEL_CHECK_INTERVAL) == 0) {
+                    checkCancelled(listener);
+                }
+                if (b == '\r' && pos + 1 < length && buffer.get(pos + 1) == '\n') {
+                    pos++;
+                }
+                lineStart = pos + 1;
+            }
+            pos++;
+        }
+        if (lineStart < length) {
+            addLine(segment, parser, parser.parse(buffer, lineStart, length, firstLineOfFile));
+        }
+        return segment;
+    }
+
+    // Parses the lines of a channel front to back on the calling thread.
+    // progress is told the rows parsed and bytes read after every read.
+    private Segment parseStream(ReadableByteChannel channel, ProgressListener listener,
+                                StreamProgress progress) throws IOException {
+        Segment segment = new Segment();
+        CsvLineParser parser = new CsvLineParser(charset);
+        LineScanner.scan(channel, -1, listener, "Import cancelled", new LineScanner.Handler() {
+            @Override
+            public void line(ByteBuffer buffer, int from, int to, boolean firstLineOfFile) {
+                addLine(segment, parser, parser.parse(buffer, from, to, firstLineOfFile));
+            }
+
+            @Override
+            public void progress(long read, long size) throws IOException {
+                progress.read(segment.rows.size(), read);
+            }
+        });
+        return segment;
+    }
+
+    private interface StreamProgress {
+        void read(int rows, long read) throws IOException;
+    }
+
+    private static void addLine(Segment segment, CsvLineParser parser, int parsed) {
+        if (parsed == CsvLineParser.ERROR) {
+            segment.errors.add(parser.lineText());
+        } else if (parsed == CsvLineParser.ROW) {
+            int row = segment.rows.addRow(parser.text(0), parser.text(1), parser.internalPrice,
+                    parser.discount, parser.salePrice, parser.quantity, parser.checksum, parser.rawTotal);
+            segment.rows.setFingerprint(row, parser.fingerprint());
+            if (!parser.originalsCanonical) {
+                // Fields 2..6 are contiguous in the line, so they are kept as one slice
+                segment.rows.setOriginalText(row, parser.line, parser.fieldStart[2], parser.fieldEnd[6]);
+            }
+        }
+    }
+
+    private static void checkCancelled(ProgressListener listener) {
+        if (listener.isCancelled()) {
+            throw new CancellationException("Import cancelled");
+        }
+    }
+
+    private static Segment join(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Import interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // Rows and bad lines of one segment, in the order they appear in the file
+    private static final class Segment {
+        final TransactionStore rows = new TransactionStore();
+        final List<String> errors = new ArrayList<>();
+    }
+}
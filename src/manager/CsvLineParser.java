@@ -0,0 +1,227 @@
+package manager;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+// Tokenizer for one CSV line of a filing, shared by CsvIngestEngine and
+// StreamingTaxCalculator so both accept exactly the same lines. One instance
+// is only ever used by one thread, so the scratch buffers are reused for
+// every line.
+final class CsvLineParser {
+    // Result of parse()
+    static final int SKIPPED = 0;  // header, or fewer than eight fields
+    static final int ERROR = 1;    // a numeric field does not parse
+    static final int ROW = 2;
+
+    static final int FIELD_COUNT = 8;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final Charset charset;
+    final int[] fieldStart = new int[FIELD_COUNT];
+    final int[] fieldEnd = new int[FIELD_COUNT];
+    byte[] line = new byte[256];
+    int length;
+
+    // Fields of the last ROW
+    double internalPrice;
+    double discount;
+    double salePrice;
+    int quantity;
+    double rawTotal;
+    int checksum;
+    // False when fields 2..6 are written in a way the store cannot rebuild
+    // from the parsed values, e.g. "12.5" or "+3"
+    boolean originalsCanonical;
+    private boolean canonical;
+
+    CsvLineParser(Charset charset) {
+        this.charset = charset;
+    }
+
+    // Parses bytes [from, to) of the buffer, without the line terminator
+    int parse(ByteBuffer buffer, int from, int to, boolean firstLineOfFile) {
+        length = to - from;
+        if (line.length < length) {
+            line = new byte[Math.max(length, line.length * 2)];
+        }
+        buffer.get(from, line, 0, length);
+
+        if (firstLineOfFile) {
+            String header = new String(line, 0, length, charset);
+            if (header.contains("BillID") || header.contains("ItemCode")) {
+                return SKIPPED;
+            }
+        }
+
+        // Locate the first eight fields; anything after them is ignored
+        int fields = 0;
+        int start = 0;
+        for (int i = 0; i < length && fields < FIELD_COUNT; i++) {
+            if (line[i] == ',') {
+                fieldStart[fields] = start;
+                fieldEnd[fields] = i;
+                fields++;
+                start = i + 1;
+            }
+        }
+        if (fields < FIELD_COUNT) {
+            fieldStart[fields] = start;
+            fieldEnd[fields] = length;
+            fields++;
+        }
+        if (fields < FIELD_COUNT || !hasEightFields()) {
+            return SKIPPED;
+        }
+
+        try {
+            canonical = true;
+            internalPrice = parseDouble(2);
+            discount = parseDouble(3);
+            salePrice = parseDouble(4);
+            quantity = parseInt(5);
+            rawTotal = parseDouble(6);
+            originalsCanonical = canonical;
+            checksum = parseInt(7);
+            return ROW;
+        } catch (NumberFormatException e) {
+            return ERROR;
+        }
+    }
+
+    // Fingerprint of the eight fields of the last ROW, as kept by the store
+    long fingerprint() {
+        return fingerprint(line, 0, fieldEnd[7]);
+    }
+
+    // 64-bit hash of bytes [from, to), eight at a time. Lines are compared by
+    // it when a revised file is re-imported, so it only has to make equal
+    // fingerprints of different lines unlikely, not impossible to arrange.
+    static long fingerprint(byte[] bytes, int from, int to) {
+        long h = 0x9E3779B97F4A7C15L ^ (to - from);
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            h = Long.rotateLeft(h ^ (long) LONGS.get(bytes, i) * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        }
+        long tail = 0;
+        for (int shift = 0; i < to; i++, shift += 8) {
+            tail |= (bytes[i] & 0xFFL) << shift;
+        }
+        h = Long.rotateLeft(h ^ tail * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        // Final mix of MurmurHash3, so every input bit reaches every output bit
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    String text(int field) {
+        return new String(line, fieldStart[field], fieldEnd[field] - fieldStart[field], charset);
+    }
+
+    String lineText() {
+        return new String(line, 0, length, charset);
+    }
+
+    // String.split(",") drops trailing empty fields, so a line only has eight
+    // parts when the eighth field or something after it is non-empty
+    private boolean hasEightFields() {
+        if (fieldEnd[7] > fieldStart[7]) {
+            return true;
+        }
+        for (int i = fieldEnd[7]; i < length; i++) {
+            if (line[i] != ',') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Plain decimals like "-12.50" are parsed here; anything else (exponents,
+    // whitespace, NaN, long mantissas) goes through Double.parseDouble so the
+    // accepted syntax and the exact value never change
+    private double parseDouble(int field) {
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        int integerStart = i;
+        int integerDigits = 0;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenDot = false;
+        for (; i < end; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenDot) {
+                    fractionDigits++;
+                } else {
+                    integerDigits++;
+                }
+            } else if (b == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                canonical = false;
+                return Double.parseDouble(text(field));
+            }
+        }
+        if (digits == 0 || digits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+            canonical = false;
+            return Double.parseDouble(text(field));
+        }
+        // Canonical means exactly "[-]digits.dd" without a redundant leading zero
+        if (fractionDigits != 2 || integerDigits == 0 || line[fieldStart[field]] == '+'
+                || (integerDigits > 1 && line[integerStart] == '0')) {
+            canonical = false;
+        }
+        // Both operands are exact doubles, so a single division is correctly rounded
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private int parseInt(int field) {
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        int digits = end - i;
+        if (digits == 0 || digits > 9) {
+            canonical = false;
+            return Integer.parseInt(text(field));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') {
+                canonical = false;
+                return Integer.parseInt(text(field));
+            }
+            value = value * 10 + (b - '0');
+        }
+        // Integer.toString gives back the same text unless it had "+", "-0" or leading zeros
+        if (line[fieldStart[field]] == '+' || (digits > 1 && line[end - digits] == '0')
+                || (negative && value == 0)) {
+            canonical = false;
+        }
+        return negative ? -value : value;
+    }
+}
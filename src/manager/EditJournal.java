@@ -0,0 +1,412 @@
+package manager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead log of the edits and deletes made to an imported
+// filing, so they survive a crash and are replayed over the CSV (or its
+// snapshot) when the filing is opened again. Rows are identified by their
+// stable id.
+//
+// Appending only encodes the record into a buffer. A writer thread writes
+// whatever has piled up and forces it to disk with one fsync, so edits that
+// arrive while an fsync runs share the next one (group commit) and an edit
+// never waits for the disk. flush() waits until everything appended so far
+// is durable.
+//
+// File layout, little-endian: a header (magic, version, size and
+// modification time of the source CSV), then frames of
+// [payload length][payload][CRC32 of payload]. A torn frame at the end is
+// dropped when the journal is read. Once the file passes a size threshold
+// the writer rewrites it with one record per touched row.
+final class EditJournal implements Closeable {
+    // "TXJRNL" in the first bytes of the file
+    private static final long MAGIC = 0x0000_4C4E_524A_5854L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final byte UPDATE = 1;
+    private static final byte DELETE = 2;
+    private static final int MAX_IDS_PER_FRAME = 1 << 14;
+    private static final long COMPACT_THRESHOLD = 8 << 20;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    // Values of the editable fields of a row
+    static final class Fields {
+        final String itemCode;
+        final double internalPrice;
+        final double discount;
+        final double salePrice;
+        final int quantity;
+
+        Fields(String itemCode, double internalPrice, double discount, double salePrice, int quantity) {
+            this.itemCode = itemCode;
+            this.internalPrice = internalPrice;
+            this.discount = discount;
+            this.salePrice = salePrice;
+            this.quantity = quantity;
+        }
+
+        boolean sameAs(Fields other) {
+            return itemCode.equals(other.itemCode)
+                    && Double.compare(internalPrice, other.internalPrice) == 0
+                    && Double.compare(discount, other.discount) == 0
+                    && Double.compare(salePrice, other.salePrice) == 0
+                    && quantity == other.quantity;
+        }
+    }
+
+    interface Visitor {
+        void updated(int id, Fields before, Fields after, int checksum);
+
+        void deleted(int id);
+    }
+
+    private final File file;
+    private final long sourceLength;
+    private final long sourceModified;
+    private final Thread writer;
+    private FileChannel channel;
+    private long compactThreshold = COMPACT_THRESHOLD;
+
+    // Guarded by this: encoded frames not written yet, and sequence numbers
+    // of the last appended and the last durable frame
+    private ByteBuffer pending = newBuffer(1 << 16);
+    private long appended;
+    private long durable;
+    private IOException failure;
+    private boolean closed;
+
+    private EditJournal(File file, long sourceLength, long sourceModified, FileChannel channel) {
+        this.file = file;
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.channel = channel;
+        writer = new Thread(this::writeLoop, "edit-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Opens the journal for appending, creating it if needed. An existing
+    // journal must belong to the same source file.
+    static EditJournal open(File file, long sourceLength, long sourceModified) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeHeader(channel, sourceLength, sourceModified);
+                channel.force(true);
+            } else if (!matches(channel, sourceLength, sourceModified)) {
+                throw new IOException("Journal " + file + " belongs to another version of the file");
+            }
+            channel.position(channel.size());
+            return new EditJournal(file, sourceLength, sourceModified, channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // True if the file is a journal of the source file with this size and
+    // modification time
+    static boolean matches(File file, long sourceLength, long sourceModified) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return matches(channel, sourceLength, sourceModified);
+        }
+    }
+
+    private static boolean matches(FileChannel channel, long sourceLength, long sourceModified) throws IOException {
+        ByteBuffer header = newBuffer(HEADER_SIZE);
+        if (channel.read(header, 0) != HEADER_SIZE) {
+            return false;
+        }
+        header.flip();
+        return header.getLong() == MAGIC && header.getInt() == VERSION
+                && header.getLong() == sourceLength && header.getLong() == sourceModified;
+    }
+
+    private static void writeHeader(FileChannel channel, long sourceLength, long sourceModified) throws IOException {
+        ByteBuffer header = newBuffer(HEADER_SIZE);
+        header.putLong(MAGIC).putInt(VERSION).putLong(sourceLength).putLong(sourceModified).flip();
+        for (long position = 0; header.hasRemaining(); ) {
+            position += channel.write(header, position);
+        }
+    }
+
+    // Reads every complete record in order. A torn or damaged frame ends the
+    // journal; it is cut off so that appends continue after the last good one.
+    // Returns the number of records read.
+    static int replay(File file, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Journal " + file + " is too large");
+            }
+            if (size < HEADER_SIZE) {
+                return 0;
+            }
+            ByteBuffer in = newBuffer((int) size);
+            while (in.hasRemaining() && channel.read(in) >= 0) {
+                // read the whole file
+            }
+            in.flip();
+            in.position(HEADER_SIZE);
+            int records = 0;
+            long good = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (in.remaining() >= Integer.BYTES) {
+                int length = in.getInt();
+                if (length <= 0 || length > in.remaining() - Integer.BYTES) {
+                    break;
+                }
+                ByteBuffer payload = in.slice(in.position(), length).order(ORDER);
+                crc.reset();
+                crc.update(payload.duplicate());
+                in.position(in.position() + length);
+                if ((int) crc.getValue() != in.getInt()) {
+                    break;
+                }
+                records += decode(payload, visitor);
+                good = in.position();
+            }
+            if (good < size) {
+                System.out.println("Dropping " + (size - good) + " damaged bytes at the end of " + file);
+                channel.truncate(good);
+            }
+            return records;
+        }
+    }
+
+    private static int decode(ByteBuffer payload, Visitor visitor) throws IOException {
+        byte type = payload.get();
+        if (type == UPDATE) {
+            int id = payload.getInt();
+            Fields before = getFields(payload);
+            Fields after = getFields(payload);
+            visitor.updated(id, before, after, payload.getInt());
+            return 1;
+        }
+        if (type != DELETE) {
+            throw new IOException("Unknown journal record type " + type);
+        }
+        int count = payload.getInt();
+        for (int i = 0; i < count; i++) {
+            visitor.deleted(payload.getInt());
+        }
+        return count;
+    }
+
+    void updated(int id, Fields before, Fields after, int checksum) {
+        byte[] oldCode = before.itemCode.getBytes(StandardCharsets.UTF_8);
+        byte[] newCode = after.itemCode.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + Integer.BYTES + 2 * (Integer.BYTES + 3 * Double.BYTES + Integer.BYTES)
+                + oldCode.length + newCode.length + Integer.BYTES;
+        synchronized (this) {
+            ByteBuffer frame = beginFrame(length);
+            frame.put(UPDATE).putInt(id);
+            putFields(frame, oldCode, before);
+            putFields(frame, newCode, after);
+            frame.putInt(checksum);
+            endFrame(length);
+        }
+    }
+
+    void deleted(int... ids) {
+        synchronized (this) {
+            for (int from = 0; from < ids.length; from += MAX_IDS_PER_FRAME) {
+                int count = Math.min(MAX_IDS_PER_FRAME, ids.length - from);
+                int length = 1 + Integer.BYTES + count * Integer.BYTES;
+                ByteBuffer frame = beginFrame(length);
+                frame.put(DELETE).putInt(count);
+                for (int i = from; i < from + count; i++) {
+                    frame.putInt(ids[i]);
+                }
+                endFrame(length);
+            }
+        }
+    }
+
+    // Reserves room for a frame and writes its length; the caller holds the lock
+    private ByteBuffer beginFrame(int length) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        int needed = length + 2 * Integer.BYTES;
+        if (pending.remaining() < needed) {
+            ByteBuffer larger = newBuffer(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.putInt(length);
+        return pending;
+    }
+
+    private void endFrame(int length) {
+        CRC32 crc = new CRC32();
+        crc.update(pending.array(), pending.position() - length, length);
+        pending.putInt((int) crc.getValue());
+        appended++;
+        notifyAll();
+    }
+
+    // Waits until every record appended so far is on disk
+    synchronized void flush() throws IOException {
+        long target = appended;
+        boolean interrupted = false;
+        while (durable < target && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new IOException("Journal " + file + " could not be written", failure);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer batch = newBuffer(1 << 16);
+        while (true) {
+            long sequence;
+            synchronized (this) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only close() ends the writer
+                    }
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+                // Swap buffers so appends go on while this batch is written
+                ByteBuffer full = pending;
+                pending = batch;
+                batch = full;
+                sequence = appended;
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+                batch.clear();
+                if (channel.size() > compactThreshold) {
+                    compact();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                durable = sequence;
+                notifyAll();
+            }
+        }
+    }
+
+    // Rewrites the journal with the net effect of its records: the first old
+    // and the last new values of every updated row, and every deleted row
+    // once. Runs on the writer thread, so appends keep buffering meanwhile.
+    private void compact() throws IOException {
+        Map<Integer, Fields[]> updates = new LinkedHashMap<>();
+        Map<Integer, Integer> checksums = new HashMap<>();
+        Set<Integer> deleted = new LinkedHashSet<>();
+        replay(file, new Visitor() {
+            @Override
+            public void updated(int id, Fields before, Fields after, int checksum) {
+                Fields[] change = updates.get(id);
+                updates.put(id, new Fields[]{change == null ? before : change[0], after});
+                checksums.put(id, checksum);
+            }
+
+            @Override
+            public void deleted(int id) {
+                updates.remove(id);
+                checksums.remove(id);
+                deleted.add(id);
+            }
+        });
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (EditJournal compacted = open(newEmpty(temporary), sourceLength, sourceModified)) {
+            // Already compacted, so it must not try again however large it is
+            compacted.compactThreshold = Long.MAX_VALUE;
+            for (Map.Entry<Integer, Fields[]> e : updates.entrySet()) {
+                compacted.updated(e.getKey(), e.getValue()[0], e.getValue()[1], checksums.get(e.getKey()));
+            }
+            compacted.deleted(deleted.stream().mapToInt(Integer::intValue).toArray());
+        }
+        channel.close();
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        // Mostly distinct rows do not shrink; wait for twice the size next time
+        compactThreshold = Math.max(COMPACT_THRESHOLD, channel.size() * 2);
+    }
+
+    private static File newEmpty(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        return file;
+    }
+
+    private static void putFields(ByteBuffer out, byte[] itemCode, Fields fields) {
+        out.putInt(itemCode.length).put(itemCode)
+                .putDouble(fields.internalPrice).putDouble(fields.discount).putDouble(fields.salePrice)
+                .putInt(fields.quantity);
+    }
+
+    private static Fields getFields(ByteBuffer in) {
+        byte[] itemCode = new byte[in.getInt()];
+        in.get(itemCode);
+        return new Fields(new String(itemCode, StandardCharsets.UTF_8),
+                in.getDouble(), in.getDouble(), in.getDouble(), in.getInt());
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ORDER);
+    }
+}
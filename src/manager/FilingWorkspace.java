@@ -0,0 +1,215 @@
+package manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The filings an auditor has open, each with its own TransactionManager,
+// so switching between them does not parse the file again.
+//
+// Filings are keyed by their absolute path and are only reused while the
+// file keeps the size and modification time it was read with; a changed
+// file is read again. Loaded filings are kept while their estimated heap
+// need fits the budget, and beyond it the least recently opened ones are
+// spilled: their rows, with edits, deletes and validation state, are
+// written to a snapshot in the spill directory and the manager is dropped.
+// Opening a spilled filing faults it back in from there, exactly as it was
+// left, without parsing the file. The edit journal of the file stays the
+// record of its edits, so a lost spill file only means a slower reopen.
+//
+// Not thread-safe; like a TransactionManager it is meant to be used by one
+// thread at a time.
+public class FilingWorkspace {
+    // Most recently opened last; spilled filings stay listed with no manager
+    private final LinkedHashMap<String, Entry> filings = new LinkedHashMap<>();
+    private final File spillDirectory;
+    private long heapBudgetBytes;
+    // Given to every manager the workspace creates; null for none
+    private FingerprintIndex fingerprints;
+
+    public FilingWorkspace(long heapBudgetBytes, File spillDirectory) {
+        this.heapBudgetBytes = heapBudgetBytes;
+        this.spillDirectory = spillDirectory;
+    }
+
+    // The manager of the filing, faulted in or loaded when it is not in
+    // memory. Returns null when the file could not be loaded or has no rows.
+    // A cancel throws CancellationException.
+    public TransactionManager open(String filePath, ProgressListener listener) {
+        rekey();
+        String key = keyOf(new File(filePath));
+        Entry entry = filings.remove(key);
+        if (entry == null) {
+            entry = new Entry();
+        }
+        filings.put(key, entry);
+        if (entry.manager != null) {
+            if (entry.manager.isSourceCurrent()) {
+                return entry.manager;
+            }
+            // The file changed, so its rows are read again
+            entry.manager.closeJournal();
+            entry.manager = null;
+        }
+
+        TransactionManager manager = new TransactionManager();
+        manager.setFingerprintIndex(fingerprints);
+        boolean loaded = entry.spill != null && manager.restoreSpilled(entry.spill, filePath)
+                ? manager.getStore().size() > 0
+                : manager.openTransactions(filePath, listener);
+        deleteSpill(entry);
+        if (!loaded) {
+            manager.closeJournal();
+            filings.remove(key);
+            return null;
+        }
+        entry.manager = manager;
+        spillOverBudget(manager);
+        return manager;
+    }
+
+    // Whether the filing is in memory, so open returns it at once
+    public boolean isLoaded(String filePath) {
+        Entry entry = filings.get(keyOf(new File(filePath)));
+        return entry != null && entry.manager != null;
+    }
+
+    // Paths of the loaded and spilled filings, most recently opened first
+    public List<String> getFilings() {
+        rekey();
+        List<String> paths = new ArrayList<>(filings.keySet());
+        Collections.reverse(paths);
+        return paths;
+    }
+
+    // Drops the filing from the workspace, journaled edits are kept on disk
+    public void close(String filePath) {
+        Entry entry = filings.remove(keyOf(new File(filePath)));
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    // Closes the journals of every loaded filing and deletes the spill
+    // files, e.g. on exit
+    public void closeAll() {
+        for (Entry entry : filings.values()) {
+            release(entry);
+        }
+        filings.clear();
+    }
+
+    // Filings opened from then on are checked for lines filed before in
+    // other filings, and recorded. The workspace does not close the index.
+    public void setFingerprintIndex(FingerprintIndex fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    public long getHeapBudgetBytes() {
+        return heapBudgetBytes;
+    }
+
+    // Takes effect at the next open
+    public void setHeapBudgetBytes(long heapBudgetBytes) {
+        this.heapBudgetBytes = heapBudgetBytes;
+    }
+
+    // Estimated heap of the loaded filings, from the size of their files
+    public long getUsedHeapBytes() {
+        long used = 0;
+        for (Entry entry : filings.values()) {
+            if (entry.manager != null) {
+                used += heapBytesOf(entry.manager);
+            }
+        }
+        return used;
+    }
+
+    // Spills the least recently opened filings until the rest fit, keeping
+    // the one just opened even when it alone is over the budget. A filing
+    // that cannot be spilled stays loaded.
+    private void spillOverBudget(TransactionManager keep) {
+        long used = getUsedHeapBytes();
+        for (Map.Entry<String, Entry> e : filings.entrySet()) {
+            if (used <= heapBudgetBytes) {
+                return;
+            }
+            Entry entry = e.getValue();
+            TransactionManager manager = entry.manager;
+            if (manager == null || manager == keep) {
+                continue;
+            }
+            File spill = new File(spillDirectory, new File(e.getKey()).getName() + "-"
+                    + Integer.toHexString(e.getKey().hashCode()) + ".spill");
+            try {
+                if ((!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) || !manager.spill(spill)) {
+                    continue;
+                }
+            } catch (IOException ex) {
+                System.out.println("Could not spill " + e.getKey() + ": " + ex.getMessage());
+                continue;
+            }
+            used -= heapBytesOf(manager);
+            manager.closeJournal();
+            entry.manager = null;
+            entry.spill = spill;
+        }
+    }
+
+    // A re-import can point a manager at another file, so loaded filings are
+    // listed under the file their rows now come from
+    private void rekey() {
+        List<Entry> moved = new ArrayList<>();
+        for (Iterator<Map.Entry<String, Entry>> it = filings.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> e = it.next();
+            TransactionManager manager = e.getValue().manager;
+            if (manager != null && manager.getSource() != null && !keyOf(manager.getSource()).equals(e.getKey())) {
+                it.remove();
+                moved.add(e.getValue());
+            }
+        }
+        for (Entry entry : moved) {
+            Entry replaced = filings.put(keyOf(entry.manager.getSource()), entry);
+            if (replaced != null) {
+                release(replaced);
+            }
+        }
+    }
+
+    private static void release(Entry entry) {
+        if (entry.manager != null) {
+            entry.manager.closeJournal();
+            entry.manager = null;
+        }
+        deleteSpill(entry);
+    }
+
+    private static void deleteSpill(Entry entry) {
+        if (entry.spill != null) {
+            if (!entry.spill.delete() && entry.spill.exists()) {
+                System.out.println("Could not delete " + entry.spill);
+            }
+            entry.spill = null;
+        }
+    }
+
+    private static long heapBytesOf(TransactionManager manager) {
+        return BatchProcessor.estimatedHeapBytes(manager.getSource());
+    }
+
+    static String keyOf(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    private static final class Entry {
+        // Null while spilled
+        TransactionManager manager;
+        // The rows written when it was spilled, null while loaded
+        File spill;
+    }
+}
@@ -0,0 +1,594 @@
+package manager;
+
+import Model.TransactionStore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Every line fingerprint ever filed, with the filing it was first filed in,
+// kept in a directory on disk so a line filed again in another filing (a
+// duplicate or a replayed file) is caught however many filings came before.
+// Fingerprints are the 64-bit hashes CsvLineParser gives rows on import.
+//
+// Files of the directory, little-endian:
+// - table: a header (magic, version, capacity bits, count), then an
+//   open-addressing hash table of [fingerprint][filing id][unused] slots,
+//   memory-mapped. The home slot of a fingerprint is its top bits, so a
+//   sorted batch of fingerprints walks the table front to back.
+// - bloom: a blocked Bloom filter over the table and the pending lines, one
+//   64-byte block per 64 slots, so a line never filed costs one cache line
+//   and no table read. Rebuilt from them when it does not fit the table.
+// - pending: fingerprints recorded since the last merge, appended as
+//   [fingerprint][filing id]. They are held in memory too, and merged into
+//   the table in slot order once there are enough of them, so the table is
+//   only ever written sequentially. The table doubles before it is half
+//   full; a grown table is written aside and renamed over the old one.
+//   Merging again after a crash only finds the lines already there.
+// - filings: lines of [filing id][tab][key]. A revision of a filing is
+//   listed under the id of the filing it revises.
+// - lock: held while the index is open, so one process uses it at a time.
+//
+// Not thread-safe beyond its synchronized methods.
+public final class FingerprintIndex implements Closeable {
+    // "TXFPIX" in the first bytes of the table
+    private static final long MAGIC = 0x0000_5849_5046_5854L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final int RECORD_SIZE = 12;
+    private static final int MIN_CAPACITY_BITS = 16;
+    // Slots per Bloom block, at 8 bits per slot
+    private static final int BLOCK_SLOT_BITS = 6;
+    private static final int BLOOM_PROBES = 6;
+    // Pending lines merged at once: enough that a merge does not sweep the
+    // table for a handful of lines, few enough to keep them in memory
+    private static final int MIN_MERGE = 1 << 18;
+    private static final int MAX_MERGE = 1 << 22;
+    private static final int SEGMENT_BITS = 30;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final File directory;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<String, Integer> filingIds = new HashMap<>();
+    private int filingCount;
+    private final FileChannel pendingLog;
+    private final Pending pending = new Pending();
+    private int capacityBits;
+    private long count;
+    private Mapped table;
+    private Mapped bloom;
+    private boolean closed;
+
+    private FingerprintIndex(File directory, FileChannel lockChannel, FileLock lock, FileChannel pendingLog) {
+        this.directory = directory;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.pendingLog = pendingLog;
+    }
+
+    // Opens the index in the directory, creating it when it is empty. Throws
+    // when it is open already, in this process or another.
+    public static FingerprintIndex open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        FileChannel lockChannel = FileChannel.open(new File(directory, "lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileChannel pendingLog = null;
+        try {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Open in this process already
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException(directory + " is open already");
+            }
+            pendingLog = FileChannel.open(new File(directory, "pending").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FingerprintIndex index = new FingerprintIndex(directory, lockChannel, lock, pendingLog);
+            index.load();
+            return index;
+        } catch (IOException | RuntimeException e) {
+            if (pendingLog != null) {
+                pendingLog.close();
+            }
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        File filingsFile = new File(directory, "filings");
+        if (filingsFile.exists()) {
+            for (String line : Files.readAllLines(filingsFile.toPath(), StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                int id = Integer.parseInt(line.substring(0, tab));
+                filingIds.put(line.substring(tab + 1), id);
+                filingCount = Math.max(filingCount, id + 1);
+            }
+        }
+        File tableFile = new File(directory, "table");
+        if (!tableFile.exists()) {
+            writeTable(tableFile, MIN_CAPACITY_BITS, null);
+        }
+        mapTable(tableFile);
+        if (new File(directory, "bloom").length() != bloomBytes(capacityBits)) {
+            rebuildBloom();
+        } else {
+            bloom = new Mapped(new File(directory, "bloom"), bloomBytes(capacityBits));
+        }
+        // Lines recorded since the last merge; a torn record at the end is
+        // dropped
+        long records = pendingLog.size() / RECORD_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE << 12).order(ORDER);
+        long position = 0;
+        while (position < records * RECORD_SIZE) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), records * RECORD_SIZE - position));
+            while (buffer.hasRemaining()) {
+                if (pendingLog.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + directory + "/pending");
+                }
+            }
+            position += buffer.flip().remaining();
+            while (buffer.hasRemaining()) {
+                long fingerprint = buffer.getLong();
+                int filing = buffer.getInt();
+                if (pending.get(fingerprint) < 0) {
+                    pending.put(fingerprint, filing);
+                    bloomAdd(fingerprint);
+                }
+            }
+        }
+        pendingLog.truncate(records * RECORD_SIZE);
+        pendingLog.position(records * RECORD_SIZE);
+    }
+
+    // Records the fingerprints of the live rows of a filing and returns the
+    // ids of the rows whose line an earlier, different filing already had.
+    // Recording the same filing again flags nothing, so reopening a filing
+    // is not a replay; a line repeated within one filing is not flagged
+    // either. Rows without a fingerprint (added by hand) are skipped.
+    public BitSet checkAndRecord(TransactionStore store, String filing) throws IOException {
+        return checkAndRecord(store, filing, null);
+    }
+
+    // Like checkAndRecord(store, filing) for a revised version of the filing
+    // revisionOf, which may be kept under another key: the lines the two
+    // have in common are not flagged, now or when either is opened again.
+    // A key already recorded as a filing of its own stays one.
+    public synchronized BitSet checkAndRecord(TransactionStore store, String filing, String revisionOf)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Fingerprint index is closed");
+        }
+        int filingId = filingId(filing, revisionOf);
+        long[] lines = new long[store.liveSize()];
+        int n = 0;
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            for (int i = 0; i < chunk.size; i++) {
+                if (!chunk.isDeleted(i) && chunk.fingerprint[i] != 0) {
+                    lines[n++] = chunk.fingerprint[i];
+                }
+            }
+        }
+        long[] seen = record(lines, n, filingId);
+        BitSet ids = new BitSet();
+        if (seen.length == 0) {
+            return ids;
+        }
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            for (int i = 0; i < chunk.size; i++) {
+                if (!chunk.isDeleted(i) && chunk.fingerprint[i] != 0
+                        && Arrays.binarySearch(seen, chunk.fingerprint[i]) >= 0) {
+                    ids.set(chunk.id[i]);
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Records the first n lines of a filing and returns, sorted, the ones
+    // another filing had first. Sorts lines in place.
+    private long[] record(long[] lines, int n, int filing) throws IOException {
+        sortBySlot(lines, n);
+        long[] seen = new long[16];
+        int seenCount = 0;
+        ByteBuffer appended = ByteBuffer.allocate(RECORD_SIZE << 12).order(ORDER);
+        for (int k = 0; k < n; k++) {
+            long fingerprint = lines[k];
+            if (k > 0 && fingerprint == lines[k - 1]) {
+                continue;
+            }
+            int owner = bloomMightContain(fingerprint) ? find(fingerprint) : -1;
+            if (owner < 0) {
+                pending.put(fingerprint, filing);
+                bloomAdd(fingerprint);
+                if (!appended.hasRemaining()) {
+                    writeFully(appended.flip());
+                    appended.clear();
+                }
+                appended.putLong(fingerprint).putInt(filing);
+            } else if (owner != filing) {
+                if (seenCount == seen.length) {
+                    seen = Arrays.copyOf(seen, seenCount * 2);
+                }
+                seen[seenCount++] = fingerprint;
+            }
+        }
+        writeFully(appended.flip());
+        if (pending.size() >= Math.min(MAX_MERGE, Math.max(MIN_MERGE, (1L << capacityBits) >>> 4))) {
+            merge();
+        }
+        seen = Arrays.copyOf(seen, seenCount);
+        Arrays.sort(seen);
+        return seen;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            pendingLog.write(buffer);
+        }
+    }
+
+    // The filing that has the line, or -1
+    private int find(long fingerprint) {
+        int filing = pending.get(fingerprint);
+        if (filing >= 0) {
+            return filing;
+        }
+        long mask = (1L << capacityBits) - 1;
+        for (long slot = fingerprint >>> -capacityBits; ; slot = (slot + 1) & mask) {
+            long position = HEADER_SIZE + slot * SLOT_SIZE;
+            long key = table.getLong(position);
+            if (key == 0) {
+                return -1;
+            }
+            if (key == fingerprint) {
+                return table.getInt(position + Long.BYTES);
+            }
+        }
+    }
+
+    // Id of the filing, assigned and written down on first use: the id of
+    // the filing it revises, if that is known, or a new one
+    private int filingId(String filing, String revisionOf) throws IOException {
+        if (filing.indexOf('\n') >= 0 || filing.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("A filing key cannot span lines");
+        }
+        Integer id = filingIds.get(filing);
+        if (id == null) {
+            id = revisionOf == null ? null : filingIds.get(revisionOf);
+            if (id == null) {
+                id = filingCount++;
+            }
+            Files.write(new File(directory, "filings").toPath(), List.of(id + "\t" + filing),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            filingIds.put(filing, id);
+        }
+        return id;
+    }
+
+    // Moves the pending lines into the table, growing it first when they
+    // would fill it past half
+    private void merge() throws IOException {
+        long needed = count + pending.size();
+        if (needed * 2 > 1L << capacityBits) {
+            int bits = capacityBits + 1;
+            while (needed * 2 > 1L << bits) {
+                bits++;
+            }
+            File grown = new File(directory, "table.tmp");
+            writeTable(grown, bits, table);
+            Files.move(grown.toPath(), new File(directory, "table").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            mapTable(new File(directory, "table"));
+            rebuildBloom();
+        }
+        long[] lines = pending.keys();
+        sortBySlot(lines, lines.length);
+        for (long fingerprint : lines) {
+            if (insert(table, capacityBits, fingerprint, pending.get(fingerprint))) {
+                count++;
+            }
+        }
+        table.putLong(16, count);
+        // The Bloom filter already has the pending lines, and both files are
+        // on disk before the log of them is dropped
+        bloom.force();
+        table.force();
+        pendingLog.truncate(0);
+        pendingLog.position(0);
+        pendingLog.force(true);
+        pending.clear();
+    }
+
+    // Writes a table of 2^bits slots holding the lines of from, if any
+    private static void writeTable(File file, int bits, Mapped from) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Mapped to = new Mapped(file, HEADER_SIZE + ((long) SLOT_SIZE << bits));
+        to.putLong(0, MAGIC);
+        to.putInt(8, VERSION);
+        to.putInt(12, bits);
+        long count = 0;
+        if (from != null) {
+            long slots = (from.size - HEADER_SIZE) / SLOT_SIZE;
+            for (long slot = 0; slot < slots; slot++) {
+                long position = HEADER_SIZE + slot * SLOT_SIZE;
+                long fingerprint = from.getLong(position);
+                if (fingerprint != 0 && insert(to, bits, fingerprint, from.getInt(position + Long.BYTES))) {
+                    count++;
+                }
+            }
+        }
+        to.putLong(16, count);
+        to.force();
+    }
+
+    // Puts the line in its slot, or the next free one; false when it is
+    // already there
+    private static boolean insert(Mapped table, int bits, long fingerprint, int filing) {
+        long mask = (1L << bits) - 1;
+        for (long slot = fingerprint >>> -bits; ; slot = (slot + 1) & mask) {
+            long position = HEADER_SIZE + slot * SLOT_SIZE;
+            long key = table.getLong(position);
+            if (key == fingerprint) {
+                return false;
+            }
+            if (key == 0) {
+                table.putLong(position, fingerprint);
+                table.putInt(position + Long.BYTES, filing);
+                return true;
+            }
+        }
+    }
+
+    private void mapTable(File file) throws IOException {
+        long length = file.length();
+        if (length < HEADER_SIZE) {
+            throw new IOException(file + " is not a fingerprint table");
+        }
+        Mapped mapped = new Mapped(file, length);
+        int bits = mapped.getInt(12);
+        if (mapped.getLong(0) != MAGIC || mapped.getInt(8) != VERSION || bits < MIN_CAPACITY_BITS || bits > 40
+                || length != HEADER_SIZE + ((long) SLOT_SIZE << bits)) {
+            throw new IOException(file + " is not a fingerprint table");
+        }
+        table = mapped;
+        capacityBits = bits;
+        count = mapped.getLong(16);
+    }
+
+    private static long bloomBytes(int capacityBits) {
+        return 1L << capacityBits;
+    }
+
+    private void rebuildBloom() throws IOException {
+        File file = new File(directory, "bloom");
+        Files.deleteIfExists(file.toPath());
+        bloom = new Mapped(file, bloomBytes(capacityBits));
+        long slots = 1L << capacityBits;
+        for (long slot = 0; slot < slots; slot++) {
+            long fingerprint = table.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+            if (fingerprint != 0) {
+                bloomAdd(fingerprint);
+            }
+        }
+        for (long fingerprint : pending.keys()) {
+            bloomAdd(fingerprint);
+        }
+        bloom.force();
+    }
+
+    // The block of a line is its top bits, like its slot; the probes within
+    // the block come from the low bits, which pick neither
+    private long bloomBlock(long fingerprint) {
+        return (fingerprint >>> -(capacityBits - BLOCK_SLOT_BITS)) << 6;
+    }
+
+    private void bloomAdd(long fingerprint) {
+        long block = bloomBlock(fingerprint);
+        long h = fingerprint * 0x9E3779B97F4A7C15L;
+        for (int p = 0; p < BLOOM_PROBES; p++, h >>>= 9) {
+            long position = block + ((h & 7) << 3);
+            bloom.putLong(position, bloom.getLong(position) | 1L << (h >>> 3));
+        }
+    }
+
+    private boolean bloomMightContain(long fingerprint) {
+        long block = bloomBlock(fingerprint);
+        long h = fingerprint * 0x9E3779B97F4A7C15L;
+        for (int p = 0; p < BLOOM_PROBES; p++, h >>>= 9) {
+            if ((bloom.getLong(block + ((h & 7) << 3)) & 1L << (h >>> 3)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Lines recorded, merged or not
+    public synchronized long size() {
+        return count + pending.size();
+    }
+
+    // Filings recorded, revisions not counted apart
+    public synchronized int filingCount() {
+        return filingCount;
+    }
+
+    // Makes what was recorded so far survive a crash
+    public synchronized void flush() throws IOException {
+        pendingLog.force(true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            pendingLog.close();
+            bloom.force();
+            table.force();
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    // Sorts so the lines come in the order of their home slots, i.e. as
+    // unsigned numbers
+    private static void sortBySlot(long[] lines, int n) {
+        for (int k = 0; k < n; k++) {
+            lines[k] ^= Long.MIN_VALUE;
+        }
+        Arrays.sort(lines, 0, n);
+        for (int k = 0; k < n; k++) {
+            lines[k] ^= Long.MIN_VALUE;
+        }
+    }
+
+    // A file mapped in 1 GB segments, as one buffer cannot reach past 2 GB
+    private static final class Mapped {
+        final long size;
+        private final MappedByteBuffer[] segments;
+
+        Mapped(File file, long size) throws IOException {
+            this.size = size;
+            segments = new MappedByteBuffer[(int) ((size + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS)];
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                for (int s = 0; s < segments.length; s++) {
+                    long start = (long) s << SEGMENT_BITS;
+                    segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                            Math.min(1L << SEGMENT_BITS, size - start));
+                    segments[s].order(ORDER);
+                }
+            }
+        }
+
+        long getLong(long position) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getLong(offset(position));
+        }
+
+        int getInt(long position) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getInt(offset(position));
+        }
+
+        void putLong(long position, long value) {
+            segments[(int) (position >>> SEGMENT_BITS)].putLong(offset(position), value);
+        }
+
+        void putInt(long position, int value) {
+            segments[(int) (position >>> SEGMENT_BITS)].putInt(offset(position), value);
+        }
+
+        void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        private static int offset(long position) {
+            return (int) (position & ((1L << SEGMENT_BITS) - 1));
+        }
+    }
+
+    // Open-addressing map from fingerprint to filing id; fingerprint 0 marks
+    // a free slot, as no recorded line has it
+    private static final class Pending {
+        private long[] keys = new long[1 << 10];
+        private int[] values = new int[1 << 10];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        // The filing of the line, or -1
+        int get(long fingerprint) {
+            int mask = keys.length - 1;
+            for (int slot = slot(fingerprint, mask); ; slot = (slot + 1) & mask) {
+                if (keys[slot] == fingerprint) {
+                    return values[slot];
+                }
+                if (keys[slot] == 0) {
+                    return -1;
+                }
+            }
+        }
+
+        // Adds a line not in the map yet
+        void put(long fingerprint, int filing) {
+            if ((size + 1) * 2 > keys.length) {
+                long[] oldKeys = keys;
+                int[] oldValues = values;
+                keys = new long[oldKeys.length * 2];
+                values = new int[oldKeys.length * 2];
+                for (int s = 0; s < oldKeys.length; s++) {
+                    if (oldKeys[s] != 0) {
+                        place(oldKeys[s], oldValues[s]);
+                    }
+                }
+            }
+            place(fingerprint, filing);
+            size++;
+        }
+
+        private void place(long fingerprint, int filing) {
+            int mask = keys.length - 1;
+            int slot = slot(fingerprint, mask);
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = fingerprint;
+            values[slot] = filing;
+        }
+
+        long[] keys() {
+            long[] lines = new long[size];
+            int n = 0;
+            for (long key : keys) {
+                if (key != 0) {
+                    lines[n++] = key;
+                }
+            }
+            return lines;
+        }
+
+        void clear() {
+            keys = new long[1 << 10];
+            values = new int[1 << 10];
+            size = 0;
+        }
+
+        private static int slot(long fingerprint, int mask) {
+            return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package manager;
+
+import Model.Money;
+
+import java.util.Arrays;
+
+// Totals per bill number or item code, as made by TransactionAggregator.
+// Groups are numbered 0 to size() - 1 in the order their key was first
+// imported. Profit and line totals are summed exactly in cents; every
+// getter that takes a measure accepts PROFIT, RAW_TOTAL and QUANTITY. A sum
+// too large for a long is NaN, and Money.NOT_REPRESENTABLE in cents.
+public final class GroupTotals {
+    private final TransactionField groupBy;
+    private final boolean validOnly;
+    private final String[] keys;
+    private final int[] counts;
+    private final long[] profitSum;
+    private final long[] profitMin;
+    private final long[] profitMax;
+    private final long[] rawTotalSum;
+    private final long[] rawTotalMin;
+    private final long[] rawTotalMax;
+    private final long[] quantitySum;
+    private final long[] quantityMin;
+    private final long[] quantityMax;
+    private final int skipped;
+
+    GroupTotals(TransactionField groupBy, boolean validOnly, String[] keys, int[] counts,
+                long[][] profit, long[][] rawTotal, long[][] quantity, int skipped) {
+        this.groupBy = groupBy;
+        this.validOnly = validOnly;
+        this.keys = keys;
+        this.counts = counts;
+        this.profitSum = profit[0];
+        this.profitMin = profit[1];
+        this.profitMax = profit[2];
+        this.rawTotalSum = rawTotal[0];
+        this.rawTotalMin = rawTotal[1];
+        this.rawTotalMax = rawTotal[2];
+        this.quantitySum = quantity[0];
+        this.quantityMin = quantity[1];
+        this.quantityMax = quantity[2];
+        this.skipped = skipped;
+    }
+
+    public TransactionField getGroupBy() {
+        return groupBy;
+    }
+
+    // Whether only valid rows were counted
+    public boolean isValidOnly() {
+        return validOnly;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    // The bill number or item code of a group
+    public String getKey(int group) {
+        return keys[group];
+    }
+
+    public int getCount(int group) {
+        return counts[group];
+    }
+
+    public double getSum(int group, TransactionField measure) {
+        return value(measure, column(measure, profitSum, rawTotalSum, quantitySum)[group]);
+    }
+
+    public double getMin(int group, TransactionField measure) {
+        return value(measure, column(measure, profitMin, rawTotalMin, quantityMin)[group]);
+    }
+
+    public double getMax(int group, TransactionField measure) {
+        return value(measure, column(measure, profitMax, rawTotalMax, quantityMax)[group]);
+    }
+
+    public double getAverage(int group, TransactionField measure) {
+        return getSum(group, measure) / counts[group];
+    }
+
+    public long getProfitSumCents(int group) {
+        return profitSum[group];
+    }
+
+    // Profit as a share of the line totals, 0 when those add up to nothing
+    public double getMargin(int group) {
+        if (profitSum[group] == Money.NOT_REPRESENTABLE || rawTotalSum[group] == Money.NOT_REPRESENTABLE) {
+            return Double.NaN;
+        }
+        return rawTotalSum[group] == 0 ? 0 : (double) profitSum[group] / rawTotalSum[group];
+    }
+
+    // Rows left out because their profit or line total did not fit in cents
+    public int getSkipped() {
+        return skipped;
+    }
+
+    // Up to n groups with a negative profit, the largest loss first; equal
+    // losses in group order. A group whose profit did not fit is left out.
+    public int[] topLosses(int n) {
+        // Heap of the largest losses so far with the one that would be listed
+        // last on top, so a larger loss replaces it
+        int[] heap = new int[Math.max(0, Math.min(n, keys.length))];
+        int size = 0;
+        for (int group = 0; group < keys.length; group++) {
+            if (profitSum[group] >= 0 || profitSum[group] == Money.NOT_REPRESENTABLE) {
+                continue;
+            }
+            if (size < heap.length) {
+                heap[size] = group;
+                siftUp(heap, size++);
+            } else if (size > 0 && listedBefore(group, heap[0])) {
+                heap[0] = group;
+                siftDown(heap, size);
+            }
+        }
+        // Moving the top to the end one by one leaves them in listing order
+        for (int end = size - 1; end > 0; end--) {
+            int last = heap[0];
+            heap[0] = heap[end];
+            heap[end] = last;
+            siftDown(heap, end);
+        }
+        return Arrays.copyOf(heap, size);
+    }
+
+    private boolean listedBefore(int a, int b) {
+        return profitSum[a] < profitSum[b] || (profitSum[a] == profitSum[b] && a < b);
+    }
+
+    private void siftUp(int[] heap, int k) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (!listedBefore(heap[parent], heap[k])) {
+                return;
+            }
+            int swap = heap[parent];
+            heap[parent] = heap[k];
+            heap[k] = swap;
+            k = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int size) {
+        int k = 0;
+        while (2 * k + 1 < size) {
+            int child = 2 * k + 1;
+            if (child + 1 < size && listedBefore(heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!listedBefore(heap[k], heap[child])) {
+                return;
+            }
+            int swap = heap[child];
+            heap[child] = heap[k];
+            heap[k] = swap;
+            k = child;
+        }
+    }
+
+    private static long[] column(TransactionField measure, long[] profit, long[] rawTotal, long[] quantity) {
+        switch (measure) {
+            case PROFIT: return profit;
+            case RAW_TOTAL: return rawTotal;
+            case QUANTITY: return quantity;
+            default: throw new IllegalArgumentException(measure + " is not aggregated");
+        }
+    }
+
+    private static double value(TransactionField measure, long value) {
+        if (measure == TransactionField.QUANTITY) {
+            return value == Money.NOT_REPRESENTABLE ? Double.NaN : value;
+        }
+        return Money.toDouble(value);
+    }
+}
@@ -0,0 +1,266 @@
+package manager;
+
+import Model.TransactionStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Reads a revised version of a filing against the rows loaded from the
+// previous one, for TransactionManager.reimportTransactionsFromCSV.
+//
+// Every row remembers the fingerprint of the line it was imported from. Each
+// line of the revised file is hashed the same way, and a line whose
+// fingerprint a loaded row has is that row, unchanged: it is copied over with
+// its state, so only the lines that match no row are parsed. The revised
+// rows are built in file order in a new store, and the loaded store is only
+// read, so it stays usable until the new one replaces it.
+//
+// Unchanged lines mostly follow each other, so a line is first compared with
+// the row after the last one matched, and rows are copied in runs.
+final class IncrementalImporter {
+    // FileReader decodes with the platform charset, so we do the same
+    private final Charset charset = Charset.defaultCharset();
+
+    // The revised rows and how they relate to the loaded ones. Row arrays are
+    // ascending.
+    static final class Result {
+        final TransactionStore store;
+        // Rows of store parsed from changed lines; they still need validating
+        final int[] parsed;
+        // Parsed rows that are new, and parsed rows that replace a loaded
+        // row, with the loaded row each one replaces
+        final int[] added;
+        final int[] modified;
+        final int[] replaced;
+        // Loaded rows no line matched or replaced
+        final int[] removed;
+        final int unchanged;
+        final int parseErrors;
+        // Imported values of the copied rows whose id was in editedIds, by row of store
+        final Map<Integer, EditJournal.Fields> editedBefore;
+
+        Result(Scan scan, int[] added, int[] modified, int[] replaced, int[] removed) {
+            this.store = scan.store;
+            this.parsed = Arrays.copyOf(scan.parsed, scan.parsedCount);
+            this.added = added;
+            this.modified = modified;
+            this.replaced = replaced;
+            this.removed = removed;
+            this.unchanged = scan.unchanged;
+            this.parseErrors = scan.parseErrors;
+            this.editedBefore = scan.editedBefore;
+        }
+    }
+
+    // editedIds are the ids of loaded rows edited since they were imported;
+    // a cancel throws CancellationException
+    Result reimport(TransactionStore loaded, BitSet editedIds, File file,
+                    ProgressListener listener) throws IOException {
+        Scan scan = new Scan(loaded, editedIds, listener);
+        LineScanner.scan(file, listener, "Re-import cancelled", scan);
+        scan.copyRun();
+
+        // A changed line takes the place of the first live loaded row of its
+        // bill number and item code that no line matched, if there is one
+        Map<Long, ArrayDeque<Integer>> unmatched = new HashMap<>();
+        for (int row = 0; row < loaded.size(); row++) {
+            if (!scan.matched.get(row) && !loaded.isDeleted(row)) {
+                unmatched.computeIfAbsent(key(loaded, row), k -> new ArrayDeque<>()).add(row);
+            }
+        }
+        int[] added = new int[scan.parsedCount];
+        int[] modified = new int[scan.parsedCount];
+        int[] replaced = new int[scan.parsedCount];
+        int addedCount = 0;
+        int modifiedCount = 0;
+        for (int k = 0; k < scan.parsedCount; k++) {
+            int row = scan.parsed[k];
+            ArrayDeque<Integer> candidates = unmatched.isEmpty() ? null : unmatched.get(key(scan.store, row));
+            Integer previous = candidates == null ? null : candidates.poll();
+            if (previous == null) {
+                added[addedCount++] = row;
+            } else {
+                modified[modifiedCount] = row;
+                replaced[modifiedCount++] = previous;
+                scan.matched.set(previous);
+            }
+        }
+        int[] removed = new int[loaded.liveSize()];
+        int removedCount = 0;
+        for (int row = scan.matched.nextClearBit(0); row < loaded.size(); row = scan.matched.nextClearBit(row + 1)) {
+            if (!loaded.isDeleted(row)) {
+                removed[removedCount++] = row;
+            }
+        }
+        return new Result(scan, Arrays.copyOf(added, addedCount), Arrays.copyOf(modified, modifiedCount),
+                Arrays.copyOf(replaced, modifiedCount), Arrays.copyOf(removed, removedCount));
+    }
+
+    // Bill number and item code of a row. The revised store starts with the
+    // dictionaries of the loaded one, so equal strings have equal ids in both.
+    private static long key(TransactionStore store, int row) {
+        TransactionStore.Chunk chunk = store.chunk(row >>> TransactionStore.CHUNK_SHIFT);
+        int i = row & TransactionStore.CHUNK_MASK;
+        return (long) chunk.billNumber[i] << 32 | (chunk.itemCode[i] & 0xFFFFFFFFL);
+    }
+
+    // End of the eighth field of a line, the part CsvLineParser fingerprints
+    private static int eighthFieldEnd(byte[] line, int from, int to) {
+        int commas = 0;
+        for (int i = from; i < to; i++) {
+            if (line[i] == ',' && ++commas == CsvLineParser.FIELD_COUNT) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // The pass over the revised file
+    private final class Scan implements LineScanner.Handler {
+        private final TransactionStore loaded;
+        private final BitSet editedIds;
+        private final ProgressListener listener;
+        private final Fingerprints fingerprints;
+        private final CsvLineParser parser = new CsvLineParser(charset);
+        // Matched rows [runStart, runStart + runLength) not copied yet
+        private int runStart;
+        private int runLength;
+        final TransactionStore store;
+        // Loaded rows a line matched
+        final BitSet matched = new BitSet();
+        final Map<Integer, EditJournal.Fields> editedBefore = new HashMap<>();
+        int[] parsed = new int[64];
+        int parsedCount;
+        int unchanged;
+        int parseErrors;
+
+        Scan(TransactionStore loaded, BitSet editedIds, ProgressListener listener) {
+            this.loaded = loaded;
+            this.editedIds = editedIds;
+            this.listener = listener;
+            this.fingerprints = new Fingerprints(loaded);
+            this.store = loaded.withSameDictionaries();
+        }
+
+        @Override
+        public void line(ByteBuffer buffer, int from, int to, boolean firstLineOfFile) {
+            // The first line may be a header, which only the parser recognizes
+            if (!firstLineOfFile || parser.parse(buffer, from, to, true) == CsvLineParser.ROW) {
+                byte[] bytes = buffer.array();
+                long fingerprint = CsvLineParser.fingerprint(bytes, from, eighthFieldEnd(bytes, from, to));
+                int next = runStart + runLength;
+                int previous = next < loaded.size() && loaded.getFingerprint(next) == fingerprint
+                        && !matched.get(next) ? next : fingerprints.take(fingerprint, matched);
+                if (previous >= 0) {
+                    int row = store.size() + runLength;
+                    if (previous != next) {
+                        copyRun();
+                        runStart = previous;
+                    }
+                    runLength++;
+                    matched.set(previous);
+                    unchanged++;
+                    if (editedIds.get(loaded.getId(previous))) {
+                        // The journal wants the values it was imported with
+                        parser.parse(buffer, from, to, false);
+                        editedBefore.put(row, new EditJournal.Fields(parser.text(1), parser.internalPrice,
+                                parser.discount, parser.salePrice, parser.quantity));
+                    }
+                    return;
+                }
+            }
+
+            int result = parser.parse(buffer, from, to, firstLineOfFile);
+            if (result == CsvLineParser.ERROR) {
+                System.out.println("Error parsing line: " + parser.lineText());
+                parseErrors++;
+            } else if (result == CsvLineParser.ROW) {
+                copyRun();
+                // Stored exactly like CsvIngestEngine stores an imported row
+                int row = store.addRow(parser.text(0), parser.text(1), parser.internalPrice, parser.discount,
+                        parser.salePrice, parser.quantity, parser.checksum, parser.rawTotal);
+                store.setFingerprint(row, parser.fingerprint());
+                if (!parser.originalsCanonical) {
+                    store.setOriginalText(row, parser.line, parser.fieldStart[2], parser.fieldEnd[6]);
+                }
+                if (parsedCount == parsed.length) {
+                    parsed = Arrays.copyOf(parsed, parsedCount * 2);
+                }
+                parsed[parsedCount++] = row;
+            }
+        }
+
+        @Override
+        public void progress(long read, long size) {
+            listener.progress(store.size() + runLength, read, size);
+        }
+
+        void copyRun() {
+            store.appendCopies(loaded, runStart, runLength);
+            runStart += runLength;
+            runLength = 0;
+        }
+    }
+
+    // Open-addressing table from fingerprint to the loaded rows that have
+    // it. Rows with the same fingerprint (repeated lines) are chained in row
+    // order and handed out in that order, so the n-th copy of a line matches
+    // the n-th row imported from it that was not matched otherwise.
+    private static final class Fingerprints {
+        private final long[] keys;
+        // First row of each chain not taken yet, plus one; 0 is an empty slot
+        private final int[] heads;
+        private final int[] next;
+
+        Fingerprints(TransactionStore store) {
+            int rows = store.size();
+            int capacity = Integer.highestOneBit(Math.max(16, rows + rows / 3) - 1) << 1;
+            keys = new long[capacity];
+            heads = new int[capacity];
+            next = new int[rows];
+            // Backwards, so every chain ends up in row order
+            for (int row = rows - 1; row >= 0; row--) {
+                long fingerprint = store.getFingerprint(row);
+                if (fingerprint == 0) {
+                    // Not imported from a line
+                    continue;
+                }
+                int slot = slot(fingerprint);
+                next[row] = heads[slot] - 1;
+                keys[slot] = fingerprint;
+                heads[slot] = row + 1;
+            }
+        }
+
+        // The first row with the fingerprint that was not taken or matched
+        // yet, now taken, or -1
+        int take(long fingerprint, BitSet matched) {
+            int slot = slot(fingerprint);
+            int row = heads[slot] - 1;
+            while (row >= 0 && matched.get(row)) {
+                row = next[row];
+            }
+            heads[slot] = row < 0 ? 0 : next[row] + 1;
+            return row;
+        }
+
+        // The slot holding the fingerprint, or the empty one it would go in.
+        // A slot whose chain was taken completely keeps its key, so lookups
+        // still probe past it.
+        private int slot(long fingerprint) {
+            int mask = keys.length - 1;
+            int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+            while ((heads[slot] != 0 || keys[slot] != 0) && keys[slot] != fingerprint) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package manager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Channel over a decompressing stream, e.g. a GZIPInputStream, that inflates
+// on its own thread so inflating and parsing overlap. The thread fills large
+// buffers and hands them over through a bounded queue; read() copies out of
+// them and returns them for reuse, so at most BUFFERS buffers are ever
+// allocated and a slow reader holds the inflater back rather than letting it
+// run ahead. A failure of the inflater, also an unchecked one, is thrown by
+// the next read instead of leaving it waiting for a block that never comes.
+final class InflatingChannel implements ReadableByteChannel {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int BUFFERS = 4;
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+
+    private final InputStream in;
+    private final BlockingQueue<Block> filled = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<byte[]> empty = new ArrayBlockingQueue<>(BUFFERS);
+    private final Thread inflater;
+    private Block current;
+    private int position;
+    private boolean ended;
+    private volatile boolean closed;
+
+    // Bytes [0, length) of a buffer, or the end of the stream or its failure
+    private static final class Block {
+        final byte[] bytes;
+        final int length;
+        final Throwable failure;
+
+        Block(byte[] bytes, int length, Throwable failure) {
+            this.bytes = bytes;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+
+    InflatingChannel(InputStream in) {
+        this.in = in;
+        for (int i = 0; i < BUFFERS; i++) {
+            empty.add(new byte[BUFFER_SIZE]);
+        }
+        inflater = new Thread(this::inflate, "inflater-" + THREAD_NUMBER.incrementAndGet());
+        inflater.setDaemon(true);
+        inflater.start();
+    }
+
+    private void inflate() {
+        try {
+            while (!closed) {
+                byte[] bytes = empty.take();
+                int length = 0;
+                // Fill the buffer, so the reader gets few large blocks
+                while (length < bytes.length) {
+                    int n = in.read(bytes, length, bytes.length - length);
+                    if (n < 0) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length > 0) {
+                    filled.put(new Block(bytes, length, null));
+                }
+                if (length < bytes.length) {
+                    filled.put(new Block(null, -1, null));
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed by the reader
+        } catch (IOException | RuntimeException | Error e) {
+            try {
+                filled.put(new Block(null, -1, e));
+            } catch (InterruptedException closed) {
+                // Closed by the reader
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (ended) {
+            return -1;
+        }
+        if (current == null) {
+            try {
+                current = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the inflater");
+            }
+            position = 0;
+            if (current.length < 0) {
+                ended = true;
+                if (current.failure instanceof Error) {
+                    throw (Error) current.failure;
+                }
+                if (current.failure != null) {
+                    throw new IOException(current.failure.getMessage(), current.failure);
+                }
+                return -1;
+            }
+        }
+        int n = Math.min(dst.remaining(), current.length - position);
+        dst.put(current.bytes, position, n);
+        position += n;
+        if (position == current.length) {
+            empty.add(current.bytes);
+            current = null;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // Stops the inflater, also when it is waiting for the reader, and closes
+    // the stream
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inflater.interrupt();
+        try {
+            inflater.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,144 @@
+package manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Reads a file or stream front to back through one buffer and hands every
+// line to a handler, for the single-pass readers that cannot map the whole
+// input. Compressed filings are inflated on the way, see scan(File, ...).
+// Lines end at "\n", "\r" or "\r\n", like in CsvIngestEngine; a line longer
+// than the buffer makes it grow.
+final class LineScanner {
+    private static final int READ_SIZE = 1 << 20;
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+    interface Handler {
+        // Bytes [from, to) of the buffer, without the line terminator
+        void line(ByteBuffer buffer, int from, int to, boolean firstLineOfFile) throws IOException;
+
+        // Called after every read with the bytes read so far; size is the
+        // one given to scan
+        void progress(long read, long size) throws IOException;
+    }
+
+    private LineScanner() {
+    }
+
+    // Scans a file the way CsvIngestEngine reads it: a .gz file is inflated
+    // and the .csv entries of a .zip file are scanned one after another, each
+    // starting with a first line. The size of a compressed file is reported
+    // as unknown.
+    static void scan(File file, ProgressListener listener, String cancelMessage, Handler handler)
+            throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".gz")) {
+            try (FileChannel compressed = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 InflatingChannel channel = new InflatingChannel(
+                         new GZIPInputStream(Channels.newInputStream(compressed), GZIP_BUFFER_SIZE))) {
+                scan(channel, -1, listener, cancelMessage, handler);
+            }
+        } else if (name.endsWith(".zip")) {
+            try (ZipFile zip = new ZipFile(file)) {
+                long[] done = {0};
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entry = e.nextElement();
+                    if (entry.isDirectory() || !entry.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                        continue;
+                    }
+                    long before = done[0];
+                    try (InflatingChannel channel = new InflatingChannel(zip.getInputStream(entry))) {
+                        scan(channel, -1, listener, cancelMessage, new Handler() {
+                            @Override
+                            public void line(ByteBuffer buffer, int from, int to, boolean firstLineOfFile)
+                                    throws IOException {
+                                handler.line(buffer, from, to, firstLineOfFile);
+                            }
+
+                            @Override
+                            public void progress(long read, long size) throws IOException {
+                                // Bytes of all entries so far
+                                done[0] = before + read;
+                                handler.progress(done[0], size);
+                            }
+                        });
+                    }
+                }
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                scan(channel, channel.size(), listener, cancelMessage, handler);
+            }
+        }
+    }
+
+    // size is the number of bytes expected, for progress only, or -1 when it
+    // is not known. A cancel, checked before every read, throws
+    // CancellationException with the given message.
+    static void scan(ReadableByteChannel channel, long size, ProgressListener listener, String cancelMessage,
+                     Handler handler) throws IOException {
+        long read = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        byte[] bytes = buffer.array();
+        boolean firstLine = true;
+        // A '\r' ended the last line, so a '\n' right after it belongs to it
+        boolean afterCr = false;
+        int scanned = 0;
+        while (true) {
+            if (listener.isCancelled()) {
+                throw new CancellationException(cancelMessage);
+            }
+            int n = channel.read(buffer);
+            read += Math.max(n, 0);
+            int filled = buffer.position();
+            int lineStart = 0;
+            for (int pos = scanned; pos < filled; pos++) {
+                byte b = bytes[pos];
+                if (afterCr) {
+                    afterCr = false;
+                    if (b == '\n') {
+                        lineStart = pos + 1;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    handler.line(buffer, lineStart, pos, firstLine);
+                    firstLine = false;
+                    afterCr = b == '\r';
+                    lineStart = pos + 1;
+                }
+            }
+            if (n < 0) {
+                // Last line without a terminator
+                if (lineStart < filled) {
+                    handler.line(buffer, lineStart, filled, firstLine);
+                }
+                handler.progress(read, size);
+                return;
+            }
+
+            // Keep the partial line, growing the buffer when one line fills it
+            int partial = filled - lineStart;
+            if (partial == buffer.capacity()) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                System.arraycopy(bytes, 0, buffer.array(), 0, partial);
+                bytes = buffer.array();
+            } else {
+                System.arraycopy(bytes, lineStart, bytes, 0, partial);
+            }
+            buffer.position(partial);
+            scanned = partial;
+            handler.progress(read, size);
+        }
+    }
+}
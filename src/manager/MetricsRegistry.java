@@ -0,0 +1,9 @@
+package manager;
+
+// Receives the metrics of every pipeline stage a TransactionManager runs,
+// see TransactionManager.setMetricsRegistry. Called on the thread that ran
+// the stage, right after it completed; stages that fail or are cancelled
+// are not reported.
+public interface MetricsRegistry {
+    void stageCompleted(StageMetrics metrics);
+}
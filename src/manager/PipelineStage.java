@@ -0,0 +1,27 @@
+package manager;
+
+// Steps of the TransactionManager pipeline that report metrics
+public enum PipelineStage {
+    IMPORT("import"),
+    REIMPORT("reimport"),
+    DUPLICATE_CHECK("duplicate-check"),
+    SNAPSHOT_LOAD("snapshot-load"),
+    SNAPSHOT_SAVE("snapshot-save"),
+    PROFIT("profit"),
+    VALIDATE("validate"),
+    DELETE_ZERO_PROFIT("delete-zero-profit"),
+    BATCH_UPDATE("batch-update"),
+    TAX("tax"),
+    AGGREGATE("aggregate"),
+    EXPORT("export");
+
+    private final String label;
+
+    PipelineStage(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
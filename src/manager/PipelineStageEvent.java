@@ -0,0 +1,49 @@
+package manager;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder event for one completed pipeline stage. Recorded whenever
+// a recording is running, e.g. one started with -XX:StartFlightRecording,
+// unless its settings turn "manager.PipelineStage" off.
+@Name("manager.PipelineStage")
+@Label("Pipeline Stage")
+@Category({"Tax Application", "Pipeline"})
+@Description("A completed import, validation, tax or export stage of a TransactionManager")
+@StackTrace(false)
+final class PipelineStageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Parse Errors")
+    int parseErrors;
+
+    @Label("Invalid Item Code")
+    int invalidItemCode;
+
+    @Label("Negative Profit")
+    int negativeProfit;
+
+    @Label("Checksum Mismatch")
+    int checksumMismatch;
+
+    @Label("Duplicate Line")
+    int duplicateLine;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by all threads while the stage ran, -1 when not measured")
+    @DataAmount
+    long allocated;
+}
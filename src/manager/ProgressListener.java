@@ -0,0 +1,26 @@
+package manager;
+
+import Model.TransactionStore;
+
+// Receives progress from long running TransactionManager operations and lets
+// the caller cancel them. Methods may be called from worker threads.
+public interface ProgressListener {
+    ProgressListener NONE = new ProgressListener() {
+    };
+
+    // rows handled so far, and the work done out of the total work
+    // (bytes of the file for an import, rows for a validation)
+    default void progress(long rows, long done, long total) {
+    }
+
+    // Rows [0, rows) of the store being built are complete and will not be
+    // changed by the running operation any more
+    default void rowsAvailable(TransactionStore store, int rows) {
+    }
+
+    // Polled between units of work; returning true aborts the operation
+    // with a CancellationException
+    default boolean isCancelled() {
+        return false;
+    }
+}
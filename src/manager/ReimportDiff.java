@@ -0,0 +1,66 @@
+package manager;
+
+import Model.Transaction;
+
+import java.util.List;
+
+// What TransactionManager.reimportTransactionsFromCSV changed. Added and
+// modified rows are views of the re-imported rows; removed rows, and the
+// rows the modified ones replaced, are views of the rows loaded before,
+// which are no longer changed by the manager.
+public final class ReimportDiff {
+    private final List<Transaction> added;
+    private final List<Transaction> removed;
+    private final List<Transaction> modified;
+    private final List<Transaction> replaced;
+    private final int unchanged;
+    private final int parseErrors;
+
+    ReimportDiff(List<Transaction> added, List<Transaction> removed, List<Transaction> modified,
+                 List<Transaction> replaced, int unchanged, int parseErrors) {
+        this.added = added;
+        this.removed = removed;
+        this.modified = modified;
+        this.replaced = replaced;
+        this.unchanged = unchanged;
+        this.parseErrors = parseErrors;
+    }
+
+    // Lines with a bill number and item code no loaded row had
+    public List<Transaction> getAdded() {
+        return added;
+    }
+
+    // Loaded rows that no line of the revised file matches
+    public List<Transaction> getRemoved() {
+        return removed;
+    }
+
+    // Changed lines of a bill number and item code that was loaded, with
+    // their new values, in file order
+    public List<Transaction> getModified() {
+        return modified;
+    }
+
+    // The loaded row each modified one replaced, in the same order
+    public List<Transaction> getReplaced() {
+        return replaced;
+    }
+
+    // Lines identical to the line a loaded row was imported from. Those rows
+    // are kept as they were, in-session edits and deletes included.
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    // Lines reported as "Error parsing line"
+    public int getParseErrors() {
+        return parseErrors;
+    }
+
+    @Override
+    public String toString() {
+        return added.size() + " added, " + removed.size() + " removed, " + modified.size() + " modified, "
+                + unchanged + " unchanged";
+    }
+}
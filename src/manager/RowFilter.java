@@ -0,0 +1,269 @@
+package manager;
+
+import Model.Money;
+import Model.TransactionStore;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// A condition on store rows, e.g.
+//   RowFilter.invalid().or(RowFilter.below(TransactionField.PROFIT, 0))
+// Filters are evaluated a chunk at a time straight from the column arrays
+// into a bit set with one bit per row, and combined word by word, so no
+// Transaction is built for a row that is tested. Immutable.
+public abstract class RowFilter {
+    private static final int WORDS_PER_CHUNK = TransactionStore.CHUNK_SIZE / Long.SIZE;
+
+    RowFilter() {
+    }
+
+    // Sets bit i of words for every row i of the chunk that passes. The
+    // words, one per 64 rows of the chunk, are clear on entry; bits past
+    // chunk.size must stay clear.
+    abstract void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words);
+
+    public static RowFilter valid() {
+        return new RowFilter() {
+            @Override
+            void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words) {
+                System.arraycopy(chunk.valid, 0, words, 0, wordCount(chunk));
+                clearTail(chunk, words);
+            }
+        };
+    }
+
+    public static RowFilter invalid() {
+        return valid().negate();
+    }
+
+    // Rows that failed the given validation check
+    public static RowFilter failed(ValidationFailure reason) {
+        int bit = reason.bit();
+        return new RowFilter() {
+            @Override
+            void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words) {
+                int[] failures = chunk.failures;
+                for (int i = 0; i < chunk.size; i++) {
+                    if ((failures[i] & bit) != 0) {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+            }
+        };
+    }
+
+    // Rows whose value of a numeric field is below the given one, compared
+    // as the table shows it (profit in currency units, not cents)
+    public static RowFilter below(TransactionField field, double value) {
+        return new Compare(field, value, true);
+    }
+
+    // Rows whose value of a numeric field is the given one or more
+    public static RowFilter atLeast(TransactionField field, double value) {
+        return new Compare(field, value, false);
+    }
+
+    // Rows whose bill number or item code is exactly the given string
+    public static RowFilter equalTo(TransactionField field, String value) {
+        if (!field.isText()) {
+            throw new IllegalArgumentException(field + " is not a text field");
+        }
+        return new RowFilter() {
+            @Override
+            void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words) {
+                int id = field.dictionary(store).lookup(value);
+                if (id < 0) {
+                    return;
+                }
+                int[] ids = field.ints(chunk);
+                for (int i = 0; i < chunk.size; i++) {
+                    if (ids[i] == id) {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+            }
+        };
+    }
+
+    public RowFilter and(RowFilter other) {
+        RowFilter first = this;
+        return new RowFilter() {
+            @Override
+            void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words) {
+                first.evaluate(store, chunk, words);
+                long[] second = new long[wordCount(chunk)];
+                other.evaluate(store, chunk, second);
+                for (int w = 0; w < second.length; w++) {
+                    words[w] &= second[w];
+                }
+            }
+        };
+    }
+
+    public RowFilter or(RowFilter other) {
+        RowFilter first = this;
+        return new RowFilter() {
+            @Override
+            void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words) {
+                first.evaluate(store, chunk, words);
+                long[] second = new long[wordCount(chunk)];
+                other.evaluate(store, chunk, second);
+                for (int w = 0; w < second.length; w++) {
+                    words[w] |= second[w];
+                }
+            }
+        };
+    }
+
+    public RowFilter negate() {
+        RowFilter inner = this;
+        return new RowFilter() {
+            @Override
+            void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words) {
+                inner.evaluate(store, chunk, words);
+                for (int w = 0; w < wordCount(chunk); w++) {
+                    words[w] = ~words[w];
+                }
+                clearTail(chunk, words);
+            }
+        };
+    }
+
+    // The live rows in [from, to) that pass, ascending. Chunks are
+    // evaluated in parallel on the common ForkJoinPool.
+    public int[] select(TransactionStore store, int from, int to) {
+        to = Math.min(to, store.size());
+        if (from >= to) {
+            return new int[0];
+        }
+        int fromChunk = from >>> TransactionStore.CHUNK_SHIFT;
+        int[][] selected = new int[((to - 1) >>> TransactionStore.CHUNK_SHIFT) + 1 - fromChunk][];
+        ForkJoinPool.commonPool().invoke(new Select(this, store, from, to, selected, fromChunk,
+                fromChunk + selected.length));
+        int count = 0;
+        for (int[] rows : selected) {
+            count += rows.length;
+        }
+        int[] rows = new int[count];
+        int n = 0;
+        for (int[] chunkRows : selected) {
+            System.arraycopy(chunkRows, 0, rows, n, chunkRows.length);
+            n += chunkRows.length;
+        }
+        return rows;
+    }
+
+    private static int wordCount(TransactionStore.Chunk chunk) {
+        return (chunk.size + Long.SIZE - 1) >>> 6;
+    }
+
+    // Clears the bits past chunk.size in the last word
+    private static void clearTail(TransactionStore.Chunk chunk, long[] words) {
+        if ((chunk.size & (Long.SIZE - 1)) != 0) {
+            words[chunk.size >>> 6] &= (1L << chunk.size) - 1;
+        }
+    }
+
+    private static final class Compare extends RowFilter {
+        private final TransactionField field;
+        private final double value;
+        private final boolean below;
+
+        Compare(TransactionField field, double value, boolean below) {
+            if (field.isText()) {
+                throw new IllegalArgumentException(field + " is not a numeric field");
+            }
+            this.field = field;
+            this.value = value;
+            this.below = below;
+        }
+
+        @Override
+        void evaluate(TransactionStore store, TransactionStore.Chunk chunk, long[] words) {
+            // One loop per column type, so the row loop itself has no branches
+            // other than the comparison
+            if (field == TransactionField.PROFIT) {
+                long[] cents = chunk.profitCents;
+                for (int i = 0; i < chunk.size; i++) {
+                    if (Money.toDouble(cents[i]) < value == below) {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+            } else if (field.isDecimal()) {
+                double[] values = field.doubles(chunk);
+                for (int i = 0; i < chunk.size; i++) {
+                    if (values[i] < value == below) {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+            } else {
+                int[] values = field.ints(chunk);
+                for (int i = 0; i < chunk.size; i++) {
+                    if (values[i] < value == below) {
+                        words[i >>> 6] |= 1L << i;
+                    }
+                }
+            }
+        }
+    }
+
+    // Evaluates chunks [fromChunk, toChunk) and lists the passing live rows
+    // in [from, to) of each one in selected, indexed from the first chunk
+    @SuppressWarnings("serial")
+    private static final class Select extends RecursiveAction {
+        private final RowFilter filter;
+        private final TransactionStore store;
+        private final int from;
+        private final int to;
+        private final int[][] selected;
+        private final int fromChunk;
+        private final int toChunk;
+
+        Select(RowFilter filter, TransactionStore store, int from, int to, int[][] selected,
+               int fromChunk, int toChunk) {
+            this.filter = filter;
+            this.store = store;
+            this.from = from;
+            this.to = to;
+            this.selected = selected;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk > 1) {
+                int mid = (fromChunk + toChunk) >>> 1;
+                invokeAll(new Select(filter, store, from, to, selected, fromChunk, mid),
+                        new Select(filter, store, from, to, selected, mid, toChunk));
+                return;
+            }
+            TransactionStore.Chunk chunk = store.chunk(fromChunk);
+            long[] words = new long[WORDS_PER_CHUNK];
+            filter.evaluate(store, chunk, words);
+            int base = fromChunk << TransactionStore.CHUNK_SHIFT;
+            int start = Math.max(from - base, 0);
+            int end = Math.min(to - base, chunk.size);
+            int count = 0;
+            for (int w = start >>> 6; w <= (end - 1) >>> 6; w++) {
+                long bits = words[w] & ~chunk.deleted[w];
+                if (w == start >>> 6) {
+                    bits &= -1L << start;
+                }
+                if (w == (end - 1) >>> 6 && (end & (Long.SIZE - 1)) != 0) {
+                    bits &= (1L << end) - 1;
+                }
+                words[w] = bits;
+                count += Long.bitCount(bits);
+            }
+            int[] rows = new int[count];
+            int n = 0;
+            for (int w = start >>> 6; w <= (end - 1) >>> 6; w++) {
+                for (long bits = words[w]; bits != 0; bits &= bits - 1) {
+                    rows[n++] = base + (w << 6) + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            selected[fromChunk - (from >>> TransactionStore.CHUNK_SHIFT)] = rows;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package manager;
+
+import Model.StringDictionary;
+import Model.TransactionStore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Sorts an array of store rows by field values without building a
+// Transaction per row or comparing boxed values.
+//
+// Every key is turned into one unsigned long per row that orders like the
+// values do: dictionary ids become the rank of their string, decimals their
+// exact cents, and all of them the offset from the smallest value, reversed
+// for descending keys. These are then sorted with a stable LSD radix sort,
+// so a sort needs only as many passes over the rows as the keys have
+// significant digits, and ties keep the order the rows had. Large sorts
+// count and scatter each digit in slices on a ForkJoinPool.
+public final class RowSorter {
+    // Below this many rows a pass is not worth splitting
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    // Widest digit; a wider one would make the counts outgrow the L1 cache
+    private static final int MAX_DIGIT_BITS = 11;
+
+    private final ForkJoinPool pool;
+
+    public RowSorter() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public RowSorter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Sorts the rows in place by the keys, the first key first. Rows equal
+    // on every key keep their order.
+    public void sort(TransactionStore store, int[] rows, List<SortKey> keys) {
+        if (rows.length < 2) {
+            return;
+        }
+        long[] values = new long[rows.length];
+        int[] spareRows = new int[rows.length];
+        long[] spareValues = new long[rows.length];
+        // Keys that fit in one long together are sorted as one, the later key
+        // in the lower bits. Stable sorts from the last key to the first
+        // leave the first key deciding, then the second one among equal rows
+        // and so on.
+        int k = keys.size() - 1;
+        while (k >= 0) {
+            int bits = keys(store, rows, keys.get(k--), values);
+            while (k >= 0) {
+                int more = keys(store, rows, keys.get(k), spareValues);
+                if (bits + more > Long.SIZE) {
+                    break;
+                }
+                for (int i = 0; i < rows.length; i++) {
+                    values[i] |= spareValues[i] << bits;
+                }
+                bits += more;
+                k--;
+            }
+            radixSort(rows, values, spareRows, spareValues, bits);
+        }
+    }
+
+    // Fills values with the sort key of each row and returns how many low
+    // bits of them are in use
+    private static int keys(TransactionStore store, int[] rows, SortKey key, long[] values) {
+        TransactionField field = key.getField();
+        int n = rows.length;
+        if (field.isText()) {
+            int[] rank = ranks(field.dictionary(store));
+            for (int k = 0; k < n; k++) {
+                int row = rows[k];
+                values[k] = rank[field.ints(store.chunk(row >>> TransactionStore.CHUNK_SHIFT))[row & TransactionStore.CHUNK_MASK]];
+            }
+        } else if (field == TransactionField.PROFIT) {
+            for (int k = 0; k < n; k++) {
+                int row = rows[k];
+                values[k] = store.chunk(row >>> TransactionStore.CHUNK_SHIFT).profitCents[row & TransactionStore.CHUNK_MASK];
+            }
+        } else if (!field.isDecimal()) {
+            for (int k = 0; k < n; k++) {
+                int row = rows[k];
+                values[k] = field.ints(store.chunk(row >>> TransactionStore.CHUNK_SHIFT))[row & TransactionStore.CHUNK_MASK];
+            }
+        } else {
+            // Prices parsed from "12.50" are exactly 1250 / 100.0, so their
+            // cents order like they do; anything else falls back to the bits
+            boolean cents = true;
+            for (int k = 0; k < n && cents; k++) {
+                int row = rows[k];
+                double value = field.doubles(store.chunk(row >>> TransactionStore.CHUNK_SHIFT))[row & TransactionStore.CHUNK_MASK];
+                long rounded = Math.round(value * 100);
+                values[k] = rounded;
+                cents = rounded / 100.0 == value;
+            }
+            if (!cents) {
+                for (int k = 0; k < n; k++) {
+                    int row = rows[k];
+                    values[k] = sortableBits(field.doubles(store.chunk(row >>> TransactionStore.CHUNK_SHIFT))[row & TransactionStore.CHUNK_MASK]);
+                }
+            }
+        }
+        return normalize(values, key.isDescending());
+    }
+
+    // Rank of every dictionary id among the strings in the dictionary
+    private static int[] ranks(StringDictionary dictionary) {
+        int size = dictionary.size();
+        String[] sorted = new String[size];
+        for (int id = 0; id < size; id++) {
+            sorted[id] = dictionary.decode(id);
+        }
+        Arrays.sort(sorted);
+        int[] rank = new int[size];
+        for (int r = 0; r < size; r++) {
+            rank[dictionary.lookup(sorted[r])] = r;
+        }
+        return rank;
+    }
+
+    // A long that orders like Double.compare orders the double, NaN last
+    private static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    // Turns the values into unsigned offsets from the smallest one, or from
+    // the largest one for descending order, and returns the bits they need
+    private static int normalize(long[] values, boolean descending) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        for (int k = 0; k < values.length; k++) {
+            values[k] = descending ? max - values[k] : values[k] - min;
+        }
+        return 64 - Long.numberOfLeadingZeros(max - min);
+    }
+
+    // Stable sort of rows by the low bits of keys, using the spare arrays as
+    // scratch space; keys end up in an unspecified order
+    private void radixSort(int[] rows, long[] keys, int[] spareRows, long[] spareKeys, int bits) {
+        if (bits == 0) {
+            return;
+        }
+        int n = rows.length;
+        int passes = (bits + MAX_DIGIT_BITS - 1) / MAX_DIGIT_BITS;
+        int digitBits = (bits + passes - 1) / passes;
+        int slices = n < PARALLEL_THRESHOLD ? 1 : Math.min(pool.getParallelism() * 4, n / (PARALLEL_THRESHOLD / 4));
+        int[][] counts = new int[slices][1 << digitBits];
+        int[] fromRows = rows;
+        long[] fromKeys = keys;
+        int[] toRows = spareRows;
+        long[] toKeys = spareKeys;
+        for (int shift = 0; shift < bits; shift += digitBits) {
+            for (int[] sliceCounts : counts) {
+                Arrays.fill(sliceCounts, 0);
+            }
+            run(new Pass(fromRows, fromKeys, toRows, toKeys, counts, shift, digitBits, false, 0, slices), slices);
+            // Each digit starts after all smaller digits, and within a digit
+            // every slice after the slices before it, which keeps the sort stable
+            int next = 0;
+            for (int digit = 0; digit < 1 << digitBits; digit++) {
+                for (int[] sliceCounts : counts) {
+                    int c = sliceCounts[digit];
+                    sliceCounts[digit] = next;
+                    next += c;
+                }
+            }
+            // The keys are not needed after the last digit
+            boolean last = shift + digitBits >= bits;
+            run(new Pass(fromRows, fromKeys, toRows, last ? null : toKeys, counts, shift, digitBits, true, 0, slices),
+                    slices);
+            int[] swap = fromRows;
+            fromRows = toRows;
+            toRows = swap;
+            long[] swapKeys = fromKeys;
+            fromKeys = toKeys;
+            toKeys = swapKeys;
+        }
+        if (fromRows != rows) {
+            System.arraycopy(fromRows, 0, rows, 0, n);
+        }
+    }
+
+    private void run(Pass pass, int slices) {
+        if (slices == 1) {
+            pass.compute();
+        } else {
+            pool.invoke(pass);
+        }
+    }
+
+    // Counts (or, once counts holds start offsets, scatters) one digit of
+    // the keys in slices [fromSlice, toSlice). Without toKeys only the rows
+    // are scattered.
+    @SuppressWarnings("serial")
+    private static final class Pass extends RecursiveAction {
+        private final int[] rows;
+        private final long[] keys;
+        private final int[] toRows;
+        private final long[] toKeys;
+        private final int[][] counts;
+        private final int shift;
+        private final int digitBits;
+        private final boolean scatter;
+        private final int fromSlice;
+        private final int toSlice;
+
+        Pass(int[] rows, long[] keys, int[] toRows, long[] toKeys, int[][] counts, int shift, int digitBits,
+             boolean scatter, int fromSlice, int toSlice) {
+            this.rows = rows;
+            this.keys = keys;
+            this.toRows = toRows;
+            this.toKeys = toKeys;
+            this.counts = counts;
+            this.shift = shift;
+            this.digitBits = digitBits;
+            this.scatter = scatter;
+            this.fromSlice = fromSlice;
+            this.toSlice = toSlice;
+        }
+
+        @Override
+        protected void compute() {
+            if (toSlice - fromSlice > 1) {
+                int mid = (fromSlice + toSlice) >>> 1;
+                invokeAll(new Pass(rows, keys, toRows, toKeys, counts, shift, digitBits, scatter, fromSlice, mid),
+                        new Pass(rows, keys, toRows, toKeys, counts, shift, digitBits, scatter, mid, toSlice));
+                return;
+            }
+            int slices = counts.length;
+            int from = (int) ((long) rows.length * fromSlice / slices);
+            int to = (int) ((long) rows.length * toSlice / slices);
+            int[] sliceCounts = counts[fromSlice];
+            int mask = (1 << digitBits) - 1;
+            if (!scatter) {
+                for (int k = from; k < to; k++) {
+                    sliceCounts[(int) (keys[k] >>> shift) & mask]++;
+                }
+                return;
+            }
+            if (toKeys == null) {
+                for (int k = from; k < to; k++) {
+                    toRows[sliceCounts[(int) (keys[k] >>> shift) & mask]++] = rows[k];
+                }
+                return;
+            }
+            for (int k = from; k < to; k++) {
+                long key = keys[k];
+                int index = sliceCounts[(int) (key >>> shift) & mask]++;
+                toRows[index] = rows[k];
+                toKeys[index] = key;
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package manager;
+
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+
+// Aggregates over a set of rows that can be kept up to date by deltas:
+// row counts, failure counts per reason or rule and the exact sum of valid
+// profit in cents.
+// A row contributes its profit while its validity bit is set.
+final class RunningTotals {
+    private int total;
+    private int valid;
+    // Indexed by bit number, for the built-in checks and registered rules
+    private final int[] failureCounts = new int[Integer.SIZE];
+    private final CentsSum validProfit = new CentsSum();
+
+    void add(boolean isValid, int failures, long profitCents) {
+        total++;
+        if (isValid) {
+            valid++;
+            validProfit.add(profitCents);
+        }
+        countFailures(failures, 1);
+    }
+
+    void remove(boolean isValid, int failures, long profitCents) {
+        total--;
+        if (isValid) {
+            valid--;
+            validProfit.subtract(profitCents);
+        }
+        countFailures(failures, -1);
+    }
+
+    private void countFailures(int failures, int delta) {
+        for (int bits = failures; bits != 0; bits &= bits - 1) {
+            failureCounts[Integer.numberOfTrailingZeros(bits)] += delta;
+        }
+    }
+
+    RunningTotals merge(RunningTotals other) {
+        total += other.total;
+        valid += other.valid;
+        for (int r = 0; r < failureCounts.length; r++) {
+            failureCounts[r] += other.failureCounts[r];
+        }
+        validProfit.add(other.validProfit);
+        return this;
+    }
+
+    void reset() {
+        total = 0;
+        valid = 0;
+        Arrays.fill(failureCounts, 0);
+        validProfit.reset();
+    }
+
+    void copyFrom(RunningTotals other) {
+        reset();
+        merge(other);
+    }
+
+    int getTotal() {
+        return total;
+    }
+
+    int getValid() {
+        return valid;
+    }
+
+    int getFailureCount(ValidationFailure reason) {
+        return failureCounts[reason.ordinal()];
+    }
+
+    // Rows failing the check of the given failure bit
+    int getFailureCount(int bit) {
+        return failureCounts[Integer.numberOfTrailingZeros(bit)];
+    }
+
+    double getValidProfit() {
+        return validProfit.doubleValue();
+    }
+
+    // Tax on the exact valid profit in cents, rounded once
+    long getValidProfitTaxCents(long basisPoints, RoundingMode mode) {
+        return validProfit.applyRate(basisPoints, mode);
+    }
+
+    ValidationResult toResult() {
+        return toResult(List.of());
+    }
+
+    // rules are the registered rules the failure bits after the built-in
+    // ones stand for, see ValidationRules
+    ValidationResult toResult(List<ValidationRule> rules) {
+        return new ValidationResult(total, valid, failureCounts, rules);
+    }
+}
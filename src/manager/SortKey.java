@@ -0,0 +1,38 @@
+package manager;
+
+// One field to sort rows by, see RowSorter. Ascending order is the natural
+// order of the values the table shows: strings by String.compareTo and
+// numbers by Double.compare.
+public final class SortKey {
+    private final TransactionField field;
+    private final boolean descending;
+
+    public SortKey(TransactionField field, boolean descending) {
+        if (field == null) {
+            throw new IllegalArgumentException("A sort key needs a field");
+        }
+        this.field = field;
+        this.descending = descending;
+    }
+
+    public static SortKey ascending(TransactionField field) {
+        return new SortKey(field, false);
+    }
+
+    public static SortKey descending(TransactionField field) {
+        return new SortKey(field, true);
+    }
+
+    public TransactionField getField() {
+        return field;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    @Override
+    public String toString() {
+        return field + (descending ? " descending" : " ascending");
+    }
+}
@@ -0,0 +1,87 @@
+package manager;
+
+// What one run of a pipeline stage did and what it cost
+public final class StageMetrics {
+    private final PipelineStage stage;
+    private final long nanos;
+    private final long rows;
+    private final long bytes;
+    private final int parseErrors;
+    private final int[] failureCounts;
+    private final long allocatedBytes;
+
+    StageMetrics(PipelineStage stage, long nanos, long rows, long bytes, int parseErrors,
+                 int[] failureCounts, long allocatedBytes) {
+        this.stage = stage;
+        this.nanos = nanos;
+        this.rows = rows;
+        this.bytes = bytes;
+        this.parseErrors = parseErrors;
+        this.failureCounts = failureCounts;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public PipelineStage getStage() {
+        return stage;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    // Rows the stage went over
+    public long getRows() {
+        return rows;
+    }
+
+    // Bytes read or written by the stage, 0 when it does no I/O
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getRowsPerSecond() {
+        return nanos == 0 ? 0 : rows * 1e9 / nanos;
+    }
+
+    public double getBytesPerSecond() {
+        return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+    }
+
+    // Lines an import could not parse
+    public int getParseErrors() {
+        return parseErrors;
+    }
+
+    // Rows failing for the reason after a validation, 0 for other stages
+    public int getFailureCount(ValidationFailure reason) {
+        return failureCounts[reason.ordinal()];
+    }
+
+    // Bytes allocated by all threads of the JVM while the stage ran, or -1
+    // when the JVM does not measure allocation
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(stage.getLabel())
+                .append(": ").append(nanos / 1_000_000).append(" ms, ")
+                .append(rows).append(" rows (").append(Math.round(getRowsPerSecond())).append("/s)");
+        if (bytes > 0) {
+            text.append(", ").append(bytes).append(" bytes (").append(Math.round(getBytesPerSecond())).append("/s)");
+        }
+        if (parseErrors > 0) {
+            text.append(", ").append(parseErrors).append(" parse errors");
+        }
+        for (ValidationFailure reason : ValidationFailure.values()) {
+            if (failureCounts[reason.ordinal()] > 0) {
+                text.append(", ").append(reason.name()).append('=').append(failureCounts[reason.ordinal()]);
+            }
+        }
+        if (allocatedBytes >= 0) {
+            text.append(", ").append(allocatedBytes).append(" bytes allocated");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package manager;
+
+import jdk.jfr.EventType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Measures one run of a pipeline stage for a MetricsRegistry and as a
+// PipelineStageEvent. Only made by start() when one of them wants the
+// stage, so with metrics off a stage costs a single enabled check and
+// allocates nothing.
+final class StageRecorder {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final EventType EVENT_TYPE = EventType.getEventType(PipelineStageEvent.class);
+    private static final int[] NO_FAILURES = new int[ValidationFailure.values().length];
+
+    private final PipelineStage stage;
+    private final MetricsRegistry registry;
+    private final PipelineStageEvent event;
+    private final long startNanos;
+    private final long startAllocated;
+
+    private StageRecorder(PipelineStage stage, MetricsRegistry registry, PipelineStageEvent event) {
+        this.stage = stage;
+        this.registry = registry;
+        this.event = event;
+        startAllocated = allocatedBytes();
+        event.begin();
+        startNanos = System.nanoTime();
+    }
+
+    // Returns null when neither the registry nor Flight Recorder is listening
+    static StageRecorder start(PipelineStage stage, MetricsRegistry registry) {
+        if (registry == null && !EVENT_TYPE.isEnabled()) {
+            return null;
+        }
+        return new StageRecorder(stage, registry, new PipelineStageEvent());
+    }
+
+    void finish(long rows, long bytes) {
+        finish(rows, bytes, 0, null);
+    }
+
+    // validation is null for stages that do not validate
+    void finish(long rows, long bytes, int parseErrors, ValidationResult validation) {
+        long nanos = System.nanoTime() - startNanos;
+        event.end();
+        long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+        int[] failures = NO_FAILURES;
+        if (validation != null) {
+            failures = new int[ValidationFailure.values().length];
+            for (ValidationFailure reason : ValidationFailure.values()) {
+                failures[reason.ordinal()] = validation.getFailureCount(reason);
+            }
+        }
+
+        if (event.shouldCommit()) {
+            event.stage = stage.getLabel();
+            event.rows = rows;
+            event.bytes = bytes;
+            event.parseErrors = parseErrors;
+            event.invalidItemCode = failures[ValidationFailure.INVALID_ITEM_CODE.ordinal()];
+            event.negativeProfit = failures[ValidationFailure.NEGATIVE_PROFIT.ordinal()];
+            event.checksumMismatch = failures[ValidationFailure.CHECKSUM_MISMATCH.ordinal()];
+            event.duplicateLine = failures[ValidationFailure.DUPLICATE_LINE.ordinal()];
+            event.allocated = allocated;
+            event.commit();
+        }
+        if (registry != null) {
+            registry.stageCompleted(new StageMetrics(stage, nanos, rows, bytes, parseErrors, failures, allocated));
+        }
+    }
+
+    // Stages run on pool threads too, so allocation is summed over all of
+    // them; a thread that exits while the stage runs is not counted
+    private static long allocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,234 @@
+package manager;
+
+import Model.Money;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+// Computes the final tax of a filing in a single pass over its CSV file
+// without keeping the rows. Every line is parsed, its profit, checksum and
+// item code are checked and it is added to the totals before the next line
+// is read, so the heap needed does not grow with the size of the filing;
+// only the per-item-code checks are remembered.
+//
+// The result is the same as loading the file into a TransactionManager
+// with no ValidationRule or FingerprintIndex set, validating it and calling
+// calculateFinalTaxCents, and the rejected file, when asked for, is byte
+// for byte the one TransactionExporter writes for the invalid rows.
+public class StreamingTaxCalculator {
+    // Same charset as the importer and the exporter
+    private final Charset charset = Charset.defaultCharset();
+    private final RoundingMode rounding;
+
+    public StreamingTaxCalculator() {
+        this(Money.DEFAULT_ROUNDING);
+    }
+
+    public StreamingTaxCalculator(RoundingMode rounding) {
+        this.rounding = rounding;
+    }
+
+    // What the materialized pipeline would report for the same file
+    public static final class Result {
+        private final ValidationResult validation;
+        private final int zeroProfit;
+        private final int unparseable;
+        private final double validProfit;
+        private final long taxCents;
+
+        Result(RunningTotals totals, int zeroProfit, int unparseable, long taxCents) {
+            this.validation = totals.toResult();
+            this.zeroProfit = zeroProfit;
+            this.unparseable = unparseable;
+            this.validProfit = totals.getValidProfit();
+            this.taxCents = taxCents;
+        }
+
+        public ValidationResult getValidation() {
+            return validation;
+        }
+
+        // Rows deleteZeroProfitTransactions would remove
+        public int getZeroProfit() {
+            return zeroProfit;
+        }
+
+        // Lines reported as "Error parsing line", which are never rows
+        public int getUnparseable() {
+            return unparseable;
+        }
+
+        public double getValidProfit() {
+            return validProfit;
+        }
+
+        // Money.NOT_REPRESENTABLE when the tax does not fit in a long
+        public long getTaxCents() {
+            return taxCents;
+        }
+    }
+
+    public Result calculate(File csv, double taxRate) throws IOException {
+        return calculate(csv, taxRate, null, false, ProgressListener.NONE);
+    }
+
+    // Writes the invalid rows to rejectedFile, gzip-compressed when asked,
+    // unless it is null. Progress is reported in bytes read; a cancel throws
+    // CancellationException and deletes the rejected file.
+    public Result calculate(File csv, double taxRate, File rejectedFile, boolean gzip,
+                            ProgressListener listener) throws IOException {
+        boolean done = false;
+        Pass pass;
+        try (TransactionExporter.Output rejected = rejectedFile == null ? null
+                : new TransactionExporter.Output(TransactionExporter.open(rejectedFile, gzip), charset)) {
+            if (rejected != null) {
+                rejected.text(TransactionExporter.REJECTED_HEADER + "\n");
+            }
+            pass = new Pass(new CsvLineParser(charset), rejected, listener);
+            LineScanner.scan(csv, listener, "Tax calculation cancelled", pass);
+            done = true;
+        } finally {
+            if (!done && rejectedFile != null) {
+                Files.deleteIfExists(rejectedFile.toPath());
+            }
+        }
+
+        long basisPoints = Money.toBasisPoints(taxRate, rounding);
+        long taxCents = pass.totals.getValidProfitTaxCents(basisPoints, rounding);
+        return new Result(pass.totals, pass.zeroProfit, pass.unparseable, taxCents);
+    }
+
+    // Totals of one pass, and where its invalid rows go
+    private final class Pass implements LineScanner.Handler {
+        private final CsvLineParser row;
+        private final TransactionExporter.Output rejected;
+        private final ProgressListener listener;
+        private final TransactionExporter.Reasons reasons =
+                new TransactionExporter.Reasons(new ValidationRules(List.of()), charset);
+        private final ItemCodes itemCodes = new ItemCodes();
+        private final RunningTotals totals = new RunningTotals();
+        private int zeroProfit;
+        private int unparseable;
+
+        Pass(CsvLineParser row, TransactionExporter.Output rejected, ProgressListener listener) {
+            this.row = row;
+            this.rejected = rejected;
+            this.listener = listener;
+        }
+
+        @Override
+        public void line(ByteBuffer buffer, int from, int to, boolean firstLineOfFile) throws IOException {
+            int parsed = row.parse(buffer, from, to, firstLineOfFile);
+            if (parsed == CsvLineParser.ERROR) {
+                System.out.println("Error parsing line: " + row.lineText());
+                unparseable++;
+            } else if (parsed == CsvLineParser.ROW) {
+                addRow();
+            }
+        }
+
+        @Override
+        public void progress(long read, long size) {
+            listener.progress(totals.getTotal(), read, size);
+        }
+
+        // Validates the row exactly like ValidationPipeline does a stored one
+        private void addRow() throws IOException {
+            long profit = Money.profitCents(row.salePrice, row.discount, row.internalPrice, row.quantity, rounding);
+            int code = itemCodes.lookup(row);
+            // Freshly imported, so the current checksum is the imported one
+            int calculated = ChecksumCalculator.checksum(code >>> 1, row.internalPrice, row.discount,
+                    row.salePrice, row.quantity, row.rawTotal);
+            int failures = ValidationPipeline.failureBits((code & 1) != 0, profit >= 0, calculated == row.checksum);
+            totals.add(failures == 0, failures, profit);
+            if (profit == 0) {
+                zeroProfit++;
+            }
+            if (failures != 0 && rejected != null) {
+                writeRejected(row, rejected, reasons.text(failures));
+            }
+        }
+    }
+
+    // Bill number and item code, the original text of the numeric fields,
+    // the checksum and the reasons, as TransactionExporter writes them
+    private static void writeRejected(CsvLineParser row, TransactionExporter.Output out, byte[] reason)
+            throws IOException {
+        out.reserve(row.length + TransactionExporter.MAX_NUMBER_LENGTH + reason.length + 3);
+        ByteBuffer buffer = out.buffer;
+        byte[] line = buffer.array();
+        int at = TransactionExporter.put(line, buffer.position(), row.line, 0, row.fieldEnd[1]);
+        line[at++] = ',';
+        at = TransactionExporter.put(line, at, row.line, row.fieldStart[2], row.fieldEnd[6]);
+        line[at++] = ',';
+        at = TransactionExporter.putLong(line, at, row.checksum);
+        line[at++] = ',';
+        at = TransactionExporter.put(line, at, reason);
+        line[at++] = '\n';
+        buffer.position(at);
+    }
+
+    // Item code checks done once per distinct code, found by the bytes of
+    // the field so no string is made per row. An open-addressing table of
+    // (counted characters << 1) | valid.
+    private static final class ItemCodes {
+        private byte[][] keys = new byte[1024][];
+        private int[] values = new int[1024];
+        private int count;
+
+        int lookup(CsvLineParser row) {
+            byte[] line = row.line;
+            int from = row.fieldStart[1];
+            int to = row.fieldEnd[1];
+            int hash = 1;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + line[i];
+            }
+            int mask = keys.length - 1;
+            int slot = mix(hash) & mask;
+            while (keys[slot] != null) {
+                if (Arrays.equals(keys[slot], 0, keys[slot].length, line, from, to)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            String code = row.text(1);
+            int value = ChecksumCalculator.countCharacters(code) << 1
+                    | (ValidationPipeline.isValidItemCode(code) ? 1 : 0);
+            keys[slot] = Arrays.copyOfRange(line, from, to);
+            values[slot] = value;
+            if (++count * 2 > keys.length) {
+                grow();
+            }
+            return value;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = mix(Arrays.hashCode(oldKeys[i])) & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
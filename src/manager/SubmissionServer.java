@@ -0,0 +1,332 @@
+package manager;
+
+import Model.Money;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Local HTTP service that takes filings as uploads and runs the same
+// pipeline as BatchProcessor (load, validate, delete zero-profit rows, tax)
+// on each one with its own TransactionManager.
+//
+//   POST /filings?name=<label>&taxRate=<percent>   body: the CSV filing
+//   GET  /status
+//
+// Every request runs on its own virtual thread. The body is parsed line by
+// line as it arrives, so it is never buffered in full, in memory or on disk.
+// Before reading it a request reserves the heap its filing will need, from
+// the declared Content-Length or the upload limit for a chunked body, out of
+// a budget shared by all requests; one that cannot get its share within the
+// admission wait gets 503 and reads nothing. A body longer than the upload
+// limit gets 413, so no request uses more than it reserved.
+//
+// The reply is one JSON object like the lines BatchProcessor writes, with
+// the time spent waiting for admission.
+//
+// Needs JDK 21: the virtual thread executor and ExecutorService.close().
+public class SubmissionServer {
+    // The budget is counted in KB so that it fits the int permits of a semaphore
+    private static final int BUDGET_UNIT_SHIFT = 10;
+    private static final int BACKLOG = 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final double defaultTaxRate;
+    private final long maxUploadBytes;
+    private final long memoryBudgetBytes;
+    private final long admissionWaitMillis;
+    // Fair, so a large filing is not passed over forever by smaller ones
+    private final Semaphore memory;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public SubmissionServer(InetSocketAddress address, double defaultTaxRate, long maxUploadBytes,
+                            long memoryBudgetBytes, long admissionWaitMillis) throws IOException {
+        if (BatchProcessor.estimatedHeapBytes(maxUploadBytes) > memoryBudgetBytes) {
+            throw new IllegalArgumentException("An upload of " + (maxUploadBytes >> 20) + " MB needs about "
+                    + (BatchProcessor.estimatedHeapBytes(maxUploadBytes) >> 20) + " MB, the budget is only "
+                    + (memoryBudgetBytes >> 20) + " MB");
+        }
+        this.defaultTaxRate = defaultTaxRate;
+        this.maxUploadBytes = maxUploadBytes;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.admissionWaitMillis = admissionWaitMillis;
+        this.memory = new Semaphore(units(memoryBudgetBytes), true);
+        server = HttpServer.create(address, BACKLOG);
+        server.createContext("/filings", this::handleFiling);
+        server.createContext("/status", this::handleStatus);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // Stops taking requests and waits for the running ones to finish
+    public void stop() {
+        server.stop(0);
+        executor.close();
+    }
+
+    // The address the server listens on, with the actual port when 0 was asked for
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handleFiling(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                reply(exchange, 405, error("rejected", "use POST"));
+                return;
+            }
+            String name = parameter(exchange, "name");
+            double taxRate;
+            long declared;
+            try {
+                String rate = parameter(exchange, "taxRate");
+                taxRate = rate == null ? defaultTaxRate : Double.parseDouble(rate);
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                declared = length == null ? -1 : Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                reply(exchange, 400, error("rejected", e.getMessage()));
+                return;
+            }
+            if (declared > maxUploadBytes) {
+                rejected.incrementAndGet();
+                reply(exchange, 413, error("rejected", "the upload limit is " + maxUploadBytes + " bytes"));
+                return;
+            }
+
+            long queued = System.nanoTime();
+            int reserved = units(BatchProcessor.estimatedHeapBytes(declared >= 0 ? declared : maxUploadBytes));
+            boolean admitted;
+            try {
+                admitted = memory.tryAcquire(reserved, admissionWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!admitted) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                reply(exchange, 503, error("rejected", "busy, try again later"));
+                return;
+            }
+            running.incrementAndGet();
+            try {
+                FilingReply result = process(exchange.getRequestBody(), declared, taxRate);
+                result.name = name;
+                result.queueNanos = result.start - queued;
+                if ("ok".equals(result.status)) {
+                    completed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                reply(exchange, result.httpStatus, result.toJson());
+            } finally {
+                running.decrementAndGet();
+                memory.release(reserved);
+            }
+        }
+    }
+
+    private FilingReply process(InputStream body, long declared, double taxRate) {
+        FilingReply result = new FilingReply();
+        LimitedStream upload = new LimitedStream(body, maxUploadBytes);
+        TransactionManager manager = new TransactionManager();
+        result.start = System.nanoTime();
+        try {
+            boolean loaded = manager.loadTransactions(upload, declared, ProgressListener.NONE);
+            long loadDone = System.nanoTime();
+            result.loadNanos = loadDone - result.start;
+            result.bytes = upload.read;
+            if (!loaded) {
+                return result.fail(422, "the upload has no rows");
+            }
+            result.parseErrors = manager.getLastParseErrors();
+
+            ValidationResult validation = manager.validateTransactions();
+            long validateDone = System.nanoTime();
+            result.validateNanos = validateDone - loadDone;
+            result.rows = validation.getTotal();
+            result.valid = validation.getValid();
+            result.invalid = validation.getInvalid();
+
+            manager.deleteZeroProfitTransactions();
+            long deleteDone = System.nanoTime();
+            result.deleteNanos = deleteDone - validateDone;
+            result.zeroProfitDeleted = result.rows - manager.getTotalCount();
+
+            result.taxCents = manager.calculateFinalTaxCents(taxRate);
+            result.taxNanos = System.nanoTime() - deleteDone;
+            result.status = "ok";
+            result.httpStatus = 200;
+        } catch (UploadTooLargeException e) {
+            result.bytes = upload.read;
+            result.fail(413, e.getMessage());
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            result.bytes = upload.read;
+            result.fail(500, e.toString());
+        } finally {
+            result.totalNanos = System.nanoTime() - result.start;
+        }
+        return result;
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            long free = (long) memory.availablePermits() << BUDGET_UNIT_SHIFT;
+            reply(exchange, 200, "{\"running\":" + running.get()
+                    + ",\"waiting\":" + memory.getQueueLength()
+                    + ",\"completed\":" + completed.get()
+                    + ",\"failed\":" + failed.get()
+                    + ",\"rejected\":" + rejected.get()
+                    + ",\"memoryBudgetBytes\":" + memoryBudgetBytes
+                    + ",\"memoryFreeBytes\":" + free
+                    + "}");
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String error(String status, String message) {
+        return "{\"status\":" + BatchProcessor.quote(status) + ",\"error\":" + BatchProcessor.quote(message) + "}";
+    }
+
+    // The decoded value of a query parameter, or null
+    private static String parameter(HttpExchange exchange, String key) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String k = eq < 0 ? pair : pair.substring(0, eq);
+            if (URLDecoder.decode(k, StandardCharsets.UTF_8).equals(key)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static int units(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + (1 << BUDGET_UNIT_SHIFT) - 1) >> BUDGET_UNIT_SHIFT);
+    }
+
+    // Fails the read that would go past the limit
+    private static final class LimitedStream extends FilterInputStream {
+        private final long limit;
+        private long read;
+
+        LimitedStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws UploadTooLargeException {
+            read += n;
+            if (read > limit) {
+                throw new UploadTooLargeException("the upload limit is " + limit + " bytes");
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class UploadTooLargeException extends IOException {
+        UploadTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class FilingReply {
+        private String name;
+        private int httpStatus;
+        private String status;
+        private String error;
+        private long bytes;
+        private int rows;
+        private int valid;
+        private int invalid;
+        private int parseErrors;
+        private int zeroProfitDeleted;
+        private long taxCents;
+        private long start;
+        private long queueNanos;
+        private long loadNanos;
+        private long validateNanos;
+        private long deleteNanos;
+        private long taxNanos;
+        private long totalNanos;
+
+        FilingReply fail(int httpStatus, String error) {
+            this.httpStatus = httpStatus;
+            this.status = "failed";
+            this.error = error;
+            return this;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder("{\"name\":")
+                    .append(name == null ? "null" : BatchProcessor.quote(name))
+                    .append(",\"status\":").append(BatchProcessor.quote(status))
+                    .append(",\"bytes\":").append(bytes);
+            if (error != null) {
+                return json.append(",\"error\":").append(BatchProcessor.quote(error)).append('}').toString();
+            }
+            return json.append(",\"rows\":").append(rows)
+                    .append(",\"valid\":").append(valid)
+                    .append(",\"invalid\":").append(invalid)
+                    .append(",\"parseErrors\":").append(parseErrors)
+                    .append(",\"zeroProfitDeleted\":").append(zeroProfitDeleted)
+                    .append(",\"taxCents\":").append(taxCents == Money.NOT_REPRESENTABLE ? "null" : taxCents)
+                    .append(",\"queueMs\":").append(BatchProcessor.millis(queueNanos))
+                    .append(",\"loadMs\":").append(BatchProcessor.millis(loadNanos))
+                    .append(",\"validateMs\":").append(BatchProcessor.millis(validateNanos))
+                    .append(",\"deleteMs\":").append(BatchProcessor.millis(deleteNanos))
+                    .append(",\"taxMs\":").append(BatchProcessor.millis(taxNanos))
+                    .append(",\"totalMs\":").append(BatchProcessor.millis(totalNanos))
+                    .append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package manager;
+
+import Model.Money;
+import Model.StringDictionary;
+import Model.TransactionStore;
+
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Totals of profit, line total and quantity per bill number or item code,
+// for TransactionManager.aggregate.
+//
+// The store is split into a few runs of chunks per worker thread. Each run
+// is summed into its own hash table keyed by the dictionary id of the group,
+// with no sharing between threads, and the tables are merged pairwise as the
+// runs are joined. Rows of one bill usually follow each other, so a run
+// mostly only holds its own bills and the group of the previous row is
+// reused without a lookup.
+public final class TransactionAggregator {
+    // Runs per worker thread, so one slow run does not hold the others up
+    private static final int RUNS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+
+    public TransactionAggregator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public TransactionAggregator(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // groupBy is BILL_NUMBER or ITEM_CODE; line totals are rounded to cents
+    // with the given mode. A cancel throws CancellationException.
+    public GroupTotals aggregate(TransactionStore store, TransactionField groupBy, boolean validOnly,
+                                 RoundingMode rounding, ProgressListener listener) {
+        if (!groupBy.isText()) {
+            throw new IllegalArgumentException("Cannot group by " + groupBy);
+        }
+        int chunks = store.chunkCount();
+        int chunksPerRun = Math.max(1, chunks / (pool.getParallelism() * RUNS_PER_THREAD));
+        Groups groups = chunks == 0 ? new Groups()
+                : pool.invoke(new RunTask(store, groupBy, validOnly, rounding,
+                        new Progress(listener, store.size()), chunksPerRun, 0, chunks));
+        return groups.totals(groupBy, validOnly, groupBy.dictionary(store));
+    }
+
+    private static final class Progress {
+        final ProgressListener listener;
+        final long total;
+        final AtomicLong done = new AtomicLong();
+
+        Progress(ProgressListener listener, long total) {
+            this.listener = listener;
+            this.total = total;
+        }
+
+        void checkCancelled() {
+            if (listener.isCancelled()) {
+                throw new CancellationException("Aggregation cancelled");
+            }
+        }
+
+        void completed(int rows) {
+            long aggregated = done.addAndGet(rows);
+            listener.progress(aggregated, aggregated, total);
+        }
+    }
+
+    // Sums chunks [fromChunk, toChunk), one table per run of chunksPerRun
+    @SuppressWarnings("serial")
+    private static final class RunTask extends RecursiveTask<Groups> {
+        private final TransactionStore store;
+        private final TransactionField groupBy;
+        private final boolean validOnly;
+        private final RoundingMode rounding;
+        private final Progress progress;
+        private final int chunksPerRun;
+        private final int fromChunk;
+        private final int toChunk;
+
+        RunTask(TransactionStore store, TransactionField groupBy, boolean validOnly, RoundingMode rounding,
+                Progress progress, int chunksPerRun, int fromChunk, int toChunk) {
+            this.store = store;
+            this.groupBy = groupBy;
+            this.validOnly = validOnly;
+            this.rounding = rounding;
+            this.progress = progress;
+            this.chunksPerRun = chunksPerRun;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected Groups compute() {
+            if (toChunk - fromChunk > chunksPerRun) {
+                int mid = (fromChunk + toChunk) >>> 1;
+                RunTask left = new RunTask(store, groupBy, validOnly, rounding, progress, chunksPerRun,
+                        fromChunk, mid);
+                left.fork();
+                Groups right = new RunTask(store, groupBy, validOnly, rounding, progress, chunksPerRun,
+                        mid, toChunk).compute();
+                return Groups.merge(left.join(), right);
+            }
+            Groups groups = new Groups();
+            for (int c = fromChunk; c < toChunk; c++) {
+                progress.checkCancelled();
+                TransactionStore.Chunk chunk = store.chunk(c);
+                int[] ids = groupBy.ints(chunk);
+                int previousId = -1;
+                int group = -1;
+                for (int i = 0; i < chunk.size; i++) {
+                    if (chunk.isDeleted(i) || (validOnly && !chunk.isValid(i))) {
+                        continue;
+                    }
+                    long profit = chunk.profitCents[i];
+                    long rawTotal = Money.toCents(chunk.rawTotal[i], rounding);
+                    if (profit == Money.NOT_REPRESENTABLE || rawTotal == Money.NOT_REPRESENTABLE) {
+                        groups.skipped++;
+                        continue;
+                    }
+                    if (ids[i] != previousId) {
+                        previousId = ids[i];
+                        group = groups.groupOf(previousId);
+                    }
+                    groups.add(group, profit, rawTotal, chunk.quantity[i]);
+                }
+                progress.completed(chunk.size);
+            }
+            return groups;
+        }
+    }
+
+    // Open-addressing hash table from dictionary id to the totals of that
+    // group. The totals are kept in columns indexed by group number.
+    private static final class Groups {
+        private int[] slots = new int[64];
+        private int size;
+        private int skipped;
+        private int[] ids = new int[32];
+        private int[] counts = new int[32];
+        // Sum, min and max of each measure, see GroupTotals
+        private long[][] profit = new long[3][32];
+        private long[][] rawTotal = new long[3][32];
+        private long[][] quantity = new long[3][32];
+
+        // Group number of a dictionary id, added when it is new
+        int groupOf(int id) {
+            int mask = slots.length - 1;
+            int slot = hash(id) & mask;
+            while (slots[slot] != 0) {
+                int group = slots[slot] - 1;
+                if (ids[group] == id) {
+                    return group;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == ids.length) {
+                growColumns();
+            }
+            int group = size++;
+            ids[group] = id;
+            slots[slot] = group + 1;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return group;
+        }
+
+        void add(int group, long profitCents, long rawTotalCents, long quantityValue) {
+            boolean first = counts[group]++ == 0;
+            update(profit, group, profitCents, first);
+            update(rawTotal, group, rawTotalCents, first);
+            update(quantity, group, quantityValue, first);
+        }
+
+        private static void update(long[][] measure, int group, long value, boolean first) {
+            measure[0][group] = sum(measure[0][group], value);
+            if (first) {
+                measure[1][group] = value;
+                measure[2][group] = value;
+            } else {
+                measure[1][group] = Math.min(measure[1][group], value);
+                measure[2][group] = Math.max(measure[2][group], value);
+            }
+        }
+
+        // Folds the smaller table into the larger one and returns that
+        static Groups merge(Groups a, Groups b) {
+            Groups into = a.size >= b.size ? a : b;
+            Groups from = into == a ? b : a;
+            into.skipped += from.skipped;
+            for (int g = 0; g < from.size; g++) {
+                int group = into.groupOf(from.ids[g]);
+                boolean first = into.counts[group] == 0;
+                into.counts[group] += from.counts[g];
+                merge(into.profit, group, from.profit, g, first);
+                merge(into.rawTotal, group, from.rawTotal, g, first);
+                merge(into.quantity, group, from.quantity, g, first);
+            }
+            return into;
+        }
+
+        private static void merge(long[][] into, int group, long[][] from, int g, boolean first) {
+            into[0][group] = sum(into[0][group], from[0][g]);
+            into[1][group] = first ? from[1][g] : Math.min(into[1][group], from[1][g]);
+            into[2][group] = first ? from[2][g] : Math.max(into[2][group], from[2][g]);
+        }
+
+        // A sum that leaves the range of long becomes NOT_REPRESENTABLE and
+        // stays so, rather than wrapping around
+        private static long sum(long a, long b) {
+            if (a == Money.NOT_REPRESENTABLE || b == Money.NOT_REPRESENTABLE) {
+                return Money.NOT_REPRESENTABLE;
+            }
+            try {
+                return Math.addExact(a, b);
+            } catch (ArithmeticException e) {
+                return Money.NOT_REPRESENTABLE;
+            }
+        }
+
+        // The groups in dictionary id order, i.e. the order their keys were
+        // first seen
+        GroupTotals totals(TransactionField groupBy, boolean validOnly, StringDictionary dictionary) {
+            int[] groupOfId = new int[dictionary.size()];
+            Arrays.fill(groupOfId, -1);
+            for (int g = 0; g < size; g++) {
+                groupOfId[ids[g]] = g;
+            }
+            String[] keys = new String[size];
+            int[] orderedCounts = new int[size];
+            long[][] orderedProfit = new long[3][size];
+            long[][] orderedRawTotal = new long[3][size];
+            long[][] orderedQuantity = new long[3][size];
+            int n = 0;
+            for (int id = 0; id < groupOfId.length; id++) {
+                int g = groupOfId[id];
+                if (g < 0) {
+                    continue;
+                }
+                keys[n] = dictionary.decode(id);
+                orderedCounts[n] = counts[g];
+                for (int k = 0; k < 3; k++) {
+                    orderedProfit[k][n] = profit[k][g];
+                    orderedRawTotal[k][n] = rawTotal[k][g];
+                    orderedQuantity[k][n] = quantity[k][g];
+                }
+                n++;
+            }
+            return new GroupTotals(groupBy, validOnly, keys, orderedCounts, orderedProfit, orderedRawTotal,
+                    orderedQuantity, skipped);
+        }
+
+        private void growColumns() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            for (int k = 0; k < 3; k++) {
+                profit[k] = Arrays.copyOf(profit[k], capacity);
+                rawTotal[k] = Arrays.copyOf(rawTotal[k], capacity);
+                quantity[k] = Arrays.copyOf(quantity[k], capacity);
+            }
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int group = 0; group < size; group++) {
+                int slot = hash(ids[group]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = group + 1;
+            }
+        }
+
+        // Dictionary ids are dense and a run sees them in mostly ascending
+        // order, so the id itself fills neighbouring slots without collisions
+        private static int hash(int id) {
+            return id;
+        }
+    }
+}
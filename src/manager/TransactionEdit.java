@@ -0,0 +1,76 @@
+package manager;
+
+import Model.Transaction;
+
+// New editable values for the transaction with the given id, for
+// TransactionManager.updateTransactions. Immutable; the with* methods
+// return a changed copy, e.g.
+//   TransactionEdit.of(t).withSalePrice(t.getSalePrice() * 1.1)
+public final class TransactionEdit {
+    private final int id;
+    private final String itemCode;
+    private final double internalPrice;
+    private final double discount;
+    private final double salePrice;
+    private final int quantity;
+
+    public TransactionEdit(int id, String itemCode, double internalPrice, double discount,
+                           double salePrice, int quantity) {
+        this.id = id;
+        this.itemCode = itemCode;
+        this.internalPrice = internalPrice;
+        this.discount = discount;
+        this.salePrice = salePrice;
+        this.quantity = quantity;
+    }
+
+    // The current values of a transaction, to change some of them
+    public static TransactionEdit of(Transaction t) {
+        return new TransactionEdit(t.getId(), t.getItemCode(), t.getInternalPrice(), t.getDiscount(),
+                t.getSalePrice(), t.getQuantity());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getItemCode() {
+        return itemCode;
+    }
+
+    public double getInternalPrice() {
+        return internalPrice;
+    }
+
+    public double getDiscount() {
+        return discount;
+    }
+
+    public double getSalePrice() {
+        return salePrice;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public TransactionEdit withItemCode(String itemCode) {
+        return new TransactionEdit(id, itemCode, internalPrice, discount, salePrice, quantity);
+    }
+
+    public TransactionEdit withInternalPrice(double internalPrice) {
+        return new TransactionEdit(id, itemCode, internalPrice, discount, salePrice, quantity);
+    }
+
+    public TransactionEdit withDiscount(double discount) {
+        return new TransactionEdit(id, itemCode, internalPrice, discount, salePrice, quantity);
+    }
+
+    public TransactionEdit withSalePrice(double salePrice) {
+        return new TransactionEdit(id, itemCode, internalPrice, discount, salePrice, quantity);
+    }
+
+    public TransactionEdit withQuantity(int quantity) {
+        return new TransactionEdit(id, itemCode, internalPrice, discount, salePrice, quantity);
+    }
+}
@@ -0,0 +1,426 @@
+package manager;
+
+import Model.StringDictionary;
+import Model.TransactionStore;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// Writes the live rows of a store back out as CSV in one pass: valid rows
+// to one file and invalid rows, with the reasons they failed, to another.
+//
+// Rows the auditor edited are written with their current values in the
+// valid file. Every other row, and every row in the rejected file, carries
+// the text its numeric fields had in the imported CSV. Lines are formatted
+// straight into a large reused buffer per output; numbers are written digit
+// by digit and bill numbers and item codes are encoded once per dictionary
+// entry, so no per-row objects are created. With gzip, every output is
+// compressed on its own thread while the next buffer is being filled.
+public class TransactionExporter {
+    private static final int BUFFER_SIZE = 4 << 20;
+    static final String HEADER = "BillID,ItemCode,InternalPrice,Discount,SalePrice,Quantity,LineTotal,Checksum";
+    static final String REJECTED_HEADER = HEADER + ",Reasons";
+    // Longest numeric field: a sign and the 19 digits of a long, plus ".dd"
+    static final int MAX_NUMBER_LENGTH = 24;
+    // Longest amount written exactly: a sign, the 309 integer digits of
+    // Double.MAX_VALUE and ".00"
+    private static final int MAX_AMOUNT_LENGTH = 313;
+    // From here up an amount in cents may not fit in a long
+    private static final double MAX_CENTS_AMOUNT = 9e16;
+    // "00" to "99"
+    private static final byte[] DIGIT_PAIRS = new byte[200];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+            DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+        }
+    }
+
+    // Same charset as the importer, so the files read back unchanged
+    private final Charset charset = Charset.defaultCharset();
+
+    // Rows written to each output
+    public static final class Result {
+        private final int valid;
+        private final int invalid;
+
+        Result(int valid, int invalid) {
+            this.valid = valid;
+            this.invalid = invalid;
+        }
+
+        public int getValid() {
+            return valid;
+        }
+
+        public int getInvalid() {
+            return invalid;
+        }
+    }
+
+    // Reports rows written and checks for a cancel after every chunk. On a
+    // failure or cancel both output files are deleted.
+    public Result export(TransactionStore store, File validFile, File invalidFile, boolean gzip,
+                         ProgressListener listener) throws IOException {
+        return export(store, new ValidationRules(List.of()), validFile, invalidFile, gzip, listener);
+    }
+
+    // rules name the failures of the rows, see ValidationRules
+    Result export(TransactionStore store, ValidationRules rules, File validFile, File invalidFile, boolean gzip,
+                  ProgressListener listener) throws IOException {
+        byte[][] bills = new byte[store.getBillNumbers().size()][];
+        byte[][] items = new byte[store.getItemCodes().size()][];
+        Reasons reasons = new Reasons(rules, charset);
+        int valid = 0;
+        int invalid = 0;
+        boolean done = false;
+        try (Output validOut = new Output(open(validFile, gzip), charset);
+             Output invalidOut = new Output(open(invalidFile, gzip), charset)) {
+            validOut.text(HEADER + "\n");
+            invalidOut.text(REJECTED_HEADER + "\n");
+            int total = store.liveSize();
+            for (int c = 0; c < store.chunkCount(); c++) {
+                if (listener.isCancelled()) {
+                    throw new CancellationException("Export cancelled");
+                }
+                TransactionStore.Chunk chunk = store.chunk(c);
+                int base = c << TransactionStore.CHUNK_SHIFT;
+                for (int i = 0; i < chunk.size; i++) {
+                    if (chunk.isDeleted(i)) {
+                        continue;
+                    }
+                    int row = base + i;
+                    byte[] bill = encoded(bills, chunk.billNumber[i], store.getBillNumbers());
+                    byte[] item = encoded(items, chunk.itemCode[i], store.getItemCodes());
+                    int textLength = store.originalTextLength(row);
+                    boolean isValid = chunk.isValid(i);
+                    Output out = isValid ? validOut : invalidOut;
+                    byte[] reason = isValid ? null : reasons.text(chunk.failures[i]);
+                    out.reserve(bill.length + item.length + Math.max(textLength, 4 * MAX_AMOUNT_LENGTH)
+                            + 2 * MAX_NUMBER_LENGTH + (reason == null ? 0 : reason.length) + 4);
+
+                    ByteBuffer buffer = out.buffer;
+                    byte[] line = buffer.array();
+                    int at = put(line, buffer.position(), bill);
+                    line[at++] = ',';
+                    at = put(line, at, item);
+                    line[at++] = ',';
+                    boolean edited = chunk.currentChecksum[i] != chunk.importedChecksum[i];
+                    buffer.position(at);
+                    if ((isValid && edited) || !store.copyOriginalText(row, buffer)) {
+                        // Current values; for an unedited row that is also the original text
+                        at = putCents(line, at, chunk.internalPrice[i]);
+                        line[at++] = ',';
+                        at = putCents(line, at, chunk.discount[i]);
+                        line[at++] = ',';
+                        at = putCents(line, at, chunk.salePrice[i]);
+                        line[at++] = ',';
+                        at = putLong(line, at, chunk.quantity[i]);
+                        line[at++] = ',';
+                        at = putCents(line, at, chunk.rawTotal[i]);
+                    } else {
+                        at = buffer.position();
+                    }
+                    line[at++] = ',';
+                    at = putLong(line, at, isValid ? chunk.currentChecksum[i] : chunk.importedChecksum[i]);
+                    if (isValid) {
+                        valid++;
+                    } else {
+                        line[at++] = ',';
+                        at = put(line, at, reason);
+                        invalid++;
+                    }
+                    line[at++] = '\n';
+                    buffer.position(at);
+                }
+                listener.progress(valid + invalid, valid + invalid, total);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(validFile.toPath());
+                Files.deleteIfExists(invalidFile.toPath());
+            }
+        }
+        return new Result(valid, invalid);
+    }
+
+    private byte[] encoded(byte[][] cache, int id, StringDictionary dictionary) {
+        byte[] bytes = cache[id];
+        if (bytes == null) {
+            bytes = dictionary.decode(id).getBytes(charset);
+            cache[id] = bytes;
+        }
+        return bytes;
+    }
+
+    // Reason column of a failure mask, encoded once per combination: up front
+    // for the built-in checks alone and when first seen for the others
+    static final class Reasons {
+        private final ValidationRules rules;
+        private final Charset charset;
+        private final byte[][] builtIn = new byte[1 << ValidationFailure.values().length][];
+        private final Map<Integer, byte[]> others = new HashMap<>();
+
+        Reasons(ValidationRules rules, Charset charset) {
+            this.rules = rules;
+            this.charset = charset;
+            for (int bits = 0; bits < builtIn.length; bits++) {
+                builtIn[bits] = encode(bits);
+            }
+        }
+
+        byte[] text(int failures) {
+            if (failures >>> ValidationFailure.values().length == 0) {
+                return builtIn[failures];
+            }
+            return others.computeIfAbsent(failures, this::encode);
+        }
+
+        private byte[] encode(int failures) {
+            return String.join("; ", rules.describe(failures)).getBytes(charset);
+        }
+    }
+
+    static int put(byte[] line, int at, byte[] bytes) {
+        return put(line, at, bytes, 0, bytes.length);
+    }
+
+    static int put(byte[] line, int at, byte[] bytes, int from, int to) {
+        System.arraycopy(bytes, from, line, at, to - from);
+        return at + to - from;
+    }
+
+    // Inverse of parsing a canonical "[-]digits.dd" field, as TransactionStore
+    // rebuilds original text. An edit can set amounts too large for cents in a
+    // long; those are written from their exact decimal value instead.
+    private static int putCents(byte[] line, int at, double value) {
+        if (!(Math.abs(value) < MAX_CENTS_AMOUNT)) {
+            return put(line, at, exactAmount(value));
+        }
+        long cents = Math.round(Math.abs(value) * 100);
+        if (Double.doubleToRawLongBits(value) < 0) {
+            line[at++] = '-';
+        }
+        at = putLong(line, at, cents / 100);
+        int pair = (int) (cents % 100) << 1;
+        line[at] = '.';
+        line[at + 1] = DIGIT_PAIRS[pair];
+        line[at + 2] = DIGIT_PAIRS[pair + 1];
+        return at + 3;
+    }
+
+    // Parses back to the same double; NaN and infinities as Double.toString
+    // writes them
+    private static byte[] exactAmount(double value) {
+        String text = Double.isFinite(value)
+                ? new BigDecimal(value).setScale(2, RoundingMode.HALF_UP).toPlainString()
+                : Double.toString(value);
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Only ints and non-negative longs are written, so negating is safe
+    static int putLong(byte[] line, int at, long value) {
+        if (value < 0) {
+            line[at++] = '-';
+            value = -value;
+        }
+        int end = at + digits(value);
+        int next = end;
+        // Two digits per division, from the right
+        while (value >= 100) {
+            int pair = (int) (value % 100) << 1;
+            value /= 100;
+            line[--next] = DIGIT_PAIRS[pair + 1];
+            line[--next] = DIGIT_PAIRS[pair];
+        }
+        if (value >= 10) {
+            line[--next] = DIGIT_PAIRS[((int) value << 1) + 1];
+            line[--next] = DIGIT_PAIRS[(int) value << 1];
+        } else {
+            line[--next] = (byte) ('0' + value);
+        }
+        return end;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    static Sink open(File file, boolean gzip) throws IOException {
+        return gzip ? new GzipSink(file) : new FileSink(file);
+    }
+
+    // A buffer being filled for one output file
+    static final class Output implements Closeable {
+        private final Sink sink;
+        private final Charset charset;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Output(Sink sink, Charset charset) {
+            this.sink = sink;
+            this.charset = charset;
+        }
+
+        // Makes room for a line of at most this many bytes
+        void reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                buffer = sink.swap(buffer);
+                if (buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocate(bytes);
+                }
+            }
+        }
+
+        void text(String text) throws IOException {
+            byte[] bytes = text.getBytes(charset);
+            reserve(bytes.length);
+            buffer.put(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                sink.swap(buffer);
+            } finally {
+                sink.close();
+            }
+        }
+    }
+
+    // Takes a filled buffer and returns an empty one to fill next
+    interface Sink extends Closeable {
+        ByteBuffer swap(ByteBuffer full) throws IOException;
+    }
+
+    private static final class FileSink implements Sink {
+        private final FileChannel channel;
+
+        FileSink(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public ByteBuffer swap(ByteBuffer full) throws IOException {
+            full.flip();
+            while (full.hasRemaining()) {
+                channel.write(full);
+            }
+            full.clear();
+            return full;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Compresses on a thread of its own. Buffers circulate between a queue
+    // of filled ones and a queue of empty ones, so formatting and
+    // compression overlap without allocating new buffers.
+    private static final class GzipSink implements Sink {
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(2);
+        private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(3);
+        private final OutputStream out;
+        private final Thread compressor;
+        private volatile IOException failure;
+
+        GzipSink(File target) throws IOException {
+            OutputStream file = new BufferedOutputStream(new FileOutputStream(target), 1 << 16);
+            // Exports are large and short-lived, so speed matters more than size
+            out = new GZIPOutputStream(file, 1 << 16) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+            empty.add(ByteBuffer.allocate(BUFFER_SIZE));
+            empty.add(ByteBuffer.allocate(BUFFER_SIZE));
+            compressor = new Thread(this::compress, "export-gzip");
+            compressor.setDaemon(true);
+            compressor.start();
+        }
+
+        private void compress() {
+            try {
+                while (true) {
+                    ByteBuffer buffer = filled.take();
+                    if (buffer == END) {
+                        return;
+                    }
+                    if (failure == null) {
+                        try {
+                            out.write(buffer.array(), 0, buffer.position());
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    buffer.clear();
+                    empty.put(buffer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public ByteBuffer swap(ByteBuffer full) throws IOException {
+            checkFailure();
+            try {
+                filled.put(full);
+                return empty.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while exporting", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                filled.put(END);
+                compressor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while exporting", e);
+            } finally {
+                out.close();
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package manager;
+
+import Model.StringDictionary;
+import Model.TransactionStore;
+
+// The columns rows can be sorted and filtered by, see RowSorter and RowFilter
+public enum TransactionField {
+    BILL_NUMBER,
+    ITEM_CODE,
+    INTERNAL_PRICE,
+    DISCOUNT,
+    SALE_PRICE,
+    QUANTITY,
+    // The checksum as of the last edit, as shown in the table
+    CHECKSUM,
+    PROFIT,
+    RAW_TOTAL;
+
+    boolean isText() {
+        return this == BILL_NUMBER || this == ITEM_CODE;
+    }
+
+    // Fields kept as doubles
+    boolean isDecimal() {
+        return this == INTERNAL_PRICE || this == DISCOUNT || this == SALE_PRICE || this == RAW_TOTAL;
+    }
+
+    // The int column of the field in a chunk, dictionary ids for text
+    // fields; null for the other fields
+    int[] ints(TransactionStore.Chunk chunk) {
+        switch (this) {
+            case BILL_NUMBER: return chunk.billNumber;
+            case ITEM_CODE: return chunk.itemCode;
+            case QUANTITY: return chunk.quantity;
+            case CHECKSUM: return chunk.currentChecksum;
+            default: return null;
+        }
+    }
+
+    // The double column of the field in a chunk, or null. Profit is kept
+    // in cents, see TransactionStore.Chunk.profitCents.
+    double[] doubles(TransactionStore.Chunk chunk) {
+        switch (this) {
+            case INTERNAL_PRICE: return chunk.internalPrice;
+            case DISCOUNT: return chunk.discount;
+            case SALE_PRICE: return chunk.salePrice;
+            case RAW_TOTAL: return chunk.rawTotal;
+            default: return null;
+        }
+    }
+
+    // The dictionary the ids of a text field refer to
+    StringDictionary dictionary(TransactionStore store) {
+        return this == BILL_NUMBER ? store.getBillNumbers() : store.getItemCodes();
+    }
+}
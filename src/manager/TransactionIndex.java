@@ -0,0 +1,161 @@
+package manager;
+
+import Model.TransactionStore;
+
+import java.util.Arrays;
+
+// Hash indexes over the live rows of a TransactionStore: the rows of every
+// bill number and item code, and the current row of every id. Bill numbers
+// and item codes are keyed by their dictionary ids, so a lookup is one
+// StringDictionary probe plus an array access. Every row remembers its slot
+// in its postings list, so removing or moving a row is O(1).
+final class TransactionIndex {
+    private final TransactionStore store;
+    private final Postings byBill;
+    private final Postings byItem;
+    // Row of every id, or null while every id is still its own row (nothing
+    // was compacted since the rows were added)
+    private final int[] rowOfId;
+
+    TransactionIndex(TransactionStore store) {
+        this.store = store;
+        int rows = store.size();
+        byBill = new Postings(store.getBillNumbers().size(), rows);
+        byItem = new Postings(store.getItemCodes().size(), rows);
+
+        // First pass sizes every postings list exactly
+        boolean identity = true;
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            int base = c << TransactionStore.CHUNK_SHIFT;
+            for (int i = 0; i < chunk.size; i++) {
+                if (!chunk.isDeleted(i)) {
+                    byBill.count(chunk.billNumber[i]);
+                    byItem.count(chunk.itemCode[i]);
+                }
+                identity &= chunk.id[i] == base + i;
+            }
+        }
+        byBill.allocate();
+        byItem.allocate();
+
+        rowOfId = identity ? null : new int[store.idLimit()];
+        if (rowOfId != null) {
+            Arrays.fill(rowOfId, -1);
+        }
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            int base = c << TransactionStore.CHUNK_SHIFT;
+            for (int i = 0; i < chunk.size; i++) {
+                if (!chunk.isDeleted(i)) {
+                    byBill.add(chunk.billNumber[i], base + i);
+                    byItem.add(chunk.itemCode[i], base + i);
+                    if (rowOfId != null) {
+                        rowOfId[chunk.id[i]] = base + i;
+                    }
+                }
+            }
+        }
+    }
+
+    // Call before the row is marked deleted in the store
+    void removed(int row) {
+        TransactionStore.Chunk chunk = store.chunk(row >>> TransactionStore.CHUNK_SHIFT);
+        int i = row & TransactionStore.CHUNK_MASK;
+        byBill.remove(chunk.billNumber[i], row);
+        byItem.remove(chunk.itemCode[i], row);
+        if (rowOfId != null) {
+            rowOfId[chunk.id[i]] = -1;
+        }
+    }
+
+    void itemCodeChanged(int row, int oldCode, int newCode) {
+        if (oldCode != newCode) {
+            byItem.remove(oldCode, row);
+            byItem.add(newCode, row);
+        }
+    }
+
+    // Live rows with the bill number, in row order
+    int[] rowsOfBill(String billNumber) {
+        return byBill.rows(store.getBillNumbers().lookup(billNumber));
+    }
+
+    // Live rows with the item code, in row order
+    int[] rowsOfItemCode(String itemCode) {
+        return byItem.rows(store.getItemCodes().lookup(itemCode));
+    }
+
+    // Current row of a live id, or -1
+    int rowOfId(int id) {
+        if (rowOfId != null) {
+            return id >= 0 && id < rowOfId.length ? rowOfId[id] : -1;
+        }
+        return id >= 0 && id < store.size() && !store.isDeleted(id) ? id : -1;
+    }
+
+    // Row lists per key with swap-remove: slot[row] is the row's position in
+    // the list of its key
+    private static final class Postings {
+        private static final int[] EMPTY = new int[0];
+
+        private int[][] lists;
+        private int[] counts;
+        private int[] slot;
+
+        Postings(int keys, int rows) {
+            lists = new int[keys][];
+            counts = new int[keys];
+            slot = new int[rows];
+        }
+
+        void count(int key) {
+            counts[key]++;
+        }
+
+        void allocate() {
+            for (int key = 0; key < lists.length; key++) {
+                lists[key] = counts[key] == 0 ? EMPTY : new int[counts[key]];
+                counts[key] = 0;
+            }
+        }
+
+        void add(int key, int row) {
+            if (key >= lists.length) {
+                // A key the dictionary gained after the index was built
+                int keys = Math.max(key + 1, lists.length * 2);
+                lists = Arrays.copyOf(lists, keys);
+                counts = Arrays.copyOf(counts, keys);
+            }
+            if (row >= slot.length) {
+                slot = Arrays.copyOf(slot, Math.max(row + 1, slot.length * 2));
+            }
+            int[] list = lists[key];
+            int n = counts[key];
+            if (list == null || n == list.length) {
+                list = Arrays.copyOf(list == null ? EMPTY : list, Math.max(4, n * 2));
+                lists[key] = list;
+            }
+            list[n] = row;
+            slot[row] = n;
+            counts[key] = n + 1;
+        }
+
+        void remove(int key, int row) {
+            int[] list = lists[key];
+            int last = --counts[key];
+            int moved = list[last];
+            list[slot[row]] = moved;
+            slot[moved] = slot[row];
+        }
+
+        int[] rows(int key) {
+            if (key < 0 || key >= lists.length || counts[key] == 0) {
+                return EMPTY;
+            }
+            int[] rows = Arrays.copyOf(lists[key], counts[key]);
+            Arrays.sort(rows);
+            return rows;
+        }
+    }
+}
@@ -1,212 +1,1071 @@
 package manager;
 
+import Model.Money;
 import Model.Transaction;
+import Model.TransactionSnapshot;
+import Model.TransactionStore;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.math.RoundingMode;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
 
 public class TransactionManager {
-    private List<Transaction> transactions = new ArrayList<>();
+    // Compaction runs once deleted rows make up this share of the store
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_DELETED = 1024;
+
+    private TransactionStore store = new TransactionStore();
+    // Bill number, item code and id lookups, kept in sync by every mutation below
+    private TransactionIndex index = new TransactionIndex(store);
+    private final CsvIngestEngine ingestEngine = new CsvIngestEngine();
+    private final ValidationPipeline validationPipeline = new ValidationPipeline(ForkJoinPool.commonPool());
+    private final TransactionAggregator aggregator = new TransactionAggregator(ForkJoinPool.commonPool());
+    // Checks beyond the built-in ones, compiled into the validation pass
+    private final List<ValidationRule> validationRules = new ArrayList<>();
+    private ValidationRules compiledRules = new ValidationRules(validationRules);
+    private boolean verbose;
+    // Applied wherever money is rounded to cents: profit, raw total and tax
+    private RoundingMode rounding = Money.DEFAULT_ROUNDING;
+
+    // Counts and valid profit of the loaded rows, kept current by every
+    // mutation made through this manager so summary and tax queries are O(1)
+    private final RunningTotals totals = new RunningTotals();
+
+    // File the rows came from and its size and modification time when it was
+    // read. Once rows are edited or deleted they no longer match the file, and
+    // no snapshot of it is written.
+    private File source;
+    private TransactionSnapshot.Source sourceStat;
+    private boolean modified;
+    // Whether the snapshot of the source holds the rows as they are, and
+    // whether the last full validation used the current rules and rounding.
+    // A validation that repeats the last one changes no row, so it leaves a
+    // current snapshot current and saveSnapshot does not write it again.
+    private boolean snapshotCurrent;
+    private boolean validationCurrent;
+    // Ids of the rows edited since they were imported, so a re-import can keep the edits
+    private BitSet edited = new BitSet();
+    // Edits and deletes of the rows, opened on the first one
+    private EditJournal journal;
+    private boolean journalFailed;
+    // Told about every completed stage when set; null means metrics are off
+    private MetricsRegistry metrics;
+    // Lines of earlier filings, checked and added to on every load of a
+    // file when set; null means no duplicate check
+    private FingerprintIndex fingerprints;
+    // Ids of the loaded rows whose line another filing had first
+    private BitSet duplicates;
 
     public boolean loadTransactionsFromCSV(String filePath) {
-        transactions.clear();
+        return loadTransactionsFromCSV(filePath, ProgressListener.NONE);
+    }
+
+    // Loads a file while reporting progress. If the listener cancels, a
+    // CancellationException is thrown and the previously loaded rows are kept.
+    public boolean loadTransactionsFromCSV(String filePath, ProgressListener listener) {
         File file = new File(filePath);
 
         if (!file.exists()) {
+            clear();
             System.out.println("File not found.");
             return false;
         }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            boolean isFirstLine = true;
+        try {
+            StageRecorder stage = StageRecorder.start(PipelineStage.IMPORT, metrics);
+            // Taken before reading, so a change while importing is noticed later
+            TransactionSnapshot.Source stat = TransactionSnapshot.Source.stat(file);
+            install(ingestEngine.ingest(file, listener), file, stat);
+            if (stage != null) {
+                stage.finish(store.size(), stat.getLength(), ingestEngine.getLastParseErrors(), null);
+            }
+            return store.size() > 0;
+        } catch (IOException e) {
+            clear();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Loads rows from a stream, e.g. an upload, parsing lines as they arrive
+    // rather than reading the whole stream first. size is the expected number
+    // of bytes, for progress only, or -1 when it is not known. The rows come
+    // from no file, so they have no snapshot and edits are not journaled. A
+    // failed read throws and leaves no rows loaded; a cancel throws
+    // CancellationException and keeps the previously loaded rows.
+    public boolean loadTransactions(InputStream in, long size, ProgressListener listener) throws IOException {
+        StageRecorder stage = StageRecorder.start(PipelineStage.IMPORT, metrics);
+        TransactionStore loaded;
+        try {
+            loaded = ingestEngine.ingest(Channels.newChannel(in), size, listener);
+        } catch (IOException e) {
+            clear();
+            throw e;
+        }
+        install(loaded, null, null);
+        if (stage != null) {
+            stage.finish(store.size(), ingestEngine.getLastBytesRead(), ingestEngine.getLastParseErrors(), null);
+        }
+        return store.size() > 0;
+    }
+
+    // Re-imports a revised version of the loaded filing, e.g. a corrected
+    // resubmission, and returns what changed. Each line is hashed and matched
+    // against the line a loaded row was imported from, so only lines that
+    // match no row are parsed and validated. The rows of unchanged lines keep
+    // their profit, validity, edits and deletes. A changed line replaces the
+    // loaded row of the same bill number and item code that no line matched,
+    // or is added, and loaded rows matched by nothing are removed.
+    //
+    // Rows end up in file order with the ids a fresh import of the file would
+    // give them, so its snapshot and journal keep working; kept edits and
+    // deletes are journaled again for the revised file. A cancel throws
+    // CancellationException and keeps the loaded rows.
+    public ReimportDiff reimportTransactionsFromCSV(String filePath, ProgressListener listener) throws IOException {
+        File file = new File(filePath);
+        StageRecorder stage = StageRecorder.start(PipelineStage.REIMPORT, metrics);
+        TransactionSnapshot.Source stat = TransactionSnapshot.Source.stat(file);
+        TransactionStore previous = store;
+        IncrementalImporter.Result result = new IncrementalImporter().reimport(previous, edited, file, listener);
+        TransactionStore revised = result.store;
+        // Until the revised rows are installed, the duplicates of the loaded
+        // ones stay the manager's
+        BitSet revisedDuplicates = checkDuplicates(revised, file, source);
+        compiledRules.setDuplicates(revisedDuplicates);
+        try {
+            if (verbose) {
+                for (int row : result.parsed) {
+                    checkTransaction(new Transaction(revised, row), compiledRules);
+                }
+            } else {
+                validationPipeline.validate(revised, compiledRules, result.parsed, rounding);
+            }
+        } catch (RuntimeException e) {
+            compiledRules.setDuplicates(duplicates);
+            throw e;
+        }
+        duplicates = revisedDuplicates;
+
+        closeJournal();
+        store = revised;
+        index = new TransactionIndex(revised);
+        source = file;
+        sourceStat = stat;
+        snapshotCurrent = false;
+        recalculateTotals();
+        rejournal(result);
+
+        ReimportDiff diff = new ReimportDiff(new RowViews(revised, result.added),
+                new RowViews(previous, result.removed), new RowViews(revised, result.modified),
+                new RowViews(previous, result.replaced), result.unchanged, result.parseErrors);
+        if (stage != null) {
+            stage.finish(revised.size(), stat.getLength(), result.parseErrors, null);
+        }
+        return diff;
+    }
+
+    // Journals the edits and deletes a re-import kept under their new ids,
+    // in a fresh journal of the revised file. One it already had belongs to
+    // rows that were just replaced, so it is moved aside.
+    private void rejournal(IncrementalImporter.Result result) {
+        edited = new BitSet();
+        modified = !result.editedBefore.isEmpty() || store.deletedCount() > 0;
+        File file = journalFileOf(source.getPath());
+        try {
+            if (file.isFile()) {
+                File stale = new File(file.getPath() + ".stale");
+                Files.move(file.toPath(), stale.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Journal of the previous version moved to " + stale);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!modified || journal() == null) {
+            return;
+        }
+        for (Map.Entry<Integer, EditJournal.Fields> entry : result.editedBefore.entrySet()) {
+            Transaction t = new Transaction(store, entry.getKey());
+            edited.set(t.getId());
+            journal.updated(t.getId(), entry.getValue(), fieldsOf(t), t.getCurrentChecksum());
+        }
+        int[] deleted = IntStream.range(0, store.size()).filter(store::isDeleted).map(store::getId).toArray();
+        if (deleted.length > 0) {
+            journal.deleted(deleted);
+        }
+    }
+
+    // Opens a CSV file from its snapshot while that is current for the file,
+    // and otherwise imports the file and writes a fresh snapshot of it
+    public boolean openTransactions(String filePath, ProgressListener listener) {
+        if (loadSnapshot(filePath)) {
+            return store.size() > 0;
+        }
+        boolean loaded = loadTransactionsFromCSV(filePath, listener);
+        if (loaded) {
+            saveSnapshot();
+        }
+        return loaded;
+    }
+
+    // Loads the rows of a CSV file, with their profit, checksum and validation
+    // state, from its snapshot. Returns false and keeps the loaded rows when
+    // there is no snapshot or the file changed since it was written.
+    public boolean loadSnapshot(String filePath) {
+        File file = new File(filePath);
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            StageRecorder stage = StageRecorder.start(PipelineStage.SNAPSHOT_LOAD, metrics);
+            TransactionSnapshot.Source stat = TransactionSnapshot.Source.stat(file);
+            File snapshot = snapshotFileOf(filePath);
+            TransactionStore loaded = TransactionSnapshot.read(snapshot, file, rounding);
+            if (loaded == null) {
+                return false;
+            }
+            install(loaded, file, stat);
+            snapshotCurrent = true;
+            if (stage != null) {
+                stage.finish(store.size(), snapshot.length());
+            }
+            return true;
+        } catch (IOException e) {
+            // A snapshot is only a cache, so a damaged one means a re-import
+            System.out.println("Ignoring snapshot of " + filePath + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes the loaded rows to the snapshot of the file they came from.
+    // Returns false without writing when rows were edited or deleted since
+    // the import or the file changed, as the snapshot would not match it.
+    // Returns true without writing when the snapshot already holds the rows.
+    public boolean saveSnapshot() {
+        if (source == null || modified) {
+            return false;
+        }
+        if (snapshotCurrent) {
+            return true;
+        }
+        try {
+            StageRecorder stage = StageRecorder.start(PipelineStage.SNAPSHOT_SAVE, metrics);
+            TransactionSnapshot.Source current = TransactionSnapshot.Source.of(source);
+            if (!current.sameStat(sourceStat)) {
+                return false;
+            }
+            File snapshot = snapshotFileOf(source.getPath());
+            TransactionSnapshot.write(store, current, rounding, snapshot);
+            snapshotCurrent = true;
+            if (stage != null) {
+                stage.finish(store.size(), snapshot.length());
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // The file the rows came from, or null
+    public File getSource() {
+        return source;
+    }
+
+    // Whether the rows came from a file that has the same size and
+    // modification time as when it was read
+    public boolean isSourceCurrent() {
+        if (source == null) {
+            return false;
+        }
+        try {
+            return TransactionSnapshot.Source.stat(source).sameStat(sourceStat);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Writes the rows as they are now, edits, deletes and validation state
+    // included, to a file that restoreSpilled reads back. Unlike the snapshot
+    // of the source it may hold edits, as it is not replayed with the
+    // journal. Returns false without writing when the rows came from no file
+    // or it changed since it was read.
+    public boolean spill(File file) throws IOException {
+        if (source == null) {
+            return false;
+        }
+        StageRecorder stage = StageRecorder.start(PipelineStage.SNAPSHOT_SAVE, metrics);
+        TransactionSnapshot.Source current = TransactionSnapshot.Source.of(source);
+        if (!current.sameStat(sourceStat)) {
+            return false;
+        }
+        TransactionSnapshot.write(store, current, rounding, file);
+        if (stage != null) {
+            stage.finish(store.size(), file.length());
+        }
+        return true;
+    }
+
+    // Loads rows written by spill for the CSV file. Returns false and keeps
+    // the loaded rows when the file changed since or nothing was spilled.
+    // Edits made from here on are journaled after the ones already in the rows.
+    public boolean restoreSpilled(File file, String filePath) {
+        File sourceFile = new File(filePath);
+        try {
+            StageRecorder stage = StageRecorder.start(PipelineStage.SNAPSHOT_LOAD, metrics);
+            TransactionSnapshot.Source stat = TransactionSnapshot.Source.stat(sourceFile);
+            TransactionStore loaded = TransactionSnapshot.read(file, sourceFile, rounding);
+            if (loaded == null) {
+                return false;
+            }
+            TransactionIndex loadedIndex = new TransactionIndex(loaded);
+            closeJournal();
+            store = loaded;
+            index = loadedIndex;
+            source = sourceFile;
+            sourceStat = stat;
+            snapshotCurrent = false;
+            validationCurrent = false;
+            recalculateTotals();
+            duplicates = checkDuplicates(store, source, null);
+            compiledRules.setDuplicates(duplicates);
+            // The journaled edits are in the rows already; the journal only
+            // tells which rows were edited, for a re-import to keep
+            edited = journaledEdits();
+            modified = !edited.isEmpty() || store.deletedCount() > 0;
+            if (stage != null) {
+                stage.finish(store.size(), file.length());
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Ignoring spilled rows of " + filePath + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Ids of the rows edited in the journal of the source file
+    private BitSet journaledEdits() throws IOException {
+        BitSet ids = new BitSet();
+        File file = journalFileOf(source.getPath());
+        if (file.isFile() && EditJournal.matches(file, sourceStat.getLength(), sourceStat.getLastModified())) {
+            EditJournal.replay(file, new EditJournal.Visitor() {
+                @Override
+                public void updated(int id, EditJournal.Fields before, EditJournal.Fields after, int checksum) {
+                    ids.set(id);
+                }
+
+                @Override
+                public void deleted(int id) {
+                }
+            });
+        }
+        return ids;
+    }
+
+    // The snapshot of a CSV file is kept next to it
+    public static File snapshotFileOf(String filePath) {
+        return new File(filePath + ".snapshot");
+    }
+
+    // So is the journal of the edits made to it
+    public static File journalFileOf(String filePath) {
+        return new File(filePath + ".journal");
+    }
+
+    private void install(TransactionStore loaded, File file, TransactionSnapshot.Source stat) {
+        TransactionIndex loadedIndex = new TransactionIndex(loaded);
+        closeJournal();
+        store = loaded;
+        index = loadedIndex;
+        source = file;
+        sourceStat = stat;
+        modified = false;
+        snapshotCurrent = false;
+        validationCurrent = false;
+        edited = new BitSet();
+        recalculateTotals();
+        duplicates = checkDuplicates(store, source, null);
+        compiledRules.setDuplicates(duplicates);
+        if (source != null) {
+            replayJournal();
+        }
+    }
+
+    // Records the lines of rows loaded from a file in the fingerprint index,
+    // if one is set, and returns the ids of the rows another filing had
+    // first, or null when there is no index. revisionOf is the file a
+    // re-import revises. An index that cannot be read or written only means
+    // no duplicates are flagged.
+    private BitSet checkDuplicates(TransactionStore rows, File file, File revisionOf) {
+        if (fingerprints == null || file == null) {
+            return null;
+        }
+        StageRecorder stage = StageRecorder.start(PipelineStage.DUPLICATE_CHECK, metrics);
+        BitSet ids = null;
+        try {
+            ids = fingerprints.checkAndRecord(rows, FilingWorkspace.keyOf(file),
+                    revisionOf == null ? null : FilingWorkspace.keyOf(revisionOf));
+        } catch (IOException e) {
+            System.out.println("Could not check " + file + " for duplicate lines: " + e.getMessage());
+        }
+        if (stage != null) {
+            stage.finish(rows.liveSize(), 0);
+        }
+        return ids;
+    }
+
+    // Rows whose line was filed before in another filing fail validation as
+    // DUPLICATE_LINE once this is set. Applies to files loaded from then on;
+    // the manager does not close the index.
+    public void setFingerprintIndex(FingerprintIndex fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    public FingerprintIndex getFingerprintIndex() {
+        return fingerprints;
+    }
 
-            while ((line = br.readLine()) != null) {
-                if (isFirstLine) {
-                    isFirstLine = false;
-                    if (line.contains("BillID") || line.contains("ItemCode")) {
-                        continue;
+    // Applies the edits journaled for the source file since it was imported.
+    // A journal written for another version of the file is moved aside.
+    private void replayJournal() {
+        File file = journalFileOf(source.getPath());
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            if (!EditJournal.matches(file, sourceStat.getLength(), sourceStat.getLastModified())) {
+                File stale = new File(file.getPath() + ".stale");
+                Files.move(file.toPath(), stale.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Journal was written for another version of the file, moved to " + stale);
+                return;
+            }
+            int[] mismatches = {0};
+            int records = EditJournal.replay(file, new EditJournal.Visitor() {
+                @Override
+                public void updated(int id, EditJournal.Fields before, EditJournal.Fields after, int checksum) {
+                    Transaction t = getTransactionById(id);
+                    if (t == null || !fieldsOf(t).sameAs(before)) {
+                        mismatches[0]++;
+                    }
+                    if (t != null) {
+                        applyUpdate(t, after.itemCode, after.internalPrice, after.discount,
+                                after.salePrice, after.quantity);
+                        if (t.getCurrentChecksum() != checksum) {
+                            mismatches[0]++;
+                        }
                     }
                 }
 
-                String[] parts = line.split(",");
-                if (parts.length >= 8) {
-                    try {
-                        String billNumber = parts[0];
-                        String itemCode = parts[1];
-                        String originalInternalPrice = parts[2];
-                        String originalDiscount = parts[3];
-                        String originalSalePrice = parts[4];
-                        String originalQuantity = parts[5];
-
-                        double internalPrice = Double.parseDouble(originalInternalPrice);
-                        double discount = Double.parseDouble(originalDiscount);
-                        double salePrice = Double.parseDouble(originalSalePrice);
-                        int quantity = Integer.parseInt(originalQuantity);
-
-                        double rawTotal = Double.parseDouble(parts[6]);
-                        int checksum = Integer.parseInt(parts[7]);
-
-                        Transaction transaction = new Transaction(
-                                billNumber, itemCode,
-                                internalPrice, discount, salePrice, quantity, checksum,
-                                originalInternalPrice, originalDiscount, originalSalePrice, originalQuantity
-                        );
-
-                        // Set the raw total from the CSV file
-                        transaction.setRawTotal(rawTotal);
-                        transaction.setOriginalRawTotal(parts[6]);
-
-                        // Save imported checksum separately and don't modify it
-                        transaction.setImportedChecksum(checksum);
-
-                        // Initialize current checksum with imported checksum
-                        transaction.setCurrentChecksum(checksum);
-
-                        // Mark as valid by default - validation will happen separately
-                        transaction.setValid(true);
-
-                        transactions.add(transaction);
-                    } catch (NumberFormatException e) {
-                        System.out.println("Error parsing line: " + line);
+                @Override
+                public void deleted(int id) {
+                    Transaction t = getTransactionById(id);
+                    if (t == null) {
+                        mismatches[0]++;
+                    } else {
+                        removeLive(t);
                     }
                 }
+            });
+            modified |= records > 0;
+            if (mismatches[0] > 0) {
+                System.out.println(mismatches[0] + " journaled edits did not match the loaded rows");
             }
-            return !transactions.isEmpty();
         } catch (IOException e) {
             e.printStackTrace();
-            return false;
         }
     }
 
+    // Waits for journaled edits to reach the disk and closes the journal
+    public void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journal = null;
+        }
+        journalFailed = false;
+    }
+
+    // The journal of the source file, or null when the rows did not come
+    // from a file or it cannot be written
+    private EditJournal journal() {
+        if (journal == null && source != null && !journalFailed) {
+            try {
+                journal = EditJournal.open(journalFileOf(source.getPath()),
+                        sourceStat.getLength(), sourceStat.getLastModified());
+            } catch (IOException e) {
+                // Edits still work, they are just not journaled
+                journalFailed = true;
+                e.printStackTrace();
+            }
+        }
+        return journal;
+    }
+
+    private static EditJournal.Fields fieldsOf(Transaction t) {
+        return new EditJournal.Fields(t.getItemCode(), t.getInternalPrice(), t.getDiscount(),
+                t.getSalePrice(), t.getQuantity());
+    }
+
+    private void clear() {
+        closeJournal();
+        store = new TransactionStore();
+        index = new TransactionIndex(store);
+        source = null;
+        sourceStat = null;
+        modified = false;
+        snapshotCurrent = false;
+        validationCurrent = false;
+        edited = new BitSet();
+        totals.reset();
+        duplicates = null;
+        compiledRules.setDuplicates(null);
+    }
+
     public List<Transaction> getTransactions() {
-        return transactions;
+        return store.asList();
     }
 
-    public int calculateCurrentChecksum(Transaction transaction) {
-        // Calculate checksum based on current values
-        String formattedRawTotal = String.format("%.2f", transaction.getRawTotal());
+    public TransactionStore getStore() {
+        return store;
+    }
 
-        String transactionLine = transaction.getItemCode()
-                + String.format("%.2f", transaction.getInternalPrice())
-                + String.format("%.2f", transaction.getDiscount())
-                + String.format("%.2f", transaction.getSalePrice())
-                + String.valueOf(transaction.getQuantity())
-                + formattedRawTotal;
+    // Every line of a bill, in file order
+    public List<Transaction> getTransactionsForBill(String billNumber) {
+        return views(index.rowsOfBill(billNumber));
+    }
+
+    // Every line with the item code, in file order
+    public List<Transaction> getTransactionsForItemCode(String itemCode) {
+        return views(index.rowsOfItemCode(itemCode));
+    }
 
-        int capital = 0, simple = 0, numbers = 0;
+    // The transaction with the given id, or null if there is none (any more)
+    public Transaction getTransactionById(int id) {
+        int row = index.rowOfId(id);
+        return row < 0 ? null : new Transaction(store, row);
+    }
 
-        for (char c : transactionLine.toCharArray()) {
-            if (Character.isUpperCase(c)) capital++;
-            else if (Character.isLowerCase(c)) simple++;
-            else if (Character.isDigit(c) || c == '.') numbers++;
+    private List<Transaction> views(int[] rows) {
+        return new RowViews(store, rows);
+    }
+
+    private static final class RowViews extends AbstractList<Transaction> implements RandomAccess {
+        private final TransactionStore store;
+        private final int[] rows;
+
+        RowViews(TransactionStore store, int[] rows) {
+            this.store = store;
+            this.rows = rows;
+        }
+
+        @Override
+        public Transaction get(int index) {
+            return new Transaction(store, rows[index]);
+        }
+
+        @Override
+        public int size() {
+            return rows.length;
         }
+    }
 
-        return capital + simple + numbers;
+    public int calculateCurrentChecksum(Transaction transaction) {
+        // Calculate checksum based on current values
+        return ChecksumCalculator.checksum(transaction.getItemCode(),
+                transaction.getInternalPrice(), transaction.getDiscount(), transaction.getSalePrice(),
+                transaction.getQuantity(), transaction.getRawTotal());
     }
 
     public void validateSingleTransaction(Transaction t) {
+        boolean tracked = isLive(t);
+        if (tracked) {
+            totals.remove(t.isValid(), t.getValidationFailures(), t.getProfitCents());
+            if (!validationCurrent) {
+                snapshotCurrent = false;
+            }
+        }
+        int failures = checkTransaction(t);
+        if (tracked) {
+            totals.add(t.isValid(), failures, t.getProfitCents());
+        }
+    }
+
+    // Validates one transaction and returns the reasons it failed, if any.
+    // A transaction of another store gets rules compiled for that store.
+    private int checkTransaction(Transaction t) {
+        return checkTransaction(t, t.getStore() == store ? compiledRules : new ValidationRules(validationRules));
+    }
+
+    private int checkTransaction(Transaction t, ValidationRules rules) {
         // Calculate profit for the transaction
         calculateProfitForTransaction(t);
 
-        // Create a pattern for validating item code (letters, numbers, underscores only)
-        Pattern pattern = Pattern.compile("^[a-zA-Z0-9_]+$");
+        // Same checks as the validation pass: item code, profit, checksum
+        // (only held to the imported one while the row is unedited), lines
+        // filed before and the registered rules
+        TransactionStore rowStore = t.getStore();
+        rules.ensure(rowStore);
+        int row = t.getRow();
+        int failures = rules.check(rowStore.chunk(row >>> TransactionStore.CHUNK_SHIFT),
+                row & TransactionStore.CHUNK_MASK, t.getProfitCents());
 
-        // Check if the transaction has been updated
-        boolean isUpdated = t.getCurrentChecksum() != t.getImportedChecksum();
+        // A transaction is valid if all conditions are met
+        boolean valid = failures == 0;
+        t.setValid(valid);
+        t.setValidationFailures(failures);
 
-        // Check three conditions:
-        // 1. Item code should not contain special characters
-        boolean validItemCode = pattern.matcher(t.getItemCode()).matches();
+        if (verbose) {
+            System.out.println("Transaction: " + t.getItemCode());
+            System.out.println("- Valid item code: " + ((failures & ValidationFailure.INVALID_ITEM_CODE.bit()) == 0));
+            System.out.println("- Positive profit: " + ((failures & ValidationFailure.NEGATIVE_PROFIT.bit()) == 0));
+            System.out.println("- Is updated: " + (t.getCurrentChecksum() != t.getImportedChecksum()));
+            System.out.println("- Checksum valid: " + ((failures & ValidationFailure.CHECKSUM_MISMATCH.bit()) == 0));
+            System.out.println("- Current checksum: " + t.getCurrentChecksum());
+            System.out.println("- Imported checksum: " + t.getImportedChecksum());
+            if (fingerprints != null) {
+                System.out.println("- Filed before: " + ((failures & ValidationFailure.DUPLICATE_LINE.bit()) != 0));
+            }
+            if (!validationRules.isEmpty()) {
+                System.out.println("- Failed: " + rules.describe(failures));
+            }
+            System.out.println("- Final validity: " + valid);
+        }
+        return failures;
+    }
 
-        // 2. Profit should not be negative
-        boolean positiveProfit = t.getProfit() >= 0;
+    public ValidationResult validateTransactions() {
+        return validateTransactions(ProgressListener.NONE);
+    }
 
-        // 3. Checksum validation depends on whether this is an updated transaction
-        boolean checksumValid;
-        if (isUpdated) {
-            // For updated transactions, just ensure we have a valid checksum (no need to match imported)
-            checksumValid = true;
-        } else {
-            // For original transactions, calculated should match imported
-            int calculatedChecksum = calculateCurrentChecksum(t);
-            checksumValid = (calculatedChecksum == t.getImportedChecksum());
+    // Validates all rows while reporting progress. A cancel leaves the rows
+    // validated so far as they are and throws CancellationException.
+    public ValidationResult validateTransactions(ProgressListener listener) {
+        StageRecorder stage = StageRecorder.start(PipelineStage.VALIDATE, metrics);
+        ValidationResult result = validateAll(listener);
+        if (stage != null) {
+            stage.finish(result.getTotal(), 0, 0, result);
         }
+        return result;
+    }
 
-        // For debugging
-        System.out.println("Transaction: " + t.getItemCode());
-        System.out.println("- Valid item code: " + validItemCode);
-        System.out.println("- Positive profit: " + positiveProfit);
-        System.out.println("- Is updated: " + isUpdated);
-        System.out.println("- Checksum valid: " + checksumValid);
-        System.out.println("- Current checksum: " + t.getCurrentChecksum());
-        System.out.println("- Imported checksum: " + t.getImportedChecksum());
+    private ValidationResult validateAll(ProgressListener listener) {
+        if (!validationCurrent) {
+            snapshotCurrent = false;
+        }
+        if (!verbose) {
+            // Profit and validity are computed together in one parallel pass
+            try {
+                totals.copyFrom(validationPipeline.run(store, compiledRules, rounding, listener));
+            } catch (CancellationException e) {
+                recalculateTotals();
+                throw e;
+            }
+            validationCurrent = true;
+            return totals.toResult(validationRules);
+        }
 
-        // A transaction is valid if all conditions are met
-        boolean valid = validItemCode && positiveProfit && checksumValid;
-        t.setValid(valid);
+        // Tracing prints every row in order, so it stays on this thread
+        calculateProfits();
+        totals.reset();
+        int rows = store.size();
+        for (int row = 0; row < rows; row++) {
+            if (listener.isCancelled()) {
+                recalculateTotals();
+                throw new CancellationException("Validation cancelled");
+            }
+            if (store.isDeleted(row)) {
+                continue;
+            }
+            Transaction t = new Transaction(store, row);
+            int failures = checkTransaction(t);
+            totals.add(t.isValid(), failures, t.getProfitCents());
+            listener.progress(row + 1, row + 1, rows);
+        }
+        validationCurrent = true;
+        return totals.toResult(validationRules);
+    }
 
-        System.out.println("- Final validity: " + valid);
+    // Stage timings, throughput, parse errors, failure counts and allocation
+    // go to the registry, or nowhere when it is null (the default). Flight
+    // Recorder gets them as PipelineStageEvent while a recording runs,
+    // whether a registry is set or not.
+    public void setMetricsRegistry(MetricsRegistry metrics) {
+        this.metrics = metrics;
     }
 
-    public void validateTransactions() {
-        // First ensure profits are calculated for all transactions
-        calculateProfits();
+    public MetricsRegistry getMetricsRegistry() {
+        return metrics;
+    }
+
+    // Per-row debug output of validation, off by default
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
 
-        // Then validate each transaction individually
-        for (Transaction t : transactions) {
-            validateSingleTransaction(t);
+    public void setRoundingMode(RoundingMode rounding) {
+        if (rounding != this.rounding) {
+            validationCurrent = false;
         }
+        this.rounding = rounding;
+    }
+
+    public RoundingMode getRoundingMode() {
+        return rounding;
     }
 
     private void calculateProfitForTransaction(Transaction t) {
-        double discountAmount = t.getSalePrice() * (t.getDiscount() / 100.0);
-        double discountedSalePrice = t.getSalePrice() - discountAmount;
-        double profit = (discountedSalePrice - t.getInternalPrice()) * t.getQuantity();
-        t.setProfit(profit);
+        // (discounted sale price - internal price) * quantity, exact to the cent
+        t.setProfitCents(Money.profitCents(t.getSalePrice(), t.getDiscount(), t.getInternalPrice(),
+                t.getQuantity(), rounding));
     }
 
     public void calculateProfits() {
-        for (Transaction t : transactions) {
-            calculateProfitForTransaction(t);
+        StageRecorder stage = StageRecorder.start(PipelineStage.PROFIT, metrics);
+        // Same formula as calculateProfitForTransaction, run straight over the columns.
+        // Every profit may change, so the totals are rebuilt in the same pass.
+        if (!validationCurrent) {
+            snapshotCurrent = false;
+        }
+        totals.reset();
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            double[] salePrice = chunk.salePrice;
+            double[] discount = chunk.discount;
+            double[] internalPrice = chunk.internalPrice;
+            int[] quantity = chunk.quantity;
+            long[] profit = chunk.profitCents;
+            for (int i = 0; i < chunk.size; i++) {
+                profit[i] = Money.profitCents(salePrice[i], discount[i], internalPrice[i], quantity[i], rounding);
+                if (!chunk.isDeleted(i)) {
+                    totals.add(chunk.isValid(i), chunk.failures[i], profit[i]);
+                }
+            }
+        }
+        if (stage != null) {
+            stage.finish(store.size(), 0);
+        }
+    }
+
+    // Rebuilds the running totals from the rows with one full pass
+    public void recalculateTotals() {
+        totals.reset();
+        for (int c = 0; c < store.chunkCount(); c++) {
+            TransactionStore.Chunk chunk = store.chunk(c);
+            for (int i = 0; i < chunk.size; i++) {
+                if (!chunk.isDeleted(i)) {
+                    totals.add(chunk.isValid(i), chunk.failures[i], chunk.profitCents[i]);
+                }
+            }
         }
     }
 
     public void deleteZeroProfitTransactions() {
-        transactions.removeIf(t -> t.getProfit() == 0);
+        StageRecorder stage = StageRecorder.start(PipelineStage.DELETE_ZERO_PROFIT, metrics);
+        int rows = store.size();
+        int[] ids = IntStream.range(0, store.size())
+                .filter(row -> !store.isDeleted(row) && store.getProfitCents(row) == 0)
+                .map(store::getId)
+                .toArray();
+        int removed = store.removeIf(row -> {
+            // Profit is in whole cents, so rows that net out to zero are exactly 0
+            if (store.getProfitCents(row) != 0) {
+                return false;
+            }
+            totals.remove(store.isValid(row), store.getFailures(row), 0);
+            return true;
+        });
+        // Rows moved, so the indexes are rebuilt
+        index = new TransactionIndex(store);
+        modified |= removed > 0;
+        if (journal() != null && ids.length > 0) {
+            journal.deleted(ids);
+        }
+        if (stage != null) {
+            stage.finish(rows, 0);
+        }
     }
 
+    // Deleted rows only get a tombstone, so this is O(1) apart from an
+    // occasional compaction once enough tombstones have piled up. Rows are
+    // renumbered by a compaction; ids stay the same.
     public void deleteTransaction(Transaction transaction) {
-        transactions.remove(transaction);
+        if (isLive(transaction)) {
+            int id = transaction.getId();
+            removeLive(transaction);
+            if (journal() != null) {
+                journal.deleted(id);
+            }
+        }
+    }
+
+    private void removeLive(Transaction transaction) {
+        int row = transaction.getRow();
+        totals.remove(transaction.isValid(), transaction.getValidationFailures(), transaction.getProfitCents());
+        index.removed(row);
+        store.delete(row);
+        modified = true;
+        if (store.deletedCount() >= COMPACT_MIN_DELETED
+                && store.deletedCount() * COMPACT_RATIO >= store.size()) {
+            compact();
+        }
+    }
+
+    public boolean deleteTransactionById(int id) {
+        Transaction transaction = getTransactionById(id);
+        if (transaction == null) {
+            return false;
+        }
+        deleteTransaction(transaction);
+        return true;
+    }
+
+    // Drops the tombstones of deleted rows and rebuilds the indexes
+    public void compact() {
+        if (store.deletedCount() > 0) {
+            store.compact();
+            index = new TransactionIndex(store);
+        }
+    }
+
+    // Writes the valid rows to one CSV file and the invalid rows, with the
+    // reasons they failed, to another; both gzip-compressed when asked.
+    // Cancelling through the listener deletes both files.
+    public TransactionExporter.Result exportTransactions(File validFile, File invalidFile, boolean gzip,
+                                                         ProgressListener listener) throws IOException {
+        StageRecorder stage = StageRecorder.start(PipelineStage.EXPORT, metrics);
+        TransactionExporter.Result result = new TransactionExporter().export(store, compiledRules, validFile,
+                invalidFile, gzip, listener);
+        if (stage != null) {
+            stage.finish(result.getValid() + result.getInvalid(), validFile.length() + invalidFile.length());
+        }
+        return result;
+    }
+
+    // Views find their row by id, so one taken before a compaction still
+    // means the same row, or none
+    private boolean isLive(Transaction t) {
+        return t.getStore() == store && !t.isDeleted();
     }
 
     public double calculateFinalTax(double taxRate) {
-        double totalProfit = 0;
-        for (Transaction t : transactions) {
-            if (t.isValid()) {
-                totalProfit += t.getProfit();
-            }
+        return Money.toDouble(calculateFinalTaxCents(taxRate));
+    }
+
+    // Tax on the exact valid profit, rounded once to the cent
+    public long calculateFinalTaxCents(double taxRate) {
+        StageRecorder stage = StageRecorder.start(PipelineStage.TAX, metrics);
+        long basisPoints = Money.toBasisPoints(taxRate, rounding);
+        long tax = totals.getValidProfitTaxCents(basisPoints, rounding);
+        if (stage != null) {
+            stage.finish(totals.getValid(), 0);
         }
-        return totalProfit * (taxRate / 100.0);
+        return tax;
     }
 
-    // Method to update transaction and recalculate checksum
+    public GroupTotals aggregate(TransactionField groupBy, boolean validOnly) {
+        return aggregate(groupBy, validOnly, ProgressListener.NONE);
+    }
+
+    // Count, sum, min, max and average of profit, line total and quantity per
+    // bill number or item code, over every live row or only the valid ones.
+    // Profit is as of the last validation. A cancel throws CancellationException.
+    public GroupTotals aggregate(TransactionField groupBy, boolean validOnly, ProgressListener listener) {
+        StageRecorder stage = StageRecorder.start(PipelineStage.AGGREGATE, metrics);
+        GroupTotals result = aggregator.aggregate(store, groupBy, validOnly, rounding, listener);
+        if (stage != null) {
+            stage.finish(store.liveSize(), 0);
+        }
+        return result;
+    }
+
+    public int getTotalCount() {
+        return totals.getTotal();
+    }
+
+    // Lines of the last import that could not be parsed
+    public int getLastParseErrors() {
+        return ingestEngine.getLastParseErrors();
+    }
+
+    public int getValidCount() {
+        return totals.getValid();
+    }
+
+    public int getInvalidCount() {
+        return totals.getTotal() - totals.getValid();
+    }
+
+    public int getFailureCount(ValidationFailure reason) {
+        return totals.getFailureCount(reason);
+    }
+
+    // Rows that failed a registered rule at their last validation
+    public int getFailureCount(ValidationRule rule) {
+        int r = validationRules.indexOf(rule);
+        if (r < 0) {
+            throw new IllegalArgumentException("Not a registered rule: " + rule);
+        }
+        return totals.getFailureCount(ValidationRules.bitOf(r));
+    }
+
+    // Adds a check every row must pass besides the built-in ones. Like a new
+    // rounding mode it applies from the next validation on, so call
+    // validateTransactions to apply it to the loaded rows. Up to 28 rules
+    // can be registered, one per bit of the failure mask left.
+    public void addValidationRule(ValidationRule rule) {
+        if (validationRules.size() == ValidationRules.MAX_RULES) {
+            throw new IllegalStateException("At most " + ValidationRules.MAX_RULES + " rules can be registered");
+        }
+        validationRules.add(rule);
+        compiledRules = new ValidationRules(validationRules);
+        compiledRules.setDuplicates(duplicates);
+        validationCurrent = false;
+    }
+
+    // Takes effect at the next validation, like addValidationRule
+    public boolean removeValidationRule(ValidationRule rule) {
+        if (!validationRules.remove(rule)) {
+            return false;
+        }
+        compiledRules = new ValidationRules(validationRules);
+        compiledRules.setDuplicates(duplicates);
+        validationCurrent = false;
+        return true;
+    }
+
+    // The registered rules, in the order of their failure bits
+    public List<ValidationRule> getValidationRules() {
+        return List.copyOf(validationRules);
+    }
+
+    // What a failure mask, as in Transaction.getValidationFailures, stands
+    // for: built-in reasons first, then registered rules
+    public List<String> describeFailures(int failures) {
+        return compiledRules.describe(failures);
+    }
+
+    public double getTotalValidProfit() {
+        return totals.getValidProfit();
+    }
+
+    // Method to update transaction and recalculate checksum. Edits of loaded
+    // rows are journaled, see EditJournal.
     public void updateTransaction(Transaction t, String itemCode, double internalPrice,
                                   double discount, double salePrice, int quantity) {
-        // Update values
-        t.setItemCode(itemCode);
-        t.setInternalPrice(internalPrice);
-        t.setDiscount(discount);
-        t.setSalePrice(salePrice);
-        t.setQuantity(quantity);
+        EditJournal.Fields before = fieldsOf(t);
+        applyUpdate(t, itemCode, internalPrice, discount, salePrice, quantity);
+        if (isLive(t) && journal() != null) {
+            journal.updated(t.getId(), before,
+                    new EditJournal.Fields(itemCode, internalPrice, discount, salePrice, quantity),
+                    t.getCurrentChecksum());
+        }
+    }
 
-        // Recalculate raw total
-        double discountAmount = salePrice * (discount / 100.0);
-        double discountedSalePrice = salePrice - discountAmount;
-        double rawTotal = discountedSalePrice * quantity;
-        t.setRawTotal(rawTotal);
+    // Applies many edits at once, e.g. a fix list or a new price for an item
+    // code on every bill. Values are set row by row, then the checksum,
+    // profit and validity of just the edited rows are worked out in one
+    // parallel pass, with the same results as calling updateTransaction for
+    // each. Edits of ids that are not loaded are skipped, and when an id is
+    // edited more than once the last edit wins. Returns the rows changed.
+    public int updateTransactions(Collection<TransactionEdit> edits) {
+        StageRecorder stage = StageRecorder.start(PipelineStage.BATCH_UPDATE, metrics);
+        Map<Integer, TransactionEdit> lastEdits = new LinkedHashMap<>();
+        for (TransactionEdit edit : edits) {
+            lastEdits.put(edit.getId(), edit);
+        }
+        boolean journaled = journal() != null;
+        int[] rows = new int[lastEdits.size()];
+        TransactionEdit[] applied = new TransactionEdit[rows.length];
+        EditJournal.Fields[] before = new EditJournal.Fields[journaled ? rows.length : 0];
+        int count = 0;
+        for (TransactionEdit edit : lastEdits.values()) {
+            Transaction t = getTransactionById(edit.getId());
+            if (t == null) {
+                continue;
+            }
+            totals.remove(t.isValid(), t.getValidationFailures(), t.getProfitCents());
+            if (journaled) {
+                before[count] = fieldsOf(t);
+            }
+            setValues(t, edit.getItemCode(), edit.getInternalPrice(), edit.getDiscount(),
+                    edit.getSalePrice(), edit.getQuantity());
+            rows[count] = t.getRow();
+            applied[count] = edit;
+            count++;
+        }
+
+        if (verbose) {
+            for (int k = 0; k < count; k++) {
+                Transaction t = new Transaction(store, rows[k]);
+                t.setCurrentChecksum(calculateCurrentChecksum(t));
+                int failures = checkTransaction(t);
+                totals.add(t.isValid(), failures, t.getProfitCents());
+            }
+        } else {
+            int[] sorted = Arrays.copyOf(rows, count);
+            Arrays.sort(sorted);
+            totals.merge(validationPipeline.revalidate(store, compiledRules, sorted, rounding));
+        }
+
+        if (journaled) {
+            for (int k = 0; k < count; k++) {
+                TransactionEdit edit = applied[k];
+                journal.updated(edit.getId(), before[k], new EditJournal.Fields(edit.getItemCode(),
+                        edit.getInternalPrice(), edit.getDiscount(), edit.getSalePrice(), edit.getQuantity()),
+                        store.getCurrentChecksum(rows[k]));
+            }
+        }
+        if (stage != null) {
+            stage.finish(count, 0);
+        }
+        return count;
+    }
+
+    // Edits every live row the filter accepts with the values change makes
+    // of its current ones, as one updateTransactions call. The filter runs
+    // on this thread, in row order.
+    public int updateTransactions(Predicate<Transaction> filter, UnaryOperator<TransactionEdit> change) {
+        List<TransactionEdit> edits = new ArrayList<>();
+        for (int row = 0; row < store.size(); row++) {
+            if (store.isDeleted(row)) {
+                continue;
+            }
+            Transaction t = new Transaction(store, row);
+            if (filter.test(t)) {
+                edits.add(change.apply(TransactionEdit.of(t)));
+            }
+        }
+        return updateTransactions(edits);
+    }
+
+    private void applyUpdate(Transaction t, String itemCode, double internalPrice,
+                             double discount, double salePrice, int quantity) {
+        setValues(t, itemCode, internalPrice, discount, salePrice, quantity);
 
         // Calculate and update the new checksum
         int newChecksum = calculateCurrentChecksum(t);
@@ -215,4 +1074,24 @@ public class TransactionManager {
         // Validate the transaction with updated values
         validateSingleTransaction(t);
     }
+
+    // Sets the edited values and the raw total that follows from them
+    private void setValues(Transaction t, String itemCode, double internalPrice,
+                           double discount, double salePrice, int quantity) {
+        modified = true;
+        int oldItemCode = t.getStore().getItemCodeId(t.getRow());
+        t.setItemCode(itemCode);
+        if (isLive(t)) {
+            index.itemCodeChanged(t.getRow(), oldItemCode, store.getItemCodeId(t.getRow()));
+            edited.set(t.getId());
+        }
+        t.setInternalPrice(internalPrice);
+        t.setDiscount(discount);
+        t.setSalePrice(salePrice);
+        t.setQuantity(quantity);
+
+        // Recalculate raw total, rounded to the cent like every other amount
+        double rawTotal = Money.toDouble(Money.rawTotalCents(salePrice, discount, quantity, rounding));
+        t.setRawTotal(rawTotal);
+    }
 }
\ No newline at end of file
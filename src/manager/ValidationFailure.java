@@ -0,0 +1,25 @@
+package manager;
+
+// Reasons a transaction can fail validation. A row may fail for several
+// reasons at once, so each reason has its own bit.
+public enum ValidationFailure {
+    INVALID_ITEM_CODE("Item code contains special characters"),
+    NEGATIVE_PROFIT("Profit is negative"),
+    CHECKSUM_MISMATCH("Checksum does not match the imported value"),
+    // Only checked when the manager has a FingerprintIndex
+    DUPLICATE_LINE("Line was already filed in another filing");
+
+    private final String description;
+
+    ValidationFailure(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public int bit() {
+        return 1 << ordinal();
+    }
+}
@@ -0,0 +1,224 @@
+package manager;
+
+import Model.Money;
+import Model.TransactionStore;
+
+import java.math.RoundingMode;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Validates every row of a TransactionStore on a ForkJoinPool. Work is split
+// by whole chunks, so no two tasks ever write the same validity bitset word,
+// and each task keeps its own totals before they are merged. What a row is
+// checked for is given by a ValidationRules, built-in checks and registered
+// rules alike, all in one pass over the row.
+final class ValidationPipeline {
+    private final ForkJoinPool pool;
+
+    ValidationPipeline(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Returns the totals of the whole store after validation. Progress is
+    // reported after every chunk; a cancel stops before the next chunk starts.
+    RunningTotals run(TransactionStore store, ValidationRules rules, RoundingMode rounding,
+                      ProgressListener listener) {
+        rules.ensure(store);
+        Progress progress = new Progress(listener, store.size());
+        return pool.invoke(new ValidateTask(store, rules, rounding, progress, 0, store.chunkCount()));
+    }
+
+    // Recomputes the current checksum, profit and validity of edited rows,
+    // given in ascending order, and returns the totals of just those rows.
+    // Rows are split between tasks by chunk like in run().
+    RunningTotals revalidate(TransactionStore store, ValidationRules rules, int[] rows, RoundingMode rounding) {
+        return validate(store, rules, rows, rounding, true);
+    }
+
+    // Calculates profit and validity of freshly added rows, given in
+    // ascending order, like run() does for every row
+    RunningTotals validate(TransactionStore store, ValidationRules rules, int[] rows, RoundingMode rounding) {
+        return validate(store, rules, rows, rounding, false);
+    }
+
+    private RunningTotals validate(TransactionStore store, ValidationRules rules, int[] rows,
+                                   RoundingMode rounding, boolean edited) {
+        rules.ensure(store);
+        // Start of every run of rows in the same chunk, and the end of the last
+        int[] groups = new int[rows.length + 1];
+        int count = 0;
+        for (int k = 0; k < rows.length; k++) {
+            if (k == 0 || rows[k] >>> TransactionStore.CHUNK_SHIFT != rows[k - 1] >>> TransactionStore.CHUNK_SHIFT) {
+                groups[count++] = k;
+            }
+        }
+        groups[count] = rows.length;
+        return pool.invoke(new RevalidateTask(store, rules, rounding, edited, rows, groups, 0, count));
+    }
+
+    // Same rule as the old "^[a-zA-Z0-9_]+$" pattern, as a plain character scan
+    static boolean isValidItemCode(String itemCode) {
+        if (itemCode == null || itemCode.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < itemCode.length(); i++) {
+            char c = itemCode.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int failureBits(boolean validItemCode, boolean positiveProfit, boolean checksumValid) {
+        int failures = 0;
+        if (!validItemCode) {
+            failures |= ValidationFailure.INVALID_ITEM_CODE.bit();
+        }
+        if (!positiveProfit) {
+            failures |= ValidationFailure.NEGATIVE_PROFIT.bit();
+        }
+        if (!checksumValid) {
+            failures |= ValidationFailure.CHECKSUM_MISMATCH.bit();
+        }
+        return failures;
+    }
+
+    // Calculates profit and validity of one row, exactly like
+    // TransactionManager.validateSingleTransaction, and returns the failure bits
+    private static int validateRow(TransactionStore.Chunk chunk, int i, ValidationRules rules, RoundingMode rounding) {
+        long profit = Money.profitCents(chunk.salePrice[i], chunk.discount[i], chunk.internalPrice[i],
+                chunk.quantity[i], rounding);
+        chunk.profitCents[i] = profit;
+        int failures = rules.check(chunk, i, profit);
+        chunk.setValid(i, failures == 0);
+        chunk.failures[i] = failures;
+        return failures;
+    }
+
+    // An edited row first gets the checksum of its new values, as
+    // TransactionManager.updateTransaction gives it
+    private static int revalidateRow(TransactionStore.Chunk chunk, int i, ValidationRules rules, RoundingMode rounding) {
+        chunk.currentChecksum[i] = ChecksumCalculator.checksum(rules.characters(chunk.itemCode[i]),
+                chunk.internalPrice[i], chunk.discount[i], chunk.salePrice[i], chunk.quantity[i], chunk.rawTotal[i]);
+        return validateRow(chunk, i, rules, rounding);
+    }
+
+    // Rows validated so far across all tasks
+    private static final class Progress {
+        final ProgressListener listener;
+        final long total;
+        final AtomicLong done = new AtomicLong();
+
+        Progress(ProgressListener listener, long total) {
+            this.listener = listener;
+            this.total = total;
+        }
+
+        void checkCancelled() {
+            if (listener.isCancelled()) {
+                throw new CancellationException("Validation cancelled");
+            }
+        }
+
+        void completed(int rows) {
+            long validated = done.addAndGet(rows);
+            listener.progress(validated, validated, total);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ValidateTask extends RecursiveTask<RunningTotals> {
+        private final TransactionStore store;
+        private final ValidationRules rules;
+        private final RoundingMode rounding;
+        private final Progress progress;
+        private final int fromChunk;
+        private final int toChunk;
+
+        ValidateTask(TransactionStore store, ValidationRules rules, RoundingMode rounding, Progress progress,
+                     int fromChunk, int toChunk) {
+            this.store = store;
+            this.rules = rules;
+            this.rounding = rounding;
+            this.progress = progress;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected RunningTotals compute() {
+            if (toChunk - fromChunk > 1) {
+                int mid = (fromChunk + toChunk) >>> 1;
+                ValidateTask left = new ValidateTask(store, rules, rounding, progress, fromChunk, mid);
+                left.fork();
+                RunningTotals right = new ValidateTask(store, rules, rounding, progress, mid, toChunk).compute();
+                return right.merge(left.join());
+            }
+            RunningTotals totals = new RunningTotals();
+            if (fromChunk < toChunk) {
+                progress.checkCancelled();
+                TransactionStore.Chunk chunk = store.chunk(fromChunk);
+                for (int i = 0; i < chunk.size; i++) {
+                    if (chunk.isDeleted(i)) {
+                        continue;
+                    }
+                    int failures = validateRow(chunk, i, rules, rounding);
+                    totals.add(failures == 0, failures, chunk.profitCents[i]);
+                }
+                progress.completed(chunk.size);
+            }
+            return totals;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class RevalidateTask extends RecursiveTask<RunningTotals> {
+        private final TransactionStore store;
+        private final ValidationRules rules;
+        private final RoundingMode rounding;
+        private final boolean edited;
+        private final int[] rows;
+        private final int[] groups;
+        private final int fromGroup;
+        private final int toGroup;
+
+        RevalidateTask(TransactionStore store, ValidationRules rules, RoundingMode rounding, boolean edited,
+                       int[] rows, int[] groups, int fromGroup, int toGroup) {
+            this.store = store;
+            this.rules = rules;
+            this.rounding = rounding;
+            this.edited = edited;
+            this.rows = rows;
+            this.groups = groups;
+            this.fromGroup = fromGroup;
+            this.toGroup = toGroup;
+        }
+
+        @Override
+        protected RunningTotals compute() {
+            if (toGroup - fromGroup > 1) {
+                int mid = (fromGroup + toGroup) >>> 1;
+                RevalidateTask left = new RevalidateTask(store, rules, rounding, edited, rows, groups,
+                        fromGroup, mid);
+                left.fork();
+                RunningTotals right = new RevalidateTask(store, rules, rounding, edited, rows, groups,
+                        mid, toGroup).compute();
+                return right.merge(left.join());
+            }
+            RunningTotals totals = new RunningTotals();
+            if (fromGroup < toGroup) {
+                for (int k = groups[fromGroup]; k < groups[fromGroup + 1]; k++) {
+                    TransactionStore.Chunk chunk = store.chunk(rows[k] >>> TransactionStore.CHUNK_SHIFT);
+                    int i = rows[k] & (TransactionStore.CHUNK_SIZE - 1);
+                    int failures = edited ? revalidateRow(chunk, i, rules, rounding)
+                            : validateRow(chunk, i, rules, rounding);
+                    totals.add(failures == 0, failures, chunk.profitCents[i]);
+                }
+            }
+            return totals;
+        }
+    }
+}
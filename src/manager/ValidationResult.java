@@ -0,0 +1,76 @@
+package manager;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Outcome of a validation run: how many rows were checked, how many passed
+// and how many failed for each built-in reason and each registered rule
+public class ValidationResult {
+    private final int total;
+    private final int valid;
+    // By failure bit number, see ValidationRules
+    private final int[] failureCounts;
+    private final List<ValidationRule> rules;
+
+    ValidationResult(int total, int valid, int[] failureCounts, List<ValidationRule> rules) {
+        this.total = total;
+        this.valid = valid;
+        this.failureCounts = failureCounts.clone();
+        this.rules = List.copyOf(rules);
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getValid() {
+        return valid;
+    }
+
+    public int getInvalid() {
+        return total - valid;
+    }
+
+    public int getFailureCount(ValidationFailure reason) {
+        return failureCounts[reason.ordinal()];
+    }
+
+    // Rows that failed a rule registered when the validation ran
+    public int getFailureCount(ValidationRule rule) {
+        int r = rules.indexOf(rule);
+        if (r < 0) {
+            throw new IllegalArgumentException("Not a rule of this validation: " + rule);
+        }
+        return failureCounts[Integer.numberOfTrailingZeros(ValidationRules.bitOf(r))];
+    }
+
+    public Map<ValidationFailure, Integer> getFailureCounts() {
+        Map<ValidationFailure, Integer> counts = new EnumMap<>(ValidationFailure.class);
+        for (ValidationFailure reason : ValidationFailure.values()) {
+            counts.put(reason, failureCounts[reason.ordinal()]);
+        }
+        return counts;
+    }
+
+    // Failure counts of the registered rules, in the order they were added
+    public Map<ValidationRule, Integer> getRuleFailureCounts() {
+        Map<ValidationRule, Integer> counts = new LinkedHashMap<>();
+        for (ValidationRule rule : rules) {
+            counts.put(rule, getFailureCount(rule));
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "ValidationResult{" +
+                "total=" + total +
+                ", valid=" + valid +
+                ", invalid=" + getInvalid() +
+                ", failures=" + getFailureCounts() +
+                (rules.isEmpty() ? "" : ", ruleFailures=" + getRuleFailureCounts()) +
+                '}';
+    }
+}
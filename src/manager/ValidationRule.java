@@ -0,0 +1,87 @@
+package manager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// A check rows must pass to be valid, on top of the built-in ones of
+// ValidationFailure, e.g.
+//   ValidationRule.range("Discount above 40%", TransactionField.DISCOUNT, 0, 40)
+//   ValidationRule.matches("Bill number format", TransactionField.BILL_NUMBER, "B[0-9]{6}")
+// Rules are registered with TransactionManager.addValidationRule. They are
+// never run one by one: ValidationRules compiles every registered rule and
+// the built-in checks into the one pass that validates a row, and a row
+// that fails a rule has the bit of that rule set in its failure mask.
+// Immutable.
+public abstract class ValidationRule {
+    private final String description;
+
+    ValidationRule(String description) {
+        if (description == null || description.isEmpty()) {
+            throw new IllegalArgumentException("A rule needs a description");
+        }
+        this.description = description;
+    }
+
+    // Shown as the reason a row failed, e.g. in the rejected rows file
+    public String getDescription() {
+        return description;
+    }
+
+    // Adds the check to the compiled rules, marking failed rows with bit
+    abstract void compileInto(ValidationRules rules, int bit);
+
+    // Rows whose value of a numeric field is outside [min, max], compared
+    // as the table shows it (profit in currency units, discount in percent)
+    public static ValidationRule range(String description, TransactionField field, double min, double max) {
+        if (field.isText()) {
+            throw new IllegalArgumentException(field + " is not a numeric field");
+        }
+        if (!(min <= max)) {
+            throw new IllegalArgumentException("Empty range [" + min + ", " + max + "]");
+        }
+        return new ValidationRule(description) {
+            @Override
+            void compileInto(ValidationRules rules, int bit) {
+                rules.addBounds(field, min, max, bit);
+            }
+        };
+    }
+
+    // Rows whose bill number or item code does not match the pattern as a
+    // whole. The pattern is tried once per distinct value, not per row.
+    public static ValidationRule matches(String description, TransactionField field, String regex) {
+        if (!field.isText()) {
+            throw new IllegalArgumentException(field + " is not a text field");
+        }
+        Pattern pattern = Pattern.compile(regex);
+        return new ValidationRule(description) {
+            @Override
+            void compileInto(ValidationRules rules, int bit) {
+                rules.addText(field, value -> value == null || !pattern.matcher(value).matches(), bit);
+            }
+        };
+    }
+
+    // Rows whose value of a numeric field is above the limit given for their
+    // item code, e.g. the largest quantity of an item a bill may carry.
+    // Item codes without a limit pass.
+    public static ValidationRule perItemLimit(String description, TransactionField field,
+                                              Map<String, Double> limits) {
+        if (field.isText()) {
+            throw new IllegalArgumentException(field + " is not a numeric field");
+        }
+        Map<String, Double> copy = new HashMap<>(limits);
+        return new ValidationRule(description) {
+            @Override
+            void compileInto(ValidationRules rules, int bit) {
+                rules.addItemLimits(field, copy, bit);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
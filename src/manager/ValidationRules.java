@@ -0,0 +1,304 @@
+package manager;
+
+import Model.Money;
+import Model.StringDictionary;
+import Model.TransactionStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// The built-in checks and the registered ValidationRules of a manager,
+// compiled into one check per row for one store. Bit k of a failure mask is
+// ValidationFailure k, and the bits after the built-in ones are the rules in
+// the order they were registered.
+//
+// Adding rules costs far less than adding passes:
+// - Text rules are decided once per dictionary entry and folded, with the
+//   item code check, into one failure mask per bill number and one per item
+//   code, so any number of them costs a row two array reads.
+// - Bounds on the same field are folded into the range they all allow, so a
+//   row inside it passes every one of them with two compares; only a row
+//   outside is checked bound by bound to find which ones it failed.
+// - Item limits on the same field are folded the same way into the lowest
+//   limit per item code.
+// - The checksum, the dearest check, comes last.
+// - Lines filed before in another filing are looked up once per filing by a
+//   FingerprintIndex; the row only tests its id in the set it gave.
+// Every check still runs for every row, as the mask must list all failures.
+//
+// Dictionaries only grow, so ensure() extends the per-entry tables to new
+// entries instead of compiling again. Not thread-safe while ensure() runs;
+// check() may then be called from any number of threads.
+final class ValidationRules {
+    static final int MAX_RULES = Integer.SIZE - ValidationFailure.values().length;
+
+    private final List<ValidationRule> rules;
+    private final List<TextCheck> textChecks = new ArrayList<>();
+    // Per numeric field with bounds: the range all its bounds allow, and
+    // each bound with its bit
+    private TransactionField[] boundFields = new TransactionField[0];
+    private double[] passLow = new double[0];
+    private double[] passHigh = new double[0];
+    private double[][] boundMin = new double[0][];
+    private double[][] boundMax = new double[0][];
+    private int[][] boundBits = new int[0][];
+    // Per numeric field with item limits: the rules' limit maps and bits
+    private TransactionField[] limitFields = new TransactionField[0];
+    private final List<List<Map<String, Double>>> limitMaps = new ArrayList<>();
+    private int[][] limitBits = new int[0][];
+
+    // Tables for the dictionaries of the store last ensured, indexed by id.
+    // Only the dictionaries are held, not the rows of an old store.
+    private StringDictionary bills;
+    private StringDictionary items;
+    private int[] billFailures = new int[0];
+    private int[] itemFailures = new int[0];
+    private int[] itemCharacters = new int[0];
+    // [field][item code] lowest limit, and [field][rule][item code] each limit
+    private double[][] lowestLimit = new double[0][];
+    private double[][][] limits = new double[0][][];
+    // Ids of the rows a FingerprintIndex found in other filings, or null
+    private BitSet duplicateIds;
+
+    ValidationRules(List<ValidationRule> rules) {
+        if (rules.size() > MAX_RULES) {
+            throw new IllegalArgumentException("At most " + MAX_RULES + " rules fit in a failure mask");
+        }
+        this.rules = List.copyOf(rules);
+        for (int r = 0; r < this.rules.size(); r++) {
+            this.rules.get(r).compileInto(this, bitOf(r));
+        }
+    }
+
+    // Bit of the r-th registered rule in a failure mask
+    static int bitOf(int r) {
+        return 1 << (ValidationFailure.values().length + r);
+    }
+
+    List<ValidationRule> getRules() {
+        return rules;
+    }
+
+    void addText(TransactionField field, Predicate<String> fails, int bit) {
+        textChecks.add(new TextCheck(field, fails, bit));
+    }
+
+    void addBounds(TransactionField field, double min, double max, int bit) {
+        int f = fieldSlot(field);
+        if (f == boundFields.length) {
+            boundFields = Arrays.copyOf(boundFields, f + 1);
+            boundFields[f] = field;
+            passLow = Arrays.copyOf(passLow, f + 1);
+            passHigh = Arrays.copyOf(passHigh, f + 1);
+            passLow[f] = Double.NEGATIVE_INFINITY;
+            passHigh[f] = Double.POSITIVE_INFINITY;
+            boundMin = Arrays.copyOf(boundMin, f + 1);
+            boundMax = Arrays.copyOf(boundMax, f + 1);
+            boundBits = Arrays.copyOf(boundBits, f + 1);
+            boundMin[f] = new double[0];
+            boundMax[f] = new double[0];
+            boundBits[f] = new int[0];
+        }
+        passLow[f] = Math.max(passLow[f], min);
+        passHigh[f] = Math.min(passHigh[f], max);
+        int n = boundBits[f].length;
+        boundMin[f] = Arrays.copyOf(boundMin[f], n + 1);
+        boundMax[f] = Arrays.copyOf(boundMax[f], n + 1);
+        boundBits[f] = Arrays.copyOf(boundBits[f], n + 1);
+        boundMin[f][n] = min;
+        boundMax[f][n] = max;
+        boundBits[f][n] = bit;
+    }
+
+    void addItemLimits(TransactionField field, Map<String, Double> itemLimits, int bit) {
+        int f = 0;
+        while (f < limitFields.length && limitFields[f] != field) {
+            f++;
+        }
+        if (f == limitFields.length) {
+            limitFields = Arrays.copyOf(limitFields, f + 1);
+            limitFields[f] = field;
+            limitBits = Arrays.copyOf(limitBits, f + 1);
+            limitBits[f] = new int[0];
+            limitMaps.add(new ArrayList<>());
+            lowestLimit = Arrays.copyOf(lowestLimit, f + 1);
+            lowestLimit[f] = new double[0];
+            limits = Arrays.copyOf(limits, f + 1);
+            limits[f] = new double[0][];
+        }
+        int n = limitBits[f].length;
+        limitBits[f] = Arrays.copyOf(limitBits[f], n + 1);
+        limitBits[f][n] = bit;
+        limitMaps.get(f).add(itemLimits);
+        limits[f] = Arrays.copyOf(limits[f], n + 1);
+        limits[f][n] = new double[0];
+    }
+
+    private int fieldSlot(TransactionField field) {
+        int f = 0;
+        while (f < boundFields.length && boundFields[f] != field) {
+            f++;
+        }
+        return f;
+    }
+
+    // Makes the per-entry tables cover every bill number and item code of
+    // the store; call before checking its rows
+    void ensure(TransactionStore store) {
+        StringDictionary bills = store.getBillNumbers();
+        StringDictionary items = store.getItemCodes();
+        if (this.bills != bills || this.items != items) {
+            this.bills = bills;
+            this.items = items;
+            billFailures = new int[0];
+            itemFailures = new int[0];
+            itemCharacters = new int[0];
+            for (int f = 0; f < limitFields.length; f++) {
+                lowestLimit[f] = new double[0];
+                Arrays.fill(limits[f], new double[0]);
+            }
+        }
+        if (billFailures.length < bills.size()) {
+            int from = billFailures.length;
+            billFailures = Arrays.copyOf(billFailures, bills.size());
+            for (int id = from; id < bills.size(); id++) {
+                billFailures[id] = textFailures(TransactionField.BILL_NUMBER, bills.decode(id));
+            }
+        }
+        if (itemFailures.length < items.size()) {
+            int from = itemFailures.length;
+            itemFailures = Arrays.copyOf(itemFailures, items.size());
+            itemCharacters = Arrays.copyOf(itemCharacters, items.size());
+            for (int f = 0; f < limitFields.length; f++) {
+                lowestLimit[f] = Arrays.copyOf(lowestLimit[f], items.size());
+                Arrays.fill(lowestLimit[f], from, items.size(), Double.POSITIVE_INFINITY);
+                for (int r = 0; r < limits[f].length; r++) {
+                    limits[f][r] = Arrays.copyOf(limits[f][r], items.size());
+                }
+            }
+            for (int id = from; id < items.size(); id++) {
+                String code = items.decode(id);
+                itemFailures[id] = textFailures(TransactionField.ITEM_CODE, code)
+                        | (ValidationPipeline.isValidItemCode(code) ? 0 : ValidationFailure.INVALID_ITEM_CODE.bit());
+                itemCharacters[id] = code == null ? 0 : ChecksumCalculator.countCharacters(code);
+                for (int f = 0; f < limitFields.length; f++) {
+                    for (int r = 0; r < limits[f].length; r++) {
+                        Double limit = code == null ? null : limitMaps.get(f).get(r).get(code);
+                        limits[f][r][id] = limit == null ? Double.POSITIVE_INFINITY : limit;
+                        lowestLimit[f][id] = Math.min(lowestLimit[f][id], limits[f][r][id]);
+                    }
+                }
+            }
+        }
+    }
+
+    private int textFailures(TransactionField field, String value) {
+        int failures = 0;
+        for (TextCheck check : textChecks) {
+            if (check.field == field && check.fails.test(value)) {
+                failures |= check.bit;
+            }
+        }
+        return failures;
+    }
+
+    // Rows to fail as DUPLICATE_LINE by id, null to check none
+    void setDuplicates(BitSet duplicateIds) {
+        this.duplicateIds = duplicateIds;
+    }
+
+    // Counted characters of an item code, for the checksum
+    int characters(int itemCode) {
+        return itemCharacters[itemCode];
+    }
+
+    // The failure mask of a row whose profit has just been worked out
+    int check(TransactionStore.Chunk chunk, int i, long profit) {
+        int code = chunk.itemCode[i];
+        int failures = itemFailures[code] | billFailures[chunk.billNumber[i]];
+        if (profit < 0) {
+            failures |= ValidationFailure.NEGATIVE_PROFIT.bit();
+        }
+        for (int f = 0; f < boundFields.length; f++) {
+            double value = value(chunk, i, boundFields[f], profit);
+            if (!(value >= passLow[f] && value <= passHigh[f])) {
+                double[] min = boundMin[f];
+                double[] max = boundMax[f];
+                for (int b = 0; b < min.length; b++) {
+                    if (!(value >= min[b] && value <= max[b])) {
+                        failures |= boundBits[f][b];
+                    }
+                }
+            }
+        }
+        for (int f = 0; f < limitFields.length; f++) {
+            double value = value(chunk, i, limitFields[f], profit);
+            if (!(value <= lowestLimit[f][code])) {
+                for (int r = 0; r < limitBits[f].length; r++) {
+                    if (!(value <= limits[f][r][code])) {
+                        failures |= limitBits[f][r];
+                    }
+                }
+            }
+        }
+        // An edited row has a checksum of its own values and is not held
+        // to the imported one, nor is it the line that was filed before
+        if (chunk.currentChecksum[i] == chunk.importedChecksum[i]) {
+            if (duplicateIds != null && duplicateIds.get(chunk.id[i])) {
+                failures |= ValidationFailure.DUPLICATE_LINE.bit();
+            }
+            int calculated = ChecksumCalculator.checksum(itemCharacters[code], chunk.internalPrice[i],
+                    chunk.discount[i], chunk.salePrice[i], chunk.quantity[i], chunk.rawTotal[i]);
+            if (calculated != chunk.importedChecksum[i]) {
+                failures |= ValidationFailure.CHECKSUM_MISMATCH.bit();
+            }
+        }
+        return failures;
+    }
+
+    // Descriptions of the failures in a mask, built-in ones first
+    List<String> describe(int failures) {
+        List<String> reasons = new ArrayList<>();
+        for (ValidationFailure reason : ValidationFailure.values()) {
+            if ((failures & reason.bit()) != 0) {
+                reasons.add(reason.getDescription());
+            }
+        }
+        for (int r = 0; r < rules.size(); r++) {
+            if ((failures & bitOf(r)) != 0) {
+                reasons.add(rules.get(r).getDescription());
+            }
+        }
+        return reasons;
+    }
+
+    // A numeric field of a row as the table shows it
+    private static double value(TransactionStore.Chunk chunk, int i, TransactionField field, long profit) {
+        switch (field) {
+            case INTERNAL_PRICE: return chunk.internalPrice[i];
+            case DISCOUNT: return chunk.discount[i];
+            case SALE_PRICE: return chunk.salePrice[i];
+            case QUANTITY: return chunk.quantity[i];
+            case CHECKSUM: return chunk.currentChecksum[i];
+            case PROFIT: return Money.toDouble(profit);
+            case RAW_TOTAL: return chunk.rawTotal[i];
+            default: throw new IllegalArgumentException(field + " is not a numeric field");
+        }
+    }
+
+    private static final class TextCheck {
+        final TransactionField field;
+        final Predicate<String> fails;
+        final int bit;
+
+        TextCheck(TransactionField field, Predicate<String> fails, int bit) {
+            this.field = field;
+            this.fails = fails;
+            this.bit = bit;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package manager;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// ChecksumCalculator counts characters arithmetically; the result must be
+// exactly what the original implementation got by formatting the fields
+// with "%.2f" and classifying every character.
+class ChecksumCalculatorTest {
+    private static final String[] ITEM_CODES = {
+            "ITEM_1", "item-2", "A.b.C", "", "Ärger_ß", "ÉCLAIR", "商品_7", "ДОМ_дом", "٣٤٥", "ǅ", "Ⅻ", "𝐀𝐁",
+            "   ", "x́"
+    };
+
+    private Locale defaultLocale;
+
+    @BeforeEach
+    void keepLocale() {
+        defaultLocale = Locale.getDefault();
+    }
+
+    @AfterEach
+    void restoreLocale() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    void randomValues() {
+        Locale.setDefault(Locale.US);
+        checkRandomValues(new SplittableRandom(3));
+    }
+
+    @Test
+    void valuesAroundPowersOfTen() {
+        Locale.setDefault(Locale.US);
+        checkAroundPowersOfTen();
+    }
+
+    @Test
+    void halfCentRoundingBoundaries() {
+        Locale.setDefault(Locale.US);
+        checkHalfCents(new SplittableRandom(5));
+    }
+
+    @Test
+    void largeAndSpecialValues() {
+        Locale.setDefault(Locale.US);
+        checkSpecialValues();
+    }
+
+    @Test
+    void nonAsciiItemCodes() {
+        Locale.setDefault(Locale.US);
+        for (String itemCode : ITEM_CODES) {
+            check(itemCode, 12.5, 0, 14.25, 3, 42.75);
+            check(itemCode, -1.005, 99.995, 0.004, -7, 1e15);
+        }
+    }
+
+    // The separator is ',' there, so the formatted values have no '.' to count
+    @Test
+    void commaDecimalLocale() {
+        Locale.setDefault(Locale.GERMANY);
+        checkRandomValues(new SplittableRandom(7));
+        checkAroundPowersOfTen();
+        checkHalfCents(new SplittableRandom(11));
+        checkSpecialValues();
+        // Switching back must not keep the cached separator
+        Locale.setDefault(Locale.US);
+        checkAroundPowersOfTen();
+    }
+
+    // Arabic-Indic digits and separator: still digits, but no '.'
+    @Test
+    void nativeDigitLocale() {
+        Locale.setDefault(Locale.forLanguageTag("ar-EG"));
+        checkRandomValues(new SplittableRandom(13));
+        checkAroundPowersOfTen();
+    }
+
+    private static void checkRandomValues(SplittableRandom random) {
+        for (int i = 0; i < 20_000; i++) {
+            String itemCode = ITEM_CODES[random.nextInt(ITEM_CODES.length)];
+            check(itemCode, amount(random), amount(random), amount(random), quantity(random), amount(random));
+        }
+    }
+
+    private static void checkAroundPowersOfTen() {
+        for (int exponent = -3; exponent <= 22; exponent++) {
+            double power = Math.pow(10, exponent);
+            double[] offsets = {0, 0.001, 0.004, 0.0049, 0.005, 0.0051, 0.006, 0.01, 0.011};
+            for (double offset : offsets) {
+                for (double value : new double[]{power - offset, power + offset}) {
+                    checkEverywhere(value);
+                    checkEverywhere(Math.nextUp(value));
+                    checkEverywhere(Math.nextDown(value));
+                    checkEverywhere(-value);
+                }
+            }
+        }
+    }
+
+    // x.xx5 is rarely exact in binary, so it rounds either way
+    private static void checkHalfCents(SplittableRandom random) {
+        for (int i = 0; i < 20_000; i++) {
+            long cents = random.nextLong(-100_000_000L, 100_000_000L);
+            double value = cents / 100.0 + 0.005;
+            checkEverywhere(value);
+            checkEverywhere(Math.nextUp(value));
+            checkEverywhere(Math.nextDown(value));
+        }
+        for (long cents = 990; cents <= 1010; cents++) {
+            checkEverywhere(cents / 1000.0 + 9.0);
+            checkEverywhere(cents / 1000.0 + 99.0);
+        }
+    }
+
+    private static void checkSpecialValues() {
+        double[] values = {
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0,
+                Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE,
+                0.995, 0.9949999, -0.995, 1e15, 1e15 - 0.5, 1e15 + 2, 9.999999999999998e14, 123456789012345678.0,
+                1e16, 1.5e17, 9.99999999e20, 1e100, -1e300
+        };
+        for (double value : values) {
+            checkEverywhere(value);
+        }
+        int[] quantities = {0, 1, -1, 9, 10, 99, 100, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int quantity : quantities) {
+            check("ITEM_1", 1, 2, 3, quantity, 4);
+        }
+    }
+
+    // In each of the four amount fields, so a miscount cannot cancel out
+    private static void checkEverywhere(double value) {
+        check("ITEM_1", value, 0, 0, 1, 0);
+        check("ITEM_1", 0, value, 0, 1, 0);
+        check("ITEM_1", 0, 0, value, 1, 0);
+        check("ITEM_1", 0, 0, 0, 1, value);
+    }
+
+    private static double amount(SplittableRandom random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                // Any double at all, NaN and infinities included
+                return Double.longBitsToDouble(random.nextLong());
+            case 1:
+                return random.nextLong(-1_000_000_000L, 1_000_000_000L) / 100.0;
+            case 2:
+                return random.nextDouble(-1e18, 1e18);
+            default:
+                return random.nextDouble() * Math.pow(10, random.nextInt(-3, 16));
+        }
+    }
+
+    private static int quantity(SplittableRandom random) {
+        return random.nextInt(4) == 0 ? random.nextInt() : random.nextInt(-10, 1000);
+    }
+
+    private static void check(String itemCode, double internalPrice, double discount, double salePrice,
+                              int quantity, double rawTotal) {
+        assertEquals(formattedChecksum(itemCode, internalPrice, discount, salePrice, quantity, rawTotal),
+                ChecksumCalculator.checksum(itemCode, internalPrice, discount, salePrice, quantity, rawTotal),
+                () -> itemCode + ", " + internalPrice + ", " + discount + ", " + salePrice + ", " + quantity
+                        + ", " + rawTotal + " in " + Locale.getDefault());
+    }
+
+    // The checksum as TransactionManager computed it before ChecksumCalculator
+    private static int formattedChecksum(String itemCode, double internalPrice, double discount,
+                                         double salePrice, int quantity, double rawTotal) {
+        String transactionLine = itemCode
+                + String.format("%.2f", internalPrice)
+                + String.format("%.2f", discount)
+                + String.format("%.2f", salePrice)
+                + String.valueOf(quantity)
+                + String.format("%.2f", rawTotal);
+
+        int capital = 0, simple = 0, numbers = 0;
+        for (char c : transactionLine.toCharArray()) {
+            if (Character.isUpperCase(c)) capital++;
+            else if (Character.isLowerCase(c)) simple++;
+            else if (Character.isDigit(c) || c == '.') numbers++;
+        }
+        return capital + simple + numbers;
+    }
+}
@@ -0,0 +1,54 @@
+package manager;
+
+import Model.Money;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+// Builds filings in the CSV import format and loads them into a manager
+final class Filings {
+    static final String HEADER = "BillID,ItemCode,InternalPrice,Discount,SalePrice,Quantity,LineTotal,Checksum";
+
+    private Filings() {
+    }
+
+    // One line with amounts in cents and the discount in basis points. Its
+    // checksum is correct unless checksumError is not 0.
+    static String line(String billNumber, String itemCode, long internalCents, long discountBasisPoints,
+                       long saleCents, int quantity, int checksumError) {
+        double internalPrice = internalCents / 100.0;
+        double discount = discountBasisPoints / 100.0;
+        double salePrice = saleCents / 100.0;
+        long rawTotalCents = Money.rawTotalCents(salePrice, discount, quantity, Money.DEFAULT_ROUNDING);
+        int checksum = ChecksumCalculator.checksum(itemCode, internalPrice, discount, salePrice,
+                quantity, rawTotalCents / 100.0);
+        return billNumber + "," + itemCode + "," + cents(internalCents) + "," + cents(discountBasisPoints) + ","
+                + cents(saleCents) + "," + quantity + "," + cents(rawTotalCents) + "," + (checksum + checksumError);
+    }
+
+    // A manager with the lines loaded, not validated yet
+    static TransactionManager load(List<String> lines) {
+        StringBuilder csv = new StringBuilder(HEADER).append('\n');
+        for (String line : lines) {
+            csv.append(line).append('\n');
+        }
+        // The importer reads with the platform charset
+        byte[] bytes = csv.toString().getBytes(Charset.defaultCharset());
+        TransactionManager manager = new TransactionManager();
+        try {
+            manager.loadTransactions(new ByteArrayInputStream(bytes), bytes.length, ProgressListener.NONE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return manager;
+    }
+
+    // "12.05" for 1205
+    private static String cents(long cents) {
+        long fraction = Math.abs(cents % 100);
+        return (cents < 0 ? "-" : "") + Math.abs(cents / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+}
@@ -0,0 +1,149 @@
+package manager;
+
+import Model.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The manager keeps its counts and valid profit up to date by deltas. After
+// any sequence of edits, deletes and validations they must equal the totals
+// one full pass over the rows gives.
+class RunningTotalsConsistencyTest {
+    private static final int SEEDS = 12;
+    private static final int ROWS = 3000;
+    private static final int STEPS = 150;
+    // Many rows share a few item codes, so zero profit and bad codes occur
+    private static final String[] ITEM_CODES = {"ITEM_1", "ITEM_2", "ITEM_3", "ITEM-4", "ITEM_5", "ITEM@6"};
+
+    private final ValidationRule quantityRule =
+            ValidationRule.range("Quantity up to 90", TransactionField.QUANTITY, 0, 90);
+
+    @Test
+    void deltaTotalsMatchARecalculation() {
+        for (long seed = 1; seed <= SEEDS; seed++) {
+            SplittableRandom random = new SplittableRandom(seed);
+            TransactionManager manager = Filings.load(lines(random));
+            manager.addValidationRule(quantityRule);
+            manager.validateTransactions();
+            List<Transaction> views = new ArrayList<>(manager.getTransactions());
+
+            for (int step = 0; step < STEPS; step++) {
+                String operation = apply(manager, views, random);
+                long[] running = totals(manager);
+                manager.recalculateTotals();
+                assertArrayEquals(totals(manager), running,
+                        "seed " + seed + ", step " + step + ": " + operation);
+            }
+            assertTrue(manager.getTotalCount() > 0, "seed " + seed + " deleted every row");
+        }
+    }
+
+    private String apply(TransactionManager manager, List<Transaction> views, SplittableRandom random) {
+        switch (random.nextInt(10)) {
+            case 0:
+            case 1:
+            case 2: {
+                Transaction t = liveView(views, random);
+                if (t == null) {
+                    return "no row to update";
+                }
+                TransactionEdit edit = randomEdit(t.getId(), random);
+                manager.updateTransaction(t, edit.getItemCode(), edit.getInternalPrice(), edit.getDiscount(),
+                        edit.getSalePrice(), edit.getQuantity());
+                return "updateTransaction";
+            }
+            case 3:
+            case 4: {
+                List<TransactionEdit> edits = new ArrayList<>();
+                int count = 1 + random.nextInt(50);
+                for (int i = 0; i < count; i++) {
+                    // Ids of deleted rows are skipped, ids edited twice keep the last edit
+                    edits.add(randomEdit(random.nextInt(ROWS), random));
+                }
+                manager.updateTransactions(edits);
+                return "updateTransactions of " + count;
+            }
+            case 5:
+            case 6:
+            case 7: {
+                // Views of rows deleted before, or compacted away, are ignored
+                int count = 1 + random.nextInt(120);
+                for (int i = 0; i < count; i++) {
+                    manager.deleteTransaction(views.get(random.nextInt(views.size())));
+                }
+                return "deleteTransaction of " + count;
+            }
+            case 8:
+                manager.deleteZeroProfitTransactions();
+                return "deleteZeroProfitTransactions";
+            default:
+                manager.validateTransactions();
+                return "validateTransactions";
+        }
+    }
+
+    private static Transaction liveView(List<Transaction> views, SplittableRandom random) {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            Transaction t = views.get(random.nextInt(views.size()));
+            if (!t.isDeleted()) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    // Values that may give zero or negative profit, a bad item code or a
+    // quantity the rule rejects
+    private static TransactionEdit randomEdit(int id, SplittableRandom random) {
+        long internalCents = 100 + random.nextInt(10_000);
+        long saleCents;
+        switch (random.nextInt(4)) {
+            case 0:
+                saleCents = internalCents;
+                break;
+            case 1:
+                saleCents = internalCents / 2;
+                break;
+            default:
+                saleCents = internalCents + random.nextInt(5_000);
+        }
+        double discount = saleCents == internalCents ? 0 : random.nextInt(3000) / 100.0;
+        return new TransactionEdit(id, ITEM_CODES[random.nextInt(ITEM_CODES.length)], internalCents / 100.0,
+                discount, saleCents / 100.0, 1 + random.nextInt(100));
+    }
+
+    private static List<String> lines(SplittableRandom random) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            long internalCents = 100 + random.nextInt(10_000);
+            long saleCents = random.nextInt(5) == 0 ? internalCents : internalCents + random.nextInt(5_000);
+            long discountBasisPoints = saleCents == internalCents ? 0 : random.nextInt(3000);
+            int checksumError = random.nextInt(20) == 0 ? 1 : 0;
+            lines.add(Filings.line("B" + (i / 3), ITEM_CODES[random.nextInt(ITEM_CODES.length)], internalCents,
+                    discountBasisPoints, saleCents, 1 + random.nextInt(100), checksumError));
+        }
+        return lines;
+    }
+
+    // Counts, failures per reason and rule, and valid profit in cents (the
+    // tax at 100%)
+    private long[] totals(TransactionManager manager) {
+        ValidationFailure[] reasons = ValidationFailure.values();
+        long[] totals = new long[reasons.length + 5];
+        int k = 0;
+        totals[k++] = manager.getTotalCount();
+        totals[k++] = manager.getValidCount();
+        totals[k++] = manager.getInvalidCount();
+        for (ValidationFailure reason : reasons) {
+            totals[k++] = manager.getFailureCount(reason);
+        }
+        totals[k++] = manager.getFailureCount(quantityRule);
+        totals[k] = manager.calculateFinalTaxCents(100);
+        return totals;
+    }
+}
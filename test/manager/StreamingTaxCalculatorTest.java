@@ -0,0 +1,76 @@
+package manager;
+
+import Model.TransactionStore;
+import benchmark.SyntheticCsvGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// One streaming pass over a filing must give the counts, zero profit rows,
+// tax and rejected file that loading, validating and exporting it gives.
+class StreamingTaxCalculatorTest {
+    private static final int ROWS = 20_000;
+    private static final double TAX_RATE = 15;
+    private static final double[] INVALID_SHARES = {0, 0.05, 0.4};
+    private static final RoundingMode[] ROUNDINGS = {RoundingMode.HALF_UP, RoundingMode.HALF_EVEN, RoundingMode.DOWN};
+
+    @TempDir
+    File dir;
+
+    @Test
+    void matchesLoadValidateAndExport() throws IOException {
+        long seed = 1;
+        for (double invalidShare : INVALID_SHARES) {
+            for (RoundingMode rounding : ROUNDINGS) {
+                File csv = new File(dir, "filing-" + seed + ".csv");
+                new SyntheticCsvGenerator(seed, invalidShare).write(csv, ROWS);
+                check(csv, rounding, "seed " + seed + ", invalid share " + invalidShare + ", " + rounding);
+                seed++;
+            }
+        }
+    }
+
+    private void check(File csv, RoundingMode rounding, String filing) throws IOException {
+        TransactionManager loaded = new TransactionManager();
+        loaded.setRoundingMode(rounding);
+        assertTrue(loaded.loadTransactionsFromCSV(csv.getPath()), filing);
+        ValidationResult expected = loaded.validateTransactions();
+        File valid = new File(dir, "valid.csv");
+        File rejected = new File(dir, "rejected.csv");
+        loaded.exportTransactions(valid, rejected, false, ProgressListener.NONE);
+
+        File streamedRejected = new File(dir, "streamed-rejected.csv");
+        StreamingTaxCalculator.Result streamed = new StreamingTaxCalculator(rounding)
+                .calculate(csv, TAX_RATE, streamedRejected, false, ProgressListener.NONE);
+
+        ValidationResult actual = streamed.getValidation();
+        assertEquals(expected.getTotal(), actual.getTotal(), filing + ": rows");
+        assertEquals(expected.getValid(), actual.getValid(), filing + ": valid");
+        assertEquals(expected.getInvalid(), actual.getInvalid(), filing + ": invalid");
+        for (ValidationFailure reason : ValidationFailure.values()) {
+            assertEquals(expected.getFailureCount(reason), actual.getFailureCount(reason), filing + ": " + reason);
+        }
+        assertEquals(zeroProfit(loaded.getStore()), streamed.getZeroProfit(), filing + ": zero profit");
+        assertEquals(loaded.calculateFinalTaxCents(TAX_RATE), streamed.getTaxCents(), filing + ": tax cents");
+        assertEquals(-1, Files.mismatch(rejected.toPath(), streamedRejected.toPath()),
+                filing + ": rejected file");
+    }
+
+    // Rows deleteZeroProfitTransactions would remove
+    private static int zeroProfit(TransactionStore store) {
+        int count = 0;
+        for (int row = 0; row < store.size(); row++) {
+            if (!store.isDeleted(row) && store.getProfitCents(row) == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,101 @@
+package manager;
+
+import Model.Transaction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Views taken before a compaction must keep pointing at their own row, not
+// at whatever row the compaction moved into their old index.
+class TransactionViewCompactionTest {
+    private static final int ROWS = 5000;
+    // The delete that makes a quarter of the rows tombstones compacts them
+    private static final int COMPACTING_DELETE = ROWS / 4;
+
+    private TransactionManager manager;
+    private List<Transaction> views;
+
+    @BeforeEach
+    void load() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            lines.add(Filings.line("B" + i, "ITEM_1", 1000, 0, 1500, 2, 0));
+        }
+        manager = Filings.load(lines);
+        manager.validateTransactions();
+        views = new ArrayList<>(manager.getTransactions());
+    }
+
+    @Test
+    void deletesThroughStaleViewsHitTheirOwnRows() {
+        for (int i = 0; i < 1300; i++) {
+            manager.deleteTransaction(views.get(i));
+        }
+
+        assertTrue(manager.getStore().deletedCount() < 1300, "the deletes should have compacted the store");
+        assertEquals(ROWS - 1300, manager.getTotalCount());
+        List<String> expected = new ArrayList<>();
+        for (int i = 1300; i < ROWS; i++) {
+            expected.add("B" + i);
+            assertFalse(views.get(i).isDeleted());
+        }
+        List<String> live = new ArrayList<>();
+        for (Transaction t : manager.getTransactions()) {
+            if (!t.isDeleted()) {
+                live.add(t.getBillNumber());
+            }
+        }
+        assertEquals(expected, live);
+    }
+
+    @Test
+    void updateThroughStaleViewEditsItsOwnRow() {
+        Transaction stale = views.get(2000);
+        for (int i = 0; i < COMPACTING_DELETE; i++) {
+            manager.deleteTransaction(views.get(i));
+        }
+        assertEquals(0, manager.getStore().deletedCount());
+
+        manager.updateTransaction(stale, "ITEM_2", 10.00, 0, 20.00, 2);
+
+        assertEquals("B2000", stale.getBillNumber());
+        assertEquals("ITEM_2", manager.getTransactionById(stale.getId()).getItemCode());
+        assertEquals("ITEM_1", views.get(2000 + COMPACTING_DELETE).getItemCode());
+        assertEquals(1, manager.getTransactionsForItemCode("ITEM_2").size());
+    }
+
+    @Test
+    void staleViewsCompareByRowIdentity() {
+        Transaction stale = views.get(2000);
+        for (int i = 0; i < COMPACTING_DELETE; i++) {
+            manager.deleteTransaction(views.get(i));
+        }
+
+        Transaction fresh = manager.getTransactionById(stale.getId());
+        assertEquals(fresh, stale);
+        assertEquals(fresh.hashCode(), stale.hashCode());
+        assertNotEquals(manager.getTransactions().get(2000), stale);
+    }
+
+    @Test
+    void viewOfCompactedRowStaysDeleted() {
+        Transaction removed = views.get(0);
+        for (int i = 0; i < COMPACTING_DELETE; i++) {
+            manager.deleteTransaction(views.get(i));
+        }
+        int live = manager.getTotalCount();
+
+        assertTrue(removed.isDeleted());
+        assertEquals(-1, removed.getRow());
+        manager.deleteTransaction(removed);
+        assertEquals(live, manager.getTotalCount());
+        assertEquals("B" + COMPACTING_DELETE, manager.getTransactions().get(0).getBillNumber());
+    }
+}